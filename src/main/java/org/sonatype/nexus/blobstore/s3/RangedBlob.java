@@ -0,0 +1,36 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3;
+
+import java.io.InputStream;
+
+import org.sonatype.nexus.blobstore.api.Blob;
+
+/**
+ * A {@link Blob} whose content can be read in part, letting callers serving HTTP range requests avoid fetching the
+ * whole blob.
+ *
+ * Lives outside of the {@code internal} package so that it is exported to bundles serving content, which check blobs
+ * for it with {@code instanceof}.
+ */
+public interface RangedBlob
+    extends Blob
+{
+  /**
+   * Opens a stream over the given range of the blob's content. The range is truncated at the end of the content.
+   *
+   * @param offset position of the first byte to read
+   * @param length maximum number of bytes to read
+   */
+  InputStream getInputStream(long offset, long length);
+}
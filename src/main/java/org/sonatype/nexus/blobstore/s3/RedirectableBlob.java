@@ -0,0 +1,37 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3;
+
+import java.net.URL;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.api.Blob;
+
+/**
+ * A {@link Blob} whose content can be downloaded directly by clients, letting the HTTP layer redirect them rather
+ * than streaming the content through Nexus.
+ *
+ * Lives outside of the {@code internal} package so that it is exported to bundles serving content, which check blobs
+ * for it with {@code instanceof}.
+ */
+public interface RedirectableBlob
+    extends Blob
+{
+  /**
+   * Returns a short-lived URL from which the blob's content can be downloaded, or {@code null} if the blob should be
+   * served through {@link #getInputStream()} instead.
+   */
+  @Nullable
+  URL getRedirectUrl();
+}
@@ -12,9 +12,19 @@
  */
 package org.sonatype.nexus.blobstore.s3.internal;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
 import javax.inject.Named;
+import javax.inject.Singleton;
 
+import org.sonatype.goodies.common.ComponentSupport;
 import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
@@ -27,42 +37,106 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.google.common.base.Strings;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.ACCESS_KEY_ID_KEY;
 import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.ASSUME_ROLE_KEY;
 import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.CONFIG_KEY;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.CONNECTION_TTL_KEY;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.DEFAULT_CONNECTION_TTL_SECONDS;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.DEFAULT_MAX_CONNECTIONS;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.DEFAULT_REQUEST_TIMEOUT_SECONDS;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.DEFAULT_SOCKET_TIMEOUT_SECONDS;
 import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.ENDPOINT_KEY;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.MAX_CONNECTIONS_KEY;
 import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.REGION_KEY;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.REQUEST_TIMEOUT_KEY;
 import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.SECRET_ACCESS_KEY_KEY;
 import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.SESSION_TOKEN_KEY;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.SOCKET_TIMEOUT_KEY;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.TCP_KEEP_ALIVE_KEY;
 
 /**
- * Creates configured AmazonS3 clients.
+ * Creates configured AmazonS3 clients, shared between blob stores with the same endpoint, region, credentials and
+ * client settings so they share a connection pool. Clients are counted by reference and shut down once released by
+ * every blob store using them.
  */
 @Named
+@Singleton
 public class AmazonS3Factory
+    extends ComponentSupport
 {
+  private final Map<List<Object>, SharedClient> clients = new HashMap<>();
 
-  public AmazonS3 create(final BlobStoreConfiguration blobStoreConfiguration) {
-    AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard();
+  /**
+   * Returns a client for the given configuration, to be handed back with {@link #release(AmazonS3)}.
+   */
+  public synchronized AmazonS3 create(final BlobStoreConfiguration blobStoreConfiguration) {
+    ClientSettings settings = new ClientSettings(blobStoreConfiguration);
+    SharedClient shared = clients.get(settings.key());
+    if (shared == null) {
+      S3ClientMetrics metrics = new S3ClientMetrics(settings.maxConnections);
+      shared = new SharedClient(build(settings, metrics), metrics);
+      clients.put(settings.key(), shared);
+      log.debug("Created AmazonS3 client for blob store {}, {} clients in use", blobStoreConfiguration.getName(),
+          clients.size());
+    }
+    shared.references++;
+    return shared.client;
+  }
+
+  /**
+   * Hands back a client returned by {@link #create(BlobStoreConfiguration)}, shutting it down if no other blob store
+   * uses it.
+   */
+  public synchronized void release(final AmazonS3 client) {
+    Iterator<SharedClient> iterator = clients.values().iterator();
+    while (iterator.hasNext()) {
+      SharedClient shared = iterator.next();
+      if (shared.client == client) {
+        if (--shared.references == 0) {
+          iterator.remove();
+          client.shutdown();
+          log.debug("Shut down unused AmazonS3 client, {} clients in use", clients.size());
+        }
+        return;
+      }
+    }
+  }
 
-    String accessKeyId = blobStoreConfiguration.attributes(CONFIG_KEY).get(ACCESS_KEY_ID_KEY, String.class);
-    String secretAccessKey = blobStoreConfiguration.attributes(CONFIG_KEY).get(SECRET_ACCESS_KEY_KEY, String.class);
-    if (!Strings.isNullOrEmpty(accessKeyId) && !Strings.isNullOrEmpty(secretAccessKey)) {
+  /**
+   * Returns the connection pool usage of the given client, or {@code null} if it was not created here.
+   */
+  @Nullable
+  public synchronized S3ClientMetrics getMetrics(final AmazonS3 client) {
+    for (SharedClient shared : clients.values()) {
+      if (shared.client == client) {
+        return shared.metrics;
+      }
+    }
+    return null;
+  }
+
+  private AmazonS3 build(final ClientSettings settings, final S3ClientMetrics metrics) {
+    AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+        .withClientConfiguration(settings.clientConfiguration())
+        .withMetricsCollector(metrics);
+
+    if (!Strings.isNullOrEmpty(settings.accessKeyId) && !Strings.isNullOrEmpty(settings.secretAccessKey)) {
 
       AWSCredentials credentials;
-      String sessionToken = blobStoreConfiguration.attributes(CONFIG_KEY).get(SESSION_TOKEN_KEY, String.class);
-      if (!Strings.isNullOrEmpty(sessionToken)) {
-        credentials = new BasicSessionCredentials(accessKeyId, secretAccessKey, sessionToken);
+      if (!Strings.isNullOrEmpty(settings.sessionToken)) {
+        credentials = new BasicSessionCredentials(settings.accessKeyId, settings.secretAccessKey,
+            settings.sessionToken);
       }
       else {
-        credentials = new BasicAWSCredentials(accessKeyId, secretAccessKey);
+        credentials = new BasicAWSCredentials(settings.accessKeyId, settings.secretAccessKey);
       }
 
       AWSCredentialsProvider credentialsProvider;
-      String assumeRole = blobStoreConfiguration.attributes(CONFIG_KEY).get(ASSUME_ROLE_KEY, String.class);
-      if (!Strings.isNullOrEmpty(assumeRole)) {
-        credentialsProvider = new STSAssumeRoleSessionCredentialsProvider.Builder(assumeRole, "nexus-s3-session")
-          .withLongLivedCredentials(credentials).build();
+      if (!Strings.isNullOrEmpty(settings.assumeRole)) {
+        credentialsProvider = new STSAssumeRoleSessionCredentialsProvider
+            .Builder(settings.assumeRole, "nexus-s3-session")
+            .withLongLivedCredentials(credentials).build();
       }
       else {
         credentialsProvider = new AWSStaticCredentialsProvider(credentials);
@@ -70,16 +144,92 @@ public class AmazonS3Factory
       builder = builder.withCredentials(credentialsProvider);
     }
 
-    String region = blobStoreConfiguration.attributes(CONFIG_KEY).get(REGION_KEY, String.class);
-    if (!Strings.isNullOrEmpty(region)) {
-      String endpoint = blobStoreConfiguration.attributes(CONFIG_KEY).get(ENDPOINT_KEY, String.class);
-      if (!Strings.isNullOrEmpty(endpoint)) {
-        builder = builder.withEndpointConfiguration(new AmazonS3ClientBuilder.EndpointConfiguration(endpoint, region));
+    if (!Strings.isNullOrEmpty(settings.region)) {
+      if (!Strings.isNullOrEmpty(settings.endpoint)) {
+        builder = builder.withEndpointConfiguration(
+            new AmazonS3ClientBuilder.EndpointConfiguration(settings.endpoint, settings.region));
       } else {
-        builder = builder.withRegion(region);
+        builder = builder.withRegion(settings.region);
       }
     }
 
     return builder.build();
   }
+
+  private static class SharedClient
+  {
+    private final AmazonS3 client;
+
+    private final S3ClientMetrics metrics;
+
+    private int references;
+
+    SharedClient(final AmazonS3 client, final S3ClientMetrics metrics) {
+      this.client = client;
+      this.metrics = metrics;
+    }
+  }
+
+  /**
+   * Everything a client is built from, blob stores agreeing on all of it share a client.
+   */
+  private static class ClientSettings
+  {
+    private final String accessKeyId;
+
+    private final String secretAccessKey;
+
+    private final String sessionToken;
+
+    private final String assumeRole;
+
+    private final String region;
+
+    private final String endpoint;
+
+    private final int maxConnections;
+
+    private final int connectionTtlSeconds;
+
+    private final int socketTimeoutSeconds;
+
+    private final int requestTimeoutSeconds;
+
+    private final boolean tcpKeepAlive;
+
+    ClientSettings(final BlobStoreConfiguration blobStoreConfiguration) {
+      NestedAttributesMap attributes = blobStoreConfiguration.attributes(CONFIG_KEY);
+      this.accessKeyId = attributes.get(ACCESS_KEY_ID_KEY, String.class);
+      this.secretAccessKey = attributes.get(SECRET_ACCESS_KEY_KEY, String.class);
+      this.sessionToken = attributes.get(SESSION_TOKEN_KEY, String.class);
+      this.assumeRole = attributes.get(ASSUME_ROLE_KEY, String.class);
+      this.region = attributes.get(REGION_KEY, String.class);
+      this.endpoint = attributes.get(ENDPOINT_KEY, String.class);
+      this.maxConnections = getInt(attributes, MAX_CONNECTIONS_KEY, DEFAULT_MAX_CONNECTIONS);
+      this.connectionTtlSeconds = getInt(attributes, CONNECTION_TTL_KEY, DEFAULT_CONNECTION_TTL_SECONDS);
+      this.socketTimeoutSeconds = getInt(attributes, SOCKET_TIMEOUT_KEY, DEFAULT_SOCKET_TIMEOUT_SECONDS);
+      this.requestTimeoutSeconds = getInt(attributes, REQUEST_TIMEOUT_KEY, DEFAULT_REQUEST_TIMEOUT_SECONDS);
+      this.tcpKeepAlive = Boolean.parseBoolean(attributes.get(TCP_KEEP_ALIVE_KEY, true).toString());
+    }
+
+    private static int getInt(final NestedAttributesMap attributes, final String key, final int defaultValue) {
+      return Integer.parseInt(attributes.get(key, defaultValue).toString());
+    }
+
+    List<Object> key() {
+      return Arrays.asList(accessKeyId, secretAccessKey, sessionToken, assumeRole, region, endpoint, maxConnections,
+          connectionTtlSeconds, socketTimeoutSeconds, requestTimeoutSeconds, tcpKeepAlive);
+    }
+
+    ClientConfiguration clientConfiguration() {
+      return new ClientConfiguration()
+          .withMaxConnections(maxConnections)
+          // a negative TTL keeps connections for as long as they are usable
+          .withConnectionTTL(connectionTtlSeconds < 0 ? -1 : SECONDS.toMillis(connectionTtlSeconds))
+          .withSocketTimeout((int) SECONDS.toMillis(socketTimeoutSeconds))
+          // zero disables the timeout
+          .withRequestTimeout((int) SECONDS.toMillis(requestTimeoutSeconds))
+          .withTcpKeepAlive(tcpKeepAlive);
+    }
+  }
 }
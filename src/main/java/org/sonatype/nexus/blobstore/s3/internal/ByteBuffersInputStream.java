@@ -0,0 +1,122 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link InputStream} over the remaining bytes of a sequence of {@link ByteBuffer}s, without copying them.
+ *
+ * Supports mark and reset so the AWS SDK can replay the content when retrying a request.
+ */
+class ByteBuffersInputStream
+    extends InputStream
+{
+  private final List<ByteBuffer> buffers;
+
+  private final int[] starts;
+
+  private int index;
+
+  private int markIndex;
+
+  private int markPosition;
+
+  ByteBuffersInputStream(final List<ByteBuffer> buffers) {
+    this.buffers = new ArrayList<>(buffers.size());
+    this.starts = new int[buffers.size()];
+    for (int i = 0; i < buffers.size(); i++) {
+      ByteBuffer buffer = buffers.get(i).duplicate();
+      this.buffers.add(buffer);
+      this.starts[i] = buffer.position();
+    }
+    this.markPosition = starts.length > 0 ? starts[0] : 0;
+  }
+
+  @Override
+  public int read() {
+    ByteBuffer buffer = current();
+    return buffer != null ? buffer.get() & 0xff : -1;
+  }
+
+  @Override
+  public int read(final byte[] bytes, final int offset, final int length) {
+    if (length == 0) {
+      return 0;
+    }
+    ByteBuffer buffer = current();
+    if (buffer == null) {
+      return -1;
+    }
+    int count = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, count);
+    return count;
+  }
+
+  @Override
+  public long skip(final long n) {
+    long skipped = 0;
+    ByteBuffer buffer;
+    while (skipped < n && (buffer = current()) != null) {
+      int count = (int) Math.min(n - skipped, buffer.remaining());
+      buffer.position(buffer.position() + count);
+      skipped += count;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    long available = 0;
+    for (int i = index; i < buffers.size(); i++) {
+      available += buffers.get(i).remaining();
+    }
+    return (int) Math.min(Integer.MAX_VALUE, available);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(final int readLimit) {
+    markIndex = index;
+    markPosition = index < buffers.size() ? buffers.get(index).position() : 0;
+  }
+
+  @Override
+  public synchronized void reset() {
+    for (int i = markIndex + 1; i < buffers.size(); i++) {
+      buffers.get(i).position(starts[i]);
+    }
+    if (markIndex < buffers.size()) {
+      buffers.get(markIndex).position(markPosition);
+    }
+    index = markIndex;
+  }
+
+  private ByteBuffer current() {
+    while (index < buffers.size()) {
+      ByteBuffer buffer = buffers.get(index);
+      if (buffer.hasRemaining()) {
+        return buffer;
+      }
+      index++;
+    }
+    return null;
+  }
+}
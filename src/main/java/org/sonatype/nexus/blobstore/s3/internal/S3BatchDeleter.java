@@ -0,0 +1,78 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sonatype.goodies.common.ComponentSupport;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.google.common.collect.Lists;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Deletes many keys of a bucket with multi-object DeleteObjects requests.
+ */
+public class S3BatchDeleter
+    extends ComponentSupport
+{
+  /**
+   * Most keys S3 accepts in one DeleteObjects request.
+   */
+  public static final int MAX_KEYS_PER_REQUEST = 1000;
+
+  private final AmazonS3 s3;
+
+  private final String bucket;
+
+  public S3BatchDeleter(final AmazonS3 s3, final String bucket) {
+    this.s3 = checkNotNull(s3);
+    this.bucket = checkNotNull(bucket);
+  }
+
+  /**
+   * Deletes the given keys, returning the error for each key that could not be deleted. Keys that do not exist count
+   * as deleted.
+   */
+  public Map<String, String> delete(final Collection<String> keys) {
+    Map<String, String> errors = new LinkedHashMap<>();
+    for (List<String> batch : Lists.partition(new ArrayList<>(keys), MAX_KEYS_PER_REQUEST)) {
+      DeleteObjectsRequest request = new DeleteObjectsRequest(bucket)
+          .withKeys(batch.toArray(new String[batch.size()]))
+          .withQuiet(true);
+      try {
+        s3.deleteObjects(request);
+      }
+      catch (MultiObjectDeleteException e) {
+        for (DeleteError error : e.getErrors()) {
+          errors.put(error.getKey(), error.getCode() + ": " + error.getMessage());
+        }
+      }
+      catch (AmazonClientException e) {
+        log.warn("Unable to delete {} keys from bucket {}", batch.size(), bucket, log.isDebugEnabled() ? e : null);
+        batch.forEach(key -> errors.put(key, e.getMessage()));
+      }
+    }
+    log.debug("Deleted {} of {} keys from bucket {}", keys.size() - errors.size(), keys.size(), bucket);
+    return errors;
+  }
+}
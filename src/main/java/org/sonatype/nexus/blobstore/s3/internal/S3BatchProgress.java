@@ -0,0 +1,79 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Tracks and periodically logs the progress and throughput of a bulk operation over many blobs.
+ */
+class S3BatchProgress
+{
+  private static final long LOG_INTERVAL_NANOS = SECONDS.toNanos(10);
+
+  private final Logger log;
+
+  private final String operation;
+
+  private final String bucket;
+
+  private final long started = System.nanoTime();
+
+  private final AtomicLong processed = new AtomicLong();
+
+  private final AtomicLong lastLogged = new AtomicLong(started);
+
+  S3BatchProgress(final Logger log, final String operation, final String bucket) {
+    this.log = checkNotNull(log);
+    this.operation = checkNotNull(operation);
+    this.bucket = checkNotNull(bucket);
+  }
+
+  /**
+   * Records one more blob processed, logging progress at most every few seconds.
+   */
+  void increment() {
+    long count = processed.incrementAndGet();
+    long now = System.nanoTime();
+    long last = lastLogged.get();
+    if (now - last >= LOG_INTERVAL_NANOS && lastLogged.compareAndSet(last, now)) {
+      log.info("{}: {} blobs processed in bucket {} ({} blobs/s)", operation, count, bucket, getRate());
+    }
+  }
+
+  long getProcessed() {
+    return processed.get();
+  }
+
+  /**
+   * Returns the number of blobs processed per second so far.
+   */
+  long getRate() {
+    long elapsedMillis = Math.max(1L, NANOSECONDS.toMillis(System.nanoTime() - started));
+    return processed.get() * 1000L / elapsedMillis;
+  }
+
+  /**
+   * Logs the final count and throughput along with the given outcome.
+   */
+  void finish(final Object outcome) {
+    log.info("{}: {} blobs processed in bucket {} in {} ms ({} blobs/s), {}", operation, processed.get(), bucket,
+        NANOSECONDS.toMillis(System.nanoTime() - started), getRate(), outcome);
+  }
+}
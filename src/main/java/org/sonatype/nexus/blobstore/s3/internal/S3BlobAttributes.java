@@ -18,6 +18,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 
+import javax.annotation.Nullable;
+
 import org.sonatype.nexus.blobstore.api.BlobAttributes;
 import org.sonatype.nexus.blobstore.api.BlobMetrics;
 
@@ -37,6 +39,11 @@ import static org.sonatype.nexus.blobstore.api.BlobAttributesConstants.SHA1_HASH
  */
 public class S3BlobAttributes implements BlobAttributes
 {
+  /**
+   * Attribute naming the deduplicated content a blob refers to, absent for blobs with content of their own.
+   */
+  static final String CONTENT_REF_ATTRIBUTE = "contentRef";
+
   private Map<String, String> headers;
 
   private BlobMetrics metrics;
@@ -45,6 +52,8 @@ public class S3BlobAttributes implements BlobAttributes
 
   private String deletedReason;
 
+  private String contentRef;
+
   private final S3PropertiesFile propertiesFile;
 
   public S3BlobAttributes(final AmazonS3 s3, final String bucket, final String key) {
@@ -90,20 +99,47 @@ public class S3BlobAttributes implements BlobAttributes
     return deletedReason != null ? deletedReason : "No reason supplied";
   }
 
+  /**
+   * Returns the SHA-1 of the deduplicated content this blob refers to, {@code null} if it has content of its own.
+   */
+  @Nullable
+  public String getContentRef() {
+    return contentRef;
+  }
+
+  public void setContentRef(@Nullable final String contentRef) {
+    this.contentRef = contentRef;
+  }
+
   public boolean load() throws IOException {
-    if (!propertiesFile.exists()) {
+    if (!propertiesFile.loadIfExists()) {
       return false;
     }
-    propertiesFile.load();
     readFrom(propertiesFile);
     return true;
   }
 
+  /**
+   * Loads the attributes again, starting from the given earlier load of the same blob so that its .properties object is
+   * only transferred if it has changed since.
+   */
+  public boolean reload(final S3BlobAttributes previous) throws IOException {
+    propertiesFile.copyFrom(previous.propertiesFile);
+    return load();
+  }
+
   public void store() throws IOException {
     writeTo(propertiesFile);
     propertiesFile.store();
   }
 
+  /**
+   * Deletes the .properties object holding these attributes, if any.
+   */
+  void deletePropertiesFile() throws IOException {
+    propertiesFile.remove();
+  }
+
   @Override
   public Properties getProperties() {
     return new Properties(propertiesFile);
@@ -115,9 +151,12 @@ public class S3BlobAttributes implements BlobAttributes
     metrics = blobAttributes.getMetrics();
     deleted = blobAttributes.isDeleted();
     deletedReason = blobAttributes.getDeletedReason();
+    if (blobAttributes instanceof S3BlobAttributes) {
+      contentRef = ((S3BlobAttributes) blobAttributes).getContentRef();
+    }
   }
 
-  private void readFrom(Properties properties) {
+  protected void readFrom(final Properties properties) {
     headers = new HashMap<>();
     for (Entry<Object, Object> property : properties.entrySet()) {
       String key = (String) property.getKey();
@@ -133,9 +172,10 @@ public class S3BlobAttributes implements BlobAttributes
 
     deleted = properties.containsKey(DELETED_ATTRIBUTE);
     deletedReason = properties.getProperty(DELETED_REASON_ATTRIBUTE);
+    contentRef = properties.getProperty(CONTENT_REF_ATTRIBUTE);
   }
 
-  private Properties writeTo(final Properties properties) {
+  protected Properties writeTo(final Properties properties) {
     for (Entry<String, String> header : getHeaders().entrySet()) {
       properties.put(HEADER_PREFIX + header.getKey(), header.getValue());
     }
@@ -148,6 +188,14 @@ public class S3BlobAttributes implements BlobAttributes
       properties.put(DELETED_ATTRIBUTE, Boolean.toString(deleted));
       properties.put(DELETED_REASON_ATTRIBUTE, getDeletedReason());
     }
+    else {
+      properties.remove(DELETED_ATTRIBUTE);
+      properties.remove(DELETED_REASON_ATTRIBUTE);
+    }
+
+    if (contentRef != null) {
+      properties.setProperty(CONTENT_REF_ATTRIBUTE, contentRef);
+    }
     return properties;
   }
 }
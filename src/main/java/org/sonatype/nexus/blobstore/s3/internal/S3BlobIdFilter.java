@@ -0,0 +1,102 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.util.Iterator;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobId;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A Bloom filter of the IDs of existing blobs, telling blobs that certainly do not exist apart from those that might.
+ *
+ * Until populated from a listing every blob might exist. Blobs created meanwhile are added as they are created, so
+ * there are no false negatives for blobs of this node. Blobs are never removed, deleted blobs just stay possible.
+ */
+public class S3BlobIdFilter
+    extends ComponentSupport
+{
+  private final BloomFilter<CharSequence> filter;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private volatile boolean ready;
+
+  private volatile boolean closed;
+
+  public S3BlobIdFilter(final long expectedInsertions, final double falsePositiveProbability) {
+    checkArgument(expectedInsertions > 0, "Expected insertions must be positive");
+    this.filter = BloomFilter.create(Funnels.stringFunnel(UTF_8), expectedInsertions, falsePositiveProbability);
+  }
+
+  public void put(final BlobId blobId) {
+    lock.writeLock().lock();
+    try {
+      filter.put(blobId.asUniqueString());
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns {@code false} only if the given blob certainly does not exist.
+   */
+  public boolean mightContain(final BlobId blobId) {
+    if (!ready) {
+      return true;
+    }
+    lock.readLock().lock();
+    try {
+      return filter.mightContain(blobId.asUniqueString());
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Adds the given blobs, after which the filter is consulted. Stops early, leaving the filter unused, when closed.
+   */
+  public void populate(final Stream<BlobId> blobIds) {
+    try (Stream<BlobId> stream = blobIds) {
+      Iterator<BlobId> iterator = stream.iterator();
+      while (iterator.hasNext()) {
+        if (closed) {
+          return;
+        }
+        put(iterator.next());
+      }
+    }
+    ready = !closed;
+    log.debug("Blob ID filter populated, expected false positive probability {}", filter.expectedFpp());
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  public void close() {
+    closed = true;
+    ready = false;
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.sonatype.goodies.common.ComponentSupport;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Lists the objects of a bucket as a {@link Stream} that can be consumed in parallel.
+ *
+ * The prefixes a few levels below the requested one, such as the volume and chapter directories of blob content, are
+ * discovered up front with delimited listings. The stream's {@link Spliterator} splits by those prefixes, so each
+ * thread of a parallel consumer lists its own share of them.
+ */
+public class S3BlobLister
+    extends ComponentSupport
+{
+  private static final String DELIMITER = "/";
+
+  private static final Comparator<S3ObjectSummary> BY_KEY = Comparator.comparing(S3ObjectSummary::getKey);
+
+  private final AmazonS3 s3;
+
+  private final String bucket;
+
+  private final Executor executor;
+
+  /**
+   * @param executor runs the delimited listings that discover prefixes
+   */
+  public S3BlobLister(final AmazonS3 s3, final String bucket, final Executor executor) {
+    this.s3 = checkNotNull(s3);
+    this.bucket = checkNotNull(bucket);
+    this.executor = checkNotNull(executor);
+  }
+
+  /**
+   * Returns a sequential stream of all objects under the given prefix, splitting into prefixes the given number of
+   * levels deep when made parallel.
+   */
+  public Stream<S3ObjectSummary> list(final String prefix, final int depth) {
+    return StreamSupport.stream(spliterator(prefix, depth), false);
+  }
+
+  Spliterator<S3ObjectSummary> spliterator(final String prefix, final int depth) {
+    checkNotNull(prefix);
+    checkArgument(depth >= 0, "Depth must not be negative");
+
+    List<S3ObjectSummary> shallow = new ArrayList<>();
+    List<String> prefixes = Collections.singletonList(prefix);
+    for (int level = 0; level < depth && !prefixes.isEmpty(); level++) {
+      List<CompletableFuture<ObjectListing>> listings = new ArrayList<>(prefixes.size());
+      for (String parent : prefixes) {
+        listings.add(CompletableFuture.supplyAsync(() -> listDelimited(parent), executor));
+      }
+      TreeSet<String> children = new TreeSet<>();
+      for (CompletableFuture<ObjectListing> listing : listings) {
+        ObjectListing result = listing.join();
+        shallow.addAll(result.getObjectSummaries());
+        children.addAll(result.getCommonPrefixes());
+      }
+      prefixes = new ArrayList<>(children);
+    }
+    shallow.sort(BY_KEY);
+    log.debug("Listing {} prefixes under {}/{} (plus {} shallow keys)", prefixes.size(), bucket, prefix,
+        shallow.size());
+    return new PrefixSpliterator(prefixes, 0, prefixes.size(), shallow.iterator());
+  }
+
+  /**
+   * Lists the objects and common prefixes directly below the given prefix, across all pages.
+   */
+  private ObjectListing listDelimited(final String prefix) {
+    ListObjectsRequest request = new ListObjectsRequest()
+        .withBucketName(bucket)
+        .withPrefix(prefix)
+        .withDelimiter(DELIMITER);
+    ObjectListing listing = s3.listObjects(request);
+    ObjectListing combined = listing;
+    List<String> commonPrefixes = new ArrayList<>(listing.getCommonPrefixes());
+    while (listing.isTruncated()) {
+      listing = s3.listObjects(request.withMarker(listing.getNextMarker()));
+      combined.getObjectSummaries().addAll(listing.getObjectSummaries());
+      commonPrefixes.addAll(listing.getCommonPrefixes());
+    }
+    combined.setCommonPrefixes(commonPrefixes);
+    return combined;
+  }
+
+  /**
+   * Iterates the objects of every page listed under a prefix.
+   */
+  private class PrefixIterator
+      implements Iterator<S3ObjectSummary>
+  {
+    private final ListObjectsRequest request;
+
+    private ObjectListing listing;
+
+    private Iterator<S3ObjectSummary> page = Collections.emptyIterator();
+
+    PrefixIterator(final String prefix) {
+      this.request = new ListObjectsRequest().withBucketName(bucket).withPrefix(prefix);
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!page.hasNext()) {
+        if (listing != null && !listing.isTruncated()) {
+          return false;
+        }
+        if (listing != null) {
+          request.setMarker(listing.getNextMarker());
+        }
+        listing = s3.listObjects(request);
+        page = listing.getObjectSummaries().iterator();
+      }
+      return true;
+    }
+
+    @Override
+    public S3ObjectSummary next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return page.next();
+    }
+  }
+
+  /**
+   * Lists a range of prefixes one after the other, splitting the range in two on request.
+   */
+  private class PrefixSpliterator
+      implements Spliterator<S3ObjectSummary>
+  {
+    private final List<String> prefixes;
+
+    private int index;
+
+    private int end;
+
+    private Iterator<S3ObjectSummary> current;
+
+    PrefixSpliterator(final List<String> prefixes,
+                      final int index,
+                      final int end,
+                      final Iterator<S3ObjectSummary> current)
+    {
+      this.prefixes = prefixes;
+      this.index = index;
+      this.end = end;
+      this.current = current;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super S3ObjectSummary> action) {
+      while (!current.hasNext()) {
+        if (index >= end) {
+          return false;
+        }
+        current = new PrefixIterator(prefixes.get(index++));
+      }
+      action.accept(current.next());
+      return true;
+    }
+
+    @Override
+    public Spliterator<S3ObjectSummary> trySplit() {
+      int remaining = end - index;
+      if (remaining < 2) {
+        return null;
+      }
+      // being ordered the split takes the lower half, along with anything this one already started on
+      int middle = index + remaining / 2;
+      PrefixSpliterator split = new PrefixSpliterator(prefixes, index, middle, current);
+      index = middle;
+      current = Collections.emptyIterator();
+      return split;
+    }
+
+    @Override
+    public long estimateSize() {
+      // unknown, but proportional to the prefixes left which is all splitting decisions need
+      return end - index + 1L;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | DISTINCT | NONNULL;
+    }
+  }
+}
@@ -12,20 +12,47 @@
  */
 package org.sonatype.nexus.blobstore.s3.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 import java.util.concurrent.locks.Lock;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.sonatype.nexus.blobstore.AccumulatingBlobStoreMetrics;
 import org.sonatype.nexus.blobstore.BlobIdLocationResolver;
 import org.sonatype.nexus.blobstore.BlobSupport;
 import org.sonatype.nexus.blobstore.MetricsInputStream;
@@ -39,31 +66,47 @@ import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
 import org.sonatype.nexus.blobstore.api.BlobStoreException;
 import org.sonatype.nexus.blobstore.api.BlobStoreMetrics;
 import org.sonatype.nexus.blobstore.api.BlobStoreUsageChecker;
+import org.sonatype.nexus.blobstore.s3.RangedBlob;
+import org.sonatype.nexus.blobstore.s3.RedirectableBlob;
 import org.sonatype.nexus.common.stateguard.Guarded;
 import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+import org.sonatype.nexus.thread.NexusThreadFactory;
 
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.model.AbortIncompleteMultipartUpload;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+import com.amazonaws.services.s3.model.DeleteObjectTaggingRequest;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.ResponseHeaderOverrides;
 import com.amazonaws.services.s3.model.SetObjectTaggingRequest;
 import com.amazonaws.services.s3.model.Tag;
 import com.amazonaws.services.s3.model.lifecycle.LifecycleFilter;
 import com.amazonaws.services.s3.model.lifecycle.LifecycleFilterPredicate;
+import com.amazonaws.services.s3.model.lifecycle.LifecyclePrefixPredicate;
 import com.amazonaws.services.s3.model.lifecycle.LifecycleTagPredicate;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
 import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.http.HttpStatus;
 import org.joda.time.DateTime;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.iterable.S3Objects;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.transfer.TransferManager;
 
 import static java.lang.String.format;
-import static java.util.stream.StreamSupport.stream;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -104,38 +147,281 @@ public class S3BlobStore
 
   public static final String ENDPOINT_KEY = "endpoint";
 
+  /**
+   * Size of the connection pool of the client, which is shared with blob stores using the same client settings.
+   */
+  public static final String MAX_CONNECTIONS_KEY = "maxConnections";
+
+  public static final int DEFAULT_MAX_CONNECTIONS = 100;
+
+  /**
+   * Seconds a pooled connection may be reused for, {@code -1} to reuse it for as long as it is usable.
+   */
+  public static final String CONNECTION_TTL_KEY = "connectionTtl";
+
+  public static final int DEFAULT_CONNECTION_TTL_SECONDS = -1;
+
+  public static final String SOCKET_TIMEOUT_KEY = "socketTimeout";
+
+  public static final int DEFAULT_SOCKET_TIMEOUT_SECONDS = 50;
+
+  /**
+   * Seconds a whole request may take, {@code 0} to disable.
+   */
+  public static final String REQUEST_TIMEOUT_KEY = "requestTimeout";
+
+  public static final int DEFAULT_REQUEST_TIMEOUT_SECONDS = 0;
+
+  public static final String TCP_KEEP_ALIVE_KEY = "tcpKeepAlive";
+
   public static final String EXPIRATION_KEY = "expiration";
 
   public static final int DEFAULT_EXPIRATION_IN_DAYS = 3;
 
+  public static final String MULTIPART_UPLOAD_THRESHOLD_KEY = "multipartUploadThreshold";
+
+  public static final int DEFAULT_MULTIPART_UPLOAD_THRESHOLD_MB = 16;
+
+  public static final String MULTIPART_UPLOAD_PART_SIZE_KEY = "multipartUploadPartSize";
+
+  public static final int DEFAULT_MULTIPART_UPLOAD_PART_SIZE_MB = 5;
+
+  public static final int MINIMUM_MULTIPART_UPLOAD_PART_SIZE_MB = 5;
+
+  public static final String MULTIPART_COPY_THRESHOLD_KEY = "multipartCopyThreshold";
+
+  public static final int DEFAULT_MULTIPART_COPY_THRESHOLD_MB = 256;
+
+  /**
+   * Size of the ranges large objects are copied in, S3 requires at least 5MB.
+   */
+  static final long MULTIPART_COPY_PART_SIZE = 128L * 1024 * 1024;
+
+  public static final String PART_BUFFER_POOL_SIZE_KEY = "partBufferPoolSize";
+
+  public static final int DEFAULT_PART_BUFFER_POOL_SIZE_MB = 256;
+
+  /**
+   * The pool must hold the head of an upload up to the default multipart threshold.
+   */
+  public static final int MINIMUM_PART_BUFFER_POOL_SIZE_MB = DEFAULT_MULTIPART_UPLOAD_THRESHOLD_MB;
+
+  public static final String PARALLEL_DOWNLOAD_THRESHOLD_KEY = "parallelDownloadThreshold";
+
+  public static final int DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD_MB = -1;
+
+  public static final String PARALLEL_DOWNLOAD_RANGE_SIZE_KEY = "parallelDownloadRangeSize";
+
+  public static final int DEFAULT_PARALLEL_DOWNLOAD_RANGE_SIZE_MB = 8;
+
+  public static final int MAXIMUM_PARALLEL_DOWNLOAD_RANGE_SIZE_MB = S3Downloader.MAX_RANGE_SIZE / (1024 * 1024);
+
+  public static final String PARALLEL_DOWNLOAD_CONCURRENCY_KEY = "parallelDownloadConcurrency";
+
+  public static final int DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY = 4;
+
+  public static final String PARALLEL_DOWNLOAD_BUFFER_SIZE_KEY = "parallelDownloadBufferSize";
+
+  public static final int DEFAULT_PARALLEL_DOWNLOAD_BUFFER_SIZE_MB =
+      (int) (S3Downloader.DEFAULT_BUFFER_SIZE / (1024 * 1024));
+
+  public static final String PRESIGNED_URL_THRESHOLD_KEY = "presignedUrlThreshold";
+
+  public static final int DEFAULT_PRESIGNED_URL_THRESHOLD_MB = -1;
+
+  public static final String PRESIGNED_URL_EXPIRATION_KEY = "presignedUrlExpiration";
+
+  public static final int DEFAULT_PRESIGNED_URL_EXPIRATION_SECONDS = 300;
+
+  public static final String ATTRIBUTE_CACHE_SIZE_KEY = "attributeCacheSize";
+
+  public static final int DEFAULT_ATTRIBUTE_CACHE_SIZE = 10000;
+
+  public static final String ATTRIBUTE_CACHE_TTL_KEY = "attributeCacheTtl";
+
+  public static final int DEFAULT_ATTRIBUTE_CACHE_TTL_SECONDS = 60;
+
+  public static final String CONTENT_CACHE_SIZE_KEY = "contentCacheSize";
+
+  public static final int DEFAULT_CONTENT_CACHE_SIZE_MB = 0;
+
+  /**
+   * Local directory the content cache keeps a subdirectory per blob store in, by default under {@code java.io.tmpdir}.
+   */
+  public static final String CONTENT_CACHE_DIRECTORY_KEY = "contentCacheDirectory";
+
+  public static final String READ_COALESCING_KEY = "readCoalescing";
+
+  public static final String READ_COALESCING_DIRECTORY_KEY = "readCoalescingDirectory";
+
+  public static final String READ_COALESCING_SIZE_KEY = "readCoalescingSize";
+
+  public static final int DEFAULT_READ_COALESCING_SIZE_MB =
+      (int) (S3ReadCoalescer.DEFAULT_MAX_SPILL_SIZE / (1024 * 1024));
+
+  /**
+   * Seconds a blob found missing is answered as missing, {@code 0} to disable. Off by default, as blobs written by
+   * other nodes sharing the bucket meanwhile would appear missing.
+   */
+  public static final String MISSING_BLOB_CACHE_TTL_KEY = "missingBlobCacheTtl";
+
+  public static final int DEFAULT_MISSING_BLOB_CACHE_TTL_SECONDS = 0;
+
+  public static final String MISSING_BLOB_CACHE_SIZE_KEY = "missingBlobCacheSize";
+
+  public static final int DEFAULT_MISSING_BLOB_CACHE_SIZE = 10000;
+
+  public static final String MISSING_BLOB_FILTER_KEY = "missingBlobFilter";
+
+  static final double MISSING_BLOB_FILTER_FPP = 0.01;
+
+  /**
+   * Least number of blobs the filter is sized for, it is sized for twice the blobs there are when it is built.
+   */
+  static final long MINIMUM_MISSING_BLOB_FILTER_SIZE = 100_000L;
+
+  public static final String ATTRIBUTES_IN_METADATA_KEY = "attributesInMetadata";
+
+  public static final String BATCH_CONCURRENCY_KEY = "batchConcurrency";
+
+  public static final int DEFAULT_BATCH_CONCURRENCY = 8;
+
+  public static final String METRICS_REFRESH_PERIOD_KEY = "metricsRefreshPeriod";
+
+  /**
+   * Hours between reconciliations of the metrics with a listing of the bucket, {@code 0} to disable.
+   */
+  public static final String METRICS_RECONCILE_PERIOD_KEY = "metricsReconcilePeriod";
+
+  public static final int DEFAULT_METRICS_RECONCILE_PERIOD_HOURS = 0;
+
+  /**
+   * Requests per second compaction may make, leaving the rest of the bucket's request rate to foreground traffic.
+   */
+  public static final String COMPACT_REQUEST_RATE_KEY = "compactRequestRate";
+
+  public static final int DEFAULT_COMPACT_REQUEST_RATE = 100;
+
+  public static final String DEDUPLICATION_KEY = "deduplication";
+
+  static final int UPLOAD_PARALLELISM = 8;
+
+  /**
+   * Threads shared by all ranged downloads, as a multiple of the per-download concurrency.
+   */
+  static final int DOWNLOAD_THREADS_PER_CONCURRENCY = 4;
+
+  static final int PART_BUFFER_SIZE = 1024 * 1024;
+
   public static final String METADATA_FILENAME = "metadata.properties";
 
   public static final String TYPE_KEY = "type";
 
   public static final String TYPE_V1 = "s3/1";
 
+  /**
+   * Layout keeping blob attributes in the user metadata of the content object, see {@link S3MetadataBlobAttributes}.
+   */
+  public static final String TYPE_V2 = "s3/2";
+
+  /**
+   * Property of {@link #METADATA_FILENAME} recording that all blobs have been migrated to {@link #TYPE_V2}.
+   */
+  static final String MIGRATED_KEY = "migrated";
+
   public static final String CONTENT_PREFIX = "content";
 
   public static final String DIRECT_PATH_PREFIX = CONTENT_PREFIX + "/" + DIRECT_PATH_ROOT;
 
   public static final String TEMPORARY_BLOB_ID_PREFIX = "tmp$";
 
+  /**
+   * Temporary blobs are kept apart from {@link #CONTENT_PREFIX}, so listings never see them and a lifecycle rule
+   * reclaims those that are abandoned.
+   */
+  public static final String TEMPORARY_PREFIX = "tmp";
+
+  static final int TEMPORARY_EXPIRATION_IN_DAYS = 1;
+
+  /**
+   * Prefix of deduplicated content, stored once per SHA-1 as {@code dedup/<sha1>.bytes} along with an empty
+   * {@code dedup/<sha1>.refs/<blob id>} object for every blob referring to it.
+   */
+  public static final String DEDUP_PREFIX = "dedup";
+
+  static final String DEDUP_REFS_SUFFIX = ".refs";
+
   static final Tag DELETED_TAG = new Tag("deleted", "true");
 
+  /**
+   * Levels of volume and chapter directories below {@link #CONTENT_PREFIX}.
+   */
+  static final int CONTENT_PREFIX_DEPTH = 2;
+
   static final String LIFECYCLE_EXPIRATION_RULE_ID = "Expire soft-deleted blobstore objects";
 
+  static final String LIFECYCLE_TEMPORARY_RULE_ID = "Expire temporary blobstore objects";
+
   private final AmazonS3Factory amazonS3Factory;
 
   private final BlobIdLocationResolver blobIdLocationResolver;
 
+  /**
+   * Temporary blobs found where they were kept before they moved to {@link #TEMPORARY_PREFIX}, until deleted.
+   */
+  private final Set<BlobId> legacyTemporaryBlobs = ConcurrentHashMap.newKeySet();
+
   private BlobStoreConfiguration blobStoreConfiguration;
 
   private S3BlobStoreMetricsStore storeMetrics;
 
   private LoadingCache<BlobId, S3Blob> liveBlobs;
 
+  private Cache<BlobId, CachedAttributes> attributesCache;
+
+  /**
+   * How long cached attributes are used as they are, after that they are revalidated.
+   */
+  private long attributeCacheTtlNanos;
+
+  @Nullable
+  private S3ContentCache contentCache;
+
+  @Nullable
+  private S3ReadCoalescer readCoalescer;
+
+  /**
+   * Blobs recently found missing, empty when disabled.
+   */
+  private Cache<BlobId, Boolean> missingBlobs;
+
+  @Nullable
+  private S3BlobIdFilter blobIdFilter;
+
   private AmazonS3 s3;
 
+  private S3Uploader uploader;
+
+  private S3Downloader downloader;
+
+  private long presignedUrlThreshold;
+
+  private long presignedUrlExpirationMillis;
+
+  private boolean attributesInMetadata;
+
+  private boolean deduplication;
+
+  private long multipartUploadThreshold;
+
+  private S3LayoutMigrator migrator;
+
+  private ExecutorService batchExecutor;
+
+  private int batchConcurrency;
+
+  private S3BatchDeleter batchDeleter;
+
   @Inject
   public S3BlobStore(final AmazonS3Factory amazonS3Factory,
                      final BlobIdLocationResolver blobIdLocationResolver,
@@ -150,25 +436,175 @@ public class S3BlobStore
   protected void doStart() throws Exception {
     // ensure blobstore is supported
     S3PropertiesFile metadata = new S3PropertiesFile(s3, getConfiguredBucket(), METADATA_FILENAME);
-    if (metadata.exists()) {
-      metadata.load();
+    boolean v2Enabled = Boolean.parseBoolean(
+        blobStoreConfiguration.attributes(CONFIG_KEY).get(ATTRIBUTES_IN_METADATA_KEY, false).toString());
+    if (metadata.loadIfExists()) {
       String type = metadata.getProperty(TYPE_KEY);
-      checkState(TYPE_V1.equals(type), "Unsupported blob store type/version: %s in %s", type, metadata);
+      checkState(TYPE_V1.equals(type) || TYPE_V2.equals(type),
+          "Unsupported blob store type/version: %s in %s", type, metadata);
+      if (TYPE_V1.equals(type) && v2Enabled) {
+        // switch right away, blobs not yet migrated are still found through their .properties
+        log.info("Switching blob store bucket {} from {} to {}", getConfiguredBucket(), TYPE_V1, TYPE_V2);
+        metadata.setProperty(TYPE_KEY, TYPE_V2);
+        metadata.store();
+      }
     }
     else {
       // assumes new blobstore, write out type
-      metadata.setProperty(TYPE_KEY, TYPE_V1);
+      metadata.setProperty(TYPE_KEY, v2Enabled ? TYPE_V2 : TYPE_V1);
+      if (v2Enabled) {
+        metadata.setProperty(MIGRATED_KEY, Boolean.TRUE.toString());
+      }
       metadata.store();
     }
+    attributesInMetadata = TYPE_V2.equals(metadata.getProperty(TYPE_KEY));
+    deduplication = Boolean.parseBoolean(
+        blobStoreConfiguration.attributes(CONFIG_KEY).get(DEDUPLICATION_KEY, false).toString());
+    // attributes in metadata would end up on content shared by several blobs
+    checkState(!(deduplication && attributesInMetadata),
+        "Deduplication is not supported with attributes in metadata in %s", getConfiguredBucket());
     liveBlobs = CacheBuilder.newBuilder().weakValues().build(from(S3Blob::new));
+    // unlike liveBlobs this survives garbage collection, sparing stale gets of hot blobs a trip to S3; expired entries
+    // are kept until evicted so they can be revalidated with a conditional GET rather than transferred again
+    attributesCache = CacheBuilder.newBuilder()
+        .maximumSize(getConfiguredInt(ATTRIBUTE_CACHE_SIZE_KEY, DEFAULT_ATTRIBUTE_CACHE_SIZE))
+        .recordStats()
+        .build();
+    attributeCacheTtlNanos = SECONDS.toNanos(
+        Math.max(getConfiguredInt(ATTRIBUTE_CACHE_TTL_KEY, DEFAULT_ATTRIBUTE_CACHE_TTL_SECONDS), 0));
+    long contentCacheSize = megabytes(getConfiguredInt(CONTENT_CACHE_SIZE_KEY, DEFAULT_CONTENT_CACHE_SIZE_MB));
+    contentCache = contentCacheSize > 0
+        ? new S3ContentCache(getConfiguredContentCacheDirectory(), blobStoreConfiguration.getName(), contentCacheSize)
+        : null;
+    int missingBlobCacheTtl = getConfiguredInt(MISSING_BLOB_CACHE_TTL_KEY, DEFAULT_MISSING_BLOB_CACHE_TTL_SECONDS);
+    // holding nothing when disabled
+    int missingBlobCacheSize =
+        missingBlobCacheTtl > 0 ? getConfiguredInt(MISSING_BLOB_CACHE_SIZE_KEY, DEFAULT_MISSING_BLOB_CACHE_SIZE) : 0;
+    missingBlobs = CacheBuilder.newBuilder()
+        .maximumSize(missingBlobCacheSize)
+        .expireAfterWrite(Math.max(missingBlobCacheTtl, 0), SECONDS)
+        .recordStats()
+        .build();
+    boolean readCoalescing = Boolean.parseBoolean(
+        blobStoreConfiguration.attributes(CONFIG_KEY).get(READ_COALESCING_KEY, false).toString());
+    readCoalescer = readCoalescing
+        ? new S3ReadCoalescer(getConfiguredReadCoalescingDirectory(), getConfiguredBucket(),
+            S3ReadCoalescer.DEFAULT_MAX_DOWNLOADS,
+            megabytes(getConfiguredInt(READ_COALESCING_SIZE_KEY, DEFAULT_READ_COALESCING_SIZE_MB)))
+        : null;
+    long bufferPoolSize = megabytes(Math.max(MINIMUM_PART_BUFFER_POOL_SIZE_MB,
+        getConfiguredInt(PART_BUFFER_POOL_SIZE_KEY, DEFAULT_PART_BUFFER_POOL_SIZE_MB)));
+    S3PartBufferPool bufferPool = new S3PartBufferPool(PART_BUFFER_SIZE, (int) (bufferPoolSize / PART_BUFFER_SIZE));
+    multipartUploadThreshold =
+        megabytes(getConfiguredInt(MULTIPART_UPLOAD_THRESHOLD_KEY, DEFAULT_MULTIPART_UPLOAD_THRESHOLD_MB));
+    if (multipartUploadThreshold > bufferPoolSize) {
+      // a head above the pool could never be held in full, so uploads would starve one another
+      log.warn("Multipart upload threshold of {} bytes for bucket {} exceeds its part buffer pool, using {} bytes",
+          multipartUploadThreshold, getConfiguredBucket(), bufferPoolSize);
+      multipartUploadThreshold = bufferPoolSize;
+    }
+    uploader = new S3Uploader(s3, getConfiguredBucket(), bufferPool, multipartUploadThreshold,
+        megabytes(Math.max(MINIMUM_MULTIPART_UPLOAD_PART_SIZE_MB,
+            getConfiguredInt(MULTIPART_UPLOAD_PART_SIZE_KEY, DEFAULT_MULTIPART_UPLOAD_PART_SIZE_MB))),
+        UPLOAD_PARALLELISM,
+        megabytes(getConfiguredInt(MULTIPART_COPY_THRESHOLD_KEY, DEFAULT_MULTIPART_COPY_THRESHOLD_MB)),
+        MULTIPART_COPY_PART_SIZE);
+    int downloadConcurrency =
+        getConfiguredInt(PARALLEL_DOWNLOAD_CONCURRENCY_KEY, DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY);
+    int downloadRangeSize = Math.min(MAXIMUM_PARALLEL_DOWNLOAD_RANGE_SIZE_MB,
+        getConfiguredInt(PARALLEL_DOWNLOAD_RANGE_SIZE_KEY, DEFAULT_PARALLEL_DOWNLOAD_RANGE_SIZE_MB));
+    downloader = new S3Downloader(s3, getConfiguredBucket(),
+        megabytes(getConfiguredInt(PARALLEL_DOWNLOAD_THRESHOLD_KEY, DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD_MB)),
+        megabytes(downloadRangeSize),
+        downloadConcurrency,
+        downloadConcurrency * DOWNLOAD_THREADS_PER_CONCURRENCY,
+        // every download must be able to hold at least one range
+        megabytes(Math.max(downloadRangeSize,
+            getConfiguredInt(PARALLEL_DOWNLOAD_BUFFER_SIZE_KEY, DEFAULT_PARALLEL_DOWNLOAD_BUFFER_SIZE_MB))));
+    presignedUrlThreshold =
+        megabytes(getConfiguredInt(PRESIGNED_URL_THRESHOLD_KEY, DEFAULT_PRESIGNED_URL_THRESHOLD_MB));
+    presignedUrlExpirationMillis = SECONDS.toMillis(
+        getConfiguredInt(PRESIGNED_URL_EXPIRATION_KEY, DEFAULT_PRESIGNED_URL_EXPIRATION_SECONDS));
+    batchConcurrency = getConfiguredInt(BATCH_CONCURRENCY_KEY, DEFAULT_BATCH_CONCURRENCY);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(batchConcurrency, batchConcurrency, 60L, SECONDS,
+        new LinkedBlockingQueue<>(), new NexusThreadFactory("s3-blobstore", "batch-" + getConfiguredBucket()));
+    executor.allowCoreThreadTimeOut(true);
+    batchExecutor = executor;
+    batchDeleter = new S3BatchDeleter(s3, getConfiguredBucket());
     storeMetrics.setBucket(getConfiguredBucket());
     storeMetrics.setS3(s3);
+    storeMetrics.setRefreshPeriodSeconds(getConfiguredInt(METRICS_REFRESH_PERIOD_KEY,
+        S3BlobStoreMetricsStore.DEFAULT_METRICS_REFRESH_PERIOD_SECONDS));
+    storeMetrics.setReconciliation(this::listMetrics, (int) HOURS.toSeconds(
+        getConfiguredInt(METRICS_RECONCILE_PERIOD_KEY, DEFAULT_METRICS_RECONCILE_PERIOD_HOURS)));
     storeMetrics.start();
+    if (Boolean.parseBoolean(
+        blobStoreConfiguration.attributes(CONFIG_KEY).get(MISSING_BLOB_FILTER_KEY, false).toString())) {
+      startBlobIdFilter();
+    }
+    if (attributesInMetadata && !Boolean.parseBoolean(metadata.getProperty(MIGRATED_KEY))) {
+      migrator = new S3LayoutMigrator(s3, getConfiguredBucket(), CONTENT_PREFIX + "/", batchConcurrency,
+          this::migrateToMetadata);
+      migrator.start(() -> {
+        try {
+          metadata.setProperty(MIGRATED_KEY, Boolean.TRUE.toString());
+          metadata.store();
+        }
+        catch (IOException e) {
+          log.warn("Unable to record completed layout migration of bucket {}", getConfiguredBucket(), e);
+        }
+      });
+    }
+  }
+
+  /**
+   * Sizes a new filter by the blobs there are and populates it from a listing in the background, blobs created
+   * meanwhile are added as they are created. Blobs other nodes create are not, see {@link #isKnownMissing(BlobId)}.
+   */
+  private void startBlobIdFilter() {
+    long blobCount = Math.max(storeMetrics.getMetrics().getBlobCount(), 0L);
+    S3BlobIdFilter filter =
+        new S3BlobIdFilter(Math.max(blobCount * 2, MINIMUM_MISSING_BLOB_FILTER_SIZE), MISSING_BLOB_FILTER_FPP);
+    blobIdFilter = filter;
+    new NexusThreadFactory("s3-blobstore", "filter-" + getConfiguredBucket()).newThread(() -> {
+      try {
+        filter.populate(getBlobIdStream().filter(this::isFiltered));
+        log.info("Blob ID filter of bucket {} is ready", getConfiguredBucket());
+      }
+      catch (Exception e) {
+        log.warn("Unable to populate blob ID filter of bucket {}, every blob is looked up", getConfiguredBucket(), e);
+      }
+    }).start();
   }
 
   @Override
   protected void doStop() throws Exception {
+    if (migrator != null) {
+      migrator.stop();
+      migrator = null;
+    }
     liveBlobs = null;
+    attributesCache = null;
+    missingBlobs = null;
+    if (blobIdFilter != null) {
+      blobIdFilter.close();
+      blobIdFilter = null;
+    }
+    if (contentCache != null) {
+      contentCache.close();
+      contentCache = null;
+    }
+    if (readCoalescer != null) {
+      readCoalescer.shutdown();
+      readCoalescer = null;
+    }
+    uploader.shutdown();
+    uploader = null;
+    downloader.shutdown();
+    downloader = null;
+    batchExecutor.shutdownNow();
+    batchExecutor = null;
+    batchDeleter = null;
     storeMetrics.stop();
   }
 
@@ -186,45 +622,175 @@ public class S3BlobStore
     return getLocation(id) + BLOB_ATTRIBUTE_SUFFIX;
   }
 
+  /**
+   * Returns path for the content of the blob with the given loaded attributes, which is shared if deduplicated.
+   */
+  private String contentPath(final BlobId id, final S3BlobAttributes blobAttributes) {
+    String contentRef = blobAttributes.getContentRef();
+    return contentRef != null ? dedupContentPath(contentRef) : contentPath(id);
+  }
+
+  private static String dedupContentPath(final String contentRef) {
+    return DEDUP_PREFIX + "/" + contentRef + BLOB_CONTENT_SUFFIX;
+  }
+
+  private static String dedupRefsPrefix(final String contentRef) {
+    return DEDUP_PREFIX + "/" + contentRef + DEDUP_REFS_SUFFIX + "/";
+  }
+
+  /**
+   * Returns path for the object recording that the given blob refers to deduplicated content.
+   */
+  private static String dedupRefPath(final String contentRef, final BlobId id) {
+    return dedupRefsPrefix(contentRef) + id.asUniqueString();
+  }
+
+  private static boolean isTemporary(final BlobId id) {
+    return id.asUniqueString().startsWith(TEMPORARY_BLOB_ID_PREFIX);
+  }
+
   /**
    * Returns the location for a blob ID based on whether or not the blob ID is for a temporary or permanent blob.
    */
   private String getLocation(final BlobId id) {
+    if (isTemporary(id) && !legacyTemporaryBlobs.contains(id)) {
+      return TEMPORARY_PREFIX + "/" + id.asUniqueString();
+    }
     return CONTENT_PREFIX + "/" + blobIdLocationResolver.getLocation(id);
   }
 
+  /**
+   * Checks whether the given temporary blob, missing from {@link #TEMPORARY_PREFIX}, was written among permanent
+   * content before temporary blobs moved there, in which case it is looked for there from now on.
+   */
+  private boolean resolveLegacyTemporary(final BlobId id) {
+    if (!isTemporary(id) || legacyTemporaryBlobs.contains(id)) {
+      return false;
+    }
+    String legacyLocation = CONTENT_PREFIX + "/" + blobIdLocationResolver.getLocation(id);
+    if (!s3.doesObjectExist(getConfiguredBucket(), legacyLocation + BLOB_CONTENT_SUFFIX)) {
+      return false;
+    }
+    log.debug("Temporary blob {} found at its legacy location {}", id, legacyLocation);
+    legacyTemporaryBlobs.add(id);
+    return true;
+  }
+
+  /**
+   * Returns attributes of the given blob, which still need to be loaded, as kept by the layout in use.
+   */
+  private S3BlobAttributes newBlobAttributes(final BlobId id) {
+    if (attributesInMetadata) {
+      return new S3MetadataBlobAttributes(s3, getConfiguredBucket(), contentPath(id), attributePath(id));
+    }
+    return new S3BlobAttributes(s3, getConfiguredBucket(), attributePath(id));
+  }
+
+  /**
+   * Moves the attributes of the blob with the given .properties object into its content's metadata, unless the
+   * content is too large to be copied onto itself cheaply.
+   */
+  private boolean migrateToMetadata(final String attributePath) throws IOException {
+    String location = attributePath.substring(0, attributePath.length() - BLOB_ATTRIBUTE_SUFFIX.length());
+    BlobId blobId = attributePathToBlobId(attributePath);
+    S3Blob blob = liveBlobs.getUnchecked(blobId);
+    Lock lock = blob.lock();
+    try {
+      boolean migrated = new S3MetadataBlobAttributes(s3, getConfiguredBucket(),
+          location + BLOB_CONTENT_SUFFIX, attributePath).migrate(multipartUploadThreshold);
+      attributesCache.invalidate(blobId);
+      return migrated;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the ID of the blob with the given .properties object.
+   */
+  private BlobId attributePathToBlobId(final String attributePath) {
+    return keyToBlobId(attributePath, BLOB_ATTRIBUTE_SUFFIX);
+  }
+
+  /**
+   * Returns the ID of the blob with the given object of the given suffix. Direct path blobs are named by their path,
+   * others by the last segment of their key.
+   */
+  private BlobId keyToBlobId(final String key, final String suffix) {
+    if (key.startsWith(DIRECT_PATH_PREFIX + "/")) {
+      return pathToDirectPathBlobId(key, suffix);
+    }
+    String location = key.substring(0, key.length() - suffix.length());
+    return new BlobId(location.substring(location.lastIndexOf('/') + 1));
+  }
+
+  /**
+   * Returns the background migration to {@link #TYPE_V2}, or {@code null} if none is running.
+   */
+  @Nullable
+  @Guarded(by = STARTED)
+  public S3LayoutMigrator getLayoutMigrator() {
+    return migrator;
+  }
+
   @Override
   @Guarded(by = STARTED)
   public Blob create(final InputStream blobData, final Map<String, String> headers) {
     checkNotNull(blobData);
 
-    return create(headers, destination -> {
+    return create(headers, (destination, userMetadata) -> {
         try (InputStream data = blobData) {
           MetricsInputStream input = new MetricsInputStream(data);
-          TransferManager transferManager = new TransferManager(s3);
-          transferManager.upload(getConfiguredBucket(), destination, input, new ObjectMetadata())
-              .waitForCompletion();
+          uploader.upload(destination, input, () -> userMetadata.apply(input.getMetrics()));
           return input.getMetrics();
-        } catch (InterruptedException e) {
-          throw new BlobStoreException("error uploading blob", e, null);
         }
-      });
+      }, null);
   }
 
   @Override
   @Guarded(by = STARTED)
   public Blob create(final Path sourceFile, final Map<String, String> headers, final long size, final HashCode sha1) {
-    throw new BlobStoreException("hard links not supported", null);
+    checkNotNull(sourceFile);
+    checkNotNull(sha1);
+
+    // size and hash are already known, so upload straight from the file rather than re-hashing it as a stream
+    StreamMetrics streamMetrics = new StreamMetrics(size, sha1.toString());
+    return create(headers, (destination, userMetadata) -> {
+        uploader.upload(destination, sourceFile, size, () -> userMetadata.apply(streamMetrics));
+        return streamMetrics;
+    }, streamMetrics);
   }
 
-  private Blob create(final Map<String, String> headers, final BlobIngester ingester) {
+  /**
+   * @param knownMetrics metrics of the content the ingester writes, if known up front
+   */
+  private Blob create(final Map<String, String> headers,
+                      final BlobIngester ingester,
+                      @Nullable final StreamMetrics knownMetrics)
+  {
     checkNotNull(headers);
 
     checkArgument(headers.containsKey(BLOB_NAME_HEADER), "Missing header: %s", BLOB_NAME_HEADER);
     checkArgument(headers.containsKey(CREATED_BY_HEADER), "Missing header: %s", CREATED_BY_HEADER);
 
     final BlobId blobId = blobIdLocationResolver.fromHeaders(headers);
+    // known before any of the blob is written, and loads under way must not remember it as missing
+    liveBlobs.getUnchecked(blobId).markStale();
+    markExisting(blobId);
+    try {
+      if (deduplication && !isTemporary(blobId)) {
+        return createDeduplicated(blobId, headers, ingester, knownMetrics);
+      }
+      return createContent(blobId, headers, ingester);
+    }
+    finally {
+      // a lookup that overlapped the write may still have found the blob missing
+      missingBlobs.invalidate(blobId);
+    }
+  }
 
+  private Blob createContent(final BlobId blobId, final Map<String, String> headers, final BlobIngester ingester) {
     final String blobPath = contentPath(blobId);
     final String attributePath = attributePath(blobId);
     final S3Blob blob = liveBlobs.getUnchecked(blobId);
@@ -233,13 +799,30 @@ public class S3BlobStore
     try {
       log.debug("Writing blob {} to {}", blobId, blobPath);
 
-      final StreamMetrics streamMetrics = ingester.ingestTo(blobPath);
-      final BlobMetrics metrics = new BlobMetrics(new DateTime(), streamMetrics.getSha1(), streamMetrics.getSize());
-      blob.refresh(headers, metrics);
-
-      S3BlobAttributes blobAttributes = new S3BlobAttributes(s3, getConfiguredBucket(), attributePath, headers, metrics);
+      // with attributes in metadata they travel with the content, unless it is too large to cheaply rewrite later
+      final AtomicReference<S3BlobAttributes> attached = new AtomicReference<>();
+      final StreamMetrics streamMetrics = ingester.ingestTo(blobPath, ingested -> {
+        if (!attributesInMetadata || ingested.getSize() >= multipartUploadThreshold) {
+          return null;
+        }
+        BlobMetrics metrics = new BlobMetrics(new DateTime(), ingested.getSha1(), ingested.getSize());
+        S3MetadataBlobAttributes attributes =
+            new S3MetadataBlobAttributes(s3, getConfiguredBucket(), blobPath, attributePath, headers, metrics);
+        Map<String, String> userMetadata = attributes.toUserMetadata();
+        if (userMetadata != null) {
+          attached.set(attributes);
+        }
+        return userMetadata;
+      });
 
-      blobAttributes.store();
+      S3BlobAttributes blobAttributes = attached.get();
+      if (blobAttributes == null) {
+        final BlobMetrics metrics = new BlobMetrics(new DateTime(), streamMetrics.getSha1(), streamMetrics.getSize());
+        blobAttributes = new S3BlobAttributes(s3, getConfiguredBucket(), attributePath, headers, metrics);
+        blobAttributes.store();
+      }
+      blob.refresh(headers, blobAttributes.getMetrics(), blobPath);
+      attributesCache.put(blobId, new CachedAttributes(blobAttributes));
       storeMetrics.recordAddition(blobAttributes.getMetrics().getContentSize());
 
       return blob;
@@ -255,104 +838,420 @@ public class S3BlobStore
     }
   }
 
-  @Override
-  @Guarded(by = STARTED)
-  public Blob copy(final BlobId blobId, final Map<String, String> headers) {
-    Blob sourceBlob = checkNotNull(get(blobId));
-    String sourcePath = contentPath(sourceBlob.getId());
-    return create(headers, destination -> {
-        s3.copyObject(getConfiguredBucket(), sourcePath, getConfiguredBucket(), destination);
-        BlobMetrics metrics = sourceBlob.getMetrics();
-        return new StreamMetrics(metrics.getContentSize(), metrics.getSha1Hash());
-    });
-  }
-
-  @Nullable
-  @Override
-  @Guarded(by = STARTED)
-  public Blob get(final BlobId blobId) {
-    return get(blobId, false);
-  }
-
-  @Nullable
-  @Override
-  public Blob get(final BlobId blobId, final boolean includeDeleted) {
-    checkNotNull(blobId);
-
+  /**
+   * Creates a blob whose content is stored once per SHA-1, only writing it if no other blob already did. Content of
+   * unknown hash is staged under {@link #TEMPORARY_PREFIX} first, and copied into place if it turns out to be new.
+   */
+  private Blob createDeduplicated(final BlobId blobId,
+                                  final Map<String, String> headers,
+                                  final BlobIngester ingester,
+                                  @Nullable final StreamMetrics knownMetrics)
+  {
+    final String attributePath = attributePath(blobId);
     final S3Blob blob = liveBlobs.getUnchecked(blobId);
 
-    if (blob.isStale()) {
-      Lock lock = blob.lock();
-      try {
-        if (blob.isStale()) {
-          S3BlobAttributes blobAttributes = new S3BlobAttributes(s3, getConfiguredBucket(), attributePath(blobId).toString());
-          boolean loaded = blobAttributes.load();
-          if (!loaded) {
-            log.warn("Attempt to access non-existent blob {} ({})", blobId, blobAttributes);
-            return null;
-          }
-
-          if (blobAttributes.isDeleted() && !includeDeleted) {
-            log.warn("Attempt to access soft-deleted blob {} ({})", blobId, blobAttributes);
-            return null;
-          }
-
-          blob.refresh(blobAttributes.getHeaders(), blobAttributes.getMetrics());
-        }
-      }
-      catch (IOException e) {
-        throw new BlobStoreException(e, blobId);
-      }
-      finally {
-        lock.unlock();
+    String stagingPath = null;
+    String refPath = null;
+    Lock lock = blob.lock();
+    try {
+      StreamMetrics streamMetrics = knownMetrics;
+      if (streamMetrics == null) {
+        stagingPath = TEMPORARY_PREFIX + "/" + UUID.randomUUID() + BLOB_CONTENT_SUFFIX;
+        log.debug("Staging blob {} at {}", blobId, stagingPath);
+        streamMetrics = ingester.ingestTo(stagingPath, ingested -> null);
       }
-    }
+      final String contentRef = streamMetrics.getSha1();
+      final long size = streamMetrics.getSize();
+      final String source = stagingPath;
+      refPath = dedupRefPath(contentRef, blobId);
+      acquireContent(contentRef, refPath, destination -> {
+        log.debug("Writing blob {} to {}", blobId, destination);
+        if (source != null) {
+          uploader.copy(source, destination, size, null);
+        }
+        else {
+          ingester.ingestTo(destination, ingested -> null);
+        }
+      });
+
+      BlobMetrics metrics = new BlobMetrics(new DateTime(), contentRef, size);
+      S3BlobAttributes blobAttributes =
+          new S3BlobAttributes(s3, getConfiguredBucket(), attributePath, headers, metrics);
+      blobAttributes.setContentRef(contentRef);
+      blobAttributes.store();
+
+      blob.refresh(headers, metrics, dedupContentPath(contentRef));
+      attributesCache.put(blobId, new CachedAttributes(blobAttributes));
+      storeMetrics.recordAddition(size);
+
+      return blob;
+    }
+    catch (IOException e) {
+      // content written here is left to be released by compact, another blob may have referred to it meanwhile
+      deleteQuietly(attributePath);
+      if (refPath != null) {
+        deleteQuietly(refPath);
+      }
+      throw new BlobStoreException(e, blobId);
+    }
+    finally {
+      if (stagingPath != null) {
+        try {
+          deleteQuietly(stagingPath);
+        }
+        catch (Exception e) {
+          // expires along with other temporary objects
+          log.debug("Unable to delete staged content {}", stagingPath, e);
+        }
+      }
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Records a reference to deduplicated content, then writes the content unless it already exists. Referencing first
+   * means a concurrent {@link #releaseContent(String)} either sees the reference, or tags the content before it is
+   * found here and untagged again.
+   */
+  private void acquireContent(final String contentRef, final String refPath, final ContentWriter writer)
+      throws IOException
+  {
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(0);
+    s3.putObject(getConfiguredBucket(), refPath, new ByteArrayInputStream(new byte[0]), metadata);
+
+    String contentPath = dedupContentPath(contentRef);
+    if (!s3.doesObjectExist(getConfiguredBucket(), contentPath)) {
+      writer.write(contentPath);
+    }
+    else if (getConfiguredExpirationInDays() >= 0) {
+      log.debug("Referring to existing content {}", contentPath);
+      s3.deleteObjectTagging(new DeleteObjectTaggingRequest(getConfiguredBucket(), contentPath));
+    }
+  }
+
+  /**
+   * Lets deduplicated content expire once no blob refers to it. References are checked again after tagging, so content
+   * acquired meanwhile is untagged again. Failures are only logged, {@link #compact()} releases the content later.
+   */
+  private void releaseContent(final String contentRef) {
+    String contentPath = dedupContentPath(contentRef);
+    try {
+      if (hasReferences(contentRef)) {
+        return;
+      }
+      if (getConfiguredExpirationInDays() < 0) {
+        // without lifecycle expiry there is nothing to hand the content over to
+        log.debug("Deleting unreferenced content {}", contentPath);
+        s3.deleteObject(getConfiguredBucket(), contentPath);
+        return;
+      }
+      log.debug("Tagging unreferenced content {} for expiry", contentPath);
+      s3.setObjectTagging(new SetObjectTaggingRequest(getConfiguredBucket(), contentPath,
+          new ObjectTagging(Arrays.asList(DELETED_TAG))));
+      if (hasReferences(contentRef)) {
+        s3.deleteObjectTagging(new DeleteObjectTaggingRequest(getConfiguredBucket(), contentPath));
+      }
+    }
+    catch (AmazonS3Exception e) {
+      if (e.getStatusCode() != HttpStatus.SC_NOT_FOUND) {
+        log.warn("Unable to release content {}", contentPath, e);
+      }
+    }
+    catch (Exception e) {
+      log.warn("Unable to release content {}", contentPath, e);
+    }
+  }
+
+  private boolean hasReferences(final String contentRef) {
+    ListObjectsRequest request = new ListObjectsRequest()
+        .withBucketName(getConfiguredBucket())
+        .withPrefix(dedupRefsPrefix(contentRef))
+        .withMaxKeys(1);
+    return !s3.listObjects(request).getObjectSummaries().isEmpty();
+  }
+
+  /**
+   * Releases deduplicated content without references, such as that of blobs whose references expired after a soft
+   * delete. Listed keys are sorted, so each content key is directly followed by its references.
+   */
+  private void releaseUnreferencedContent(final RateLimiter rateLimiter) {
+    String unreferenced = null;
+    try (Stream<S3ObjectSummary> summaries = blobLister().list(DEDUP_PREFIX + "/", 0)) {
+      Iterator<S3ObjectSummary> iterator = summaries.iterator();
+      while (iterator.hasNext()) {
+        String key = iterator.next().getKey();
+        if (key.endsWith(BLOB_CONTENT_SUFFIX)) {
+          if (unreferenced != null) {
+            rateLimiter.acquire(3);
+            releaseContent(unreferenced);
+          }
+          unreferenced = key.substring(DEDUP_PREFIX.length() + 1, key.length() - BLOB_CONTENT_SUFFIX.length());
+        }
+        else if (unreferenced != null && key.startsWith(dedupRefsPrefix(unreferenced))) {
+          unreferenced = null;
+        }
+      }
+    }
+    if (unreferenced != null) {
+      rateLimiter.acquire(3);
+      releaseContent(unreferenced);
+    }
+  }
+
+  @Override
+  @Guarded(by = STARTED)
+  public Blob copy(final BlobId blobId, final Map<String, String> headers) {
+    S3Blob sourceBlob = (S3Blob) checkNotNull(get(blobId));
+    String sourcePath = sourceBlob.getContentPath();
+    BlobMetrics metrics = sourceBlob.getMetrics();
+    StreamMetrics streamMetrics = new StreamMetrics(metrics.getContentSize(), metrics.getSha1Hash());
+    // when deduplicating the content already exists, so only new attributes are written
+    return create(headers, (destination, userMetadata) -> {
+        // replace rather than copy the source metadata, which may hold the attributes of the source blob
+        uploader.copy(sourcePath, destination, metrics.getContentSize(), () -> userMetadata.apply(streamMetrics));
+        return streamMetrics;
+    }, streamMetrics);
+  }
+
+  @Nullable
+  @Override
+  @Guarded(by = STARTED)
+  public Blob get(final BlobId blobId) {
+    return get(blobId, false);
+  }
+
+  @Nullable
+  @Override
+  public Blob get(final BlobId blobId, final boolean includeDeleted) {
+    checkNotNull(blobId);
+
+    final S3Blob blob = liveBlobs.getUnchecked(blobId);
+
+    // readers of a fresh blob never wait, those of a stale blob share one load without holding its lock
+    while (blob.isStale()) {
+      if (isKnownMissing(blobId)) {
+        log.debug("Attempt to access non-existent blob {}", blobId);
+        return null;
+      }
+      long version;
+      CompletableFuture<S3BlobAttributes> load;
+      CompletableFuture<S3BlobAttributes> started = null;
+      synchronized (blob) {
+        version = blob.version;
+        load = blob.refreshing;
+        if (load == null) {
+          load = started = new CompletableFuture<>();
+          blob.refreshing = started;
+        }
+      }
+      if (started != null) {
+        loadAttributes(blob, version, started);
+      }
+
+      S3BlobAttributes blobAttributes = awaitLoad(blobId, load);
+      if (blobAttributes == null) {
+        return null;
+      }
+      if (blobAttributes.isDeleted() && !includeDeleted) {
+        log.warn("Attempt to access soft-deleted blob {} ({})", blobId, blobAttributes);
+        return null;
+      }
+      if (blob.refresh(version, blobAttributes.getHeaders(), blobAttributes.getMetrics(),
+          contentPath(blobId, blobAttributes))) {
+        break;
+      }
+      log.debug("Blob {} changed while its attributes were loaded, loading them again", blobId);
+    }
 
     log.debug("Accessing blob {}", blobId);
 
     return blob;
   }
 
+  /**
+   * Loads the attributes of the given blob as they were at the given version for everyone waiting on the given load,
+   * completing it with {@code null} if the blob does not exist. The caches are only updated if the blob is still at
+   * that version, a load racing a write must not leave what the write replaced behind.
+   */
+  private void loadAttributes(final S3Blob blob,
+                              final long version,
+                              final CompletableFuture<S3BlobAttributes> load)
+  {
+    BlobId blobId = blob.getId();
+    try {
+      CachedAttributes cached = attributesCache.getIfPresent(blobId);
+      boolean current = cached != null && System.nanoTime() - cached.validatedAt < attributeCacheTtlNanos;
+      S3BlobAttributes blobAttributes = current ? cached.attributes : null;
+      boolean loaded = current;
+      if (!current) {
+        blobAttributes = newBlobAttributes(blobId);
+        // expired attributes are kept if S3 answers they have not changed
+        loaded = cached != null ? blobAttributes.reload(cached.attributes) : blobAttributes.load();
+        if (!loaded && resolveLegacyTemporary(blobId)) {
+          blobAttributes = newBlobAttributes(blobId);
+          loaded = blobAttributes.load();
+        }
+        if (!loaded) {
+          log.warn("Attempt to access non-existent blob {} ({})", blobId, blobAttributes);
+        }
+      }
+      synchronized (blob) {
+        if (blob.version == version) {
+          if (loaded && !current) {
+            attributesCache.put(blobId, new CachedAttributes(blobAttributes));
+          }
+          else {
+            missingBlobs.put(blobId, Boolean.TRUE);
+          }
+        }
+        if (blob.refreshing == load) {
+          blob.refreshing = null;
+        }
+      }
+      load.complete(loaded ? blobAttributes : null);
+    }
+    catch (Exception e) {
+      synchronized (blob) {
+        if (blob.refreshing == load) {
+          blob.refreshing = null;
+        }
+      }
+      load.completeExceptionally(e);
+    }
+  }
+
+  @Nullable
+  private static S3BlobAttributes awaitLoad(final BlobId blobId, final CompletableFuture<S3BlobAttributes> load) {
+    try {
+      return load.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BlobStoreException("Interrupted loading attributes", e, blobId);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new BlobStoreException(e.getCause(), blobId);
+    }
+  }
+
   @Override
   @Guarded(by = STARTED)
   public boolean delete(final BlobId blobId, String reason) {
     checkNotNull(blobId);
 
+    S3BlobAttributes blobAttributes = markDeleted(blobId, reason);
+    if (blobAttributes == null) {
+      return false;
+    }
+    try {
+      tagDeleted(blobId, blobAttributes);
+    }
+    catch (Exception e) {
+      throw new BlobStoreException(e, blobId);
+    }
+    return true;
+  }
+
+  /**
+   * Soft deletes the given blobs, see {@link #delete(Stream, String)}.
+   */
+  @Guarded(by = STARTED)
+  public S3DeleteResult delete(final Collection<BlobId> blobIds, final String reason) {
+    checkNotNull(blobIds);
+    return delete(blobIds.stream(), reason);
+  }
+
+  /**
+   * Soft deletes the blobs of the given stream, working on up to {@link #BATCH_CONCURRENCY_KEY} blobs at a time.
+   * Each blob is locked only while its attributes are rewritten, its content is tagged as a separate step afterwards.
+   */
+  @Guarded(by = STARTED)
+  public S3DeleteResult delete(final Stream<BlobId> blobIds, final String reason) {
+    checkNotNull(blobIds);
+    S3DeleteResult result = new S3DeleteResult();
+    S3BatchProgress progress = new S3BatchProgress(log, "Soft delete", getConfiguredBucket());
+    // bounds the blobs in flight so a long stream is not queued up all at once
+    int permits = batchConcurrency * 2;
+    Semaphore inFlight = new Semaphore(permits);
+    try {
+      blobIds.forEach(blobId -> {
+        inFlight.acquireUninterruptibly();
+        CompletableFuture<S3BlobAttributes> marked;
+        try {
+          marked = CompletableFuture.supplyAsync(() -> markDeleted(blobId, reason), batchExecutor);
+        }
+        catch (RuntimeException e) {
+          inFlight.release();
+          throw e;
+        }
+        marked
+            .thenAcceptAsync(blobAttributes -> {
+              if (blobAttributes != null) {
+                tagDeleted(blobId, blobAttributes);
+                result.recordDeleted();
+              }
+              else {
+                result.recordSkipped();
+              }
+            }, batchExecutor)
+            .whenComplete((ignored, e) -> {
+              if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                log.debug("Unable to soft delete blob {}", blobId, cause);
+                result.recordFailure(blobId, String.valueOf(cause.getMessage()));
+              }
+              progress.increment();
+              inFlight.release();
+            });
+      });
+    }
+    finally {
+      // wait for the blobs still in flight
+      inFlight.acquireUninterruptibly(permits);
+    }
+    progress.finish(result);
+    return result;
+  }
+
+  /**
+   * Marks the attributes of the given blob deleted, holding its lock only for that. Returns {@code null} if the blob
+   * does not exist or was already deleted.
+   */
+  @Nullable
+  private S3BlobAttributes markDeleted(final BlobId blobId, final String reason) {
     final S3Blob blob = liveBlobs.getUnchecked(blobId);
 
     Lock lock = blob.lock();
     try {
       log.debug("Soft deleting blob {}", blobId);
 
-      S3BlobAttributes blobAttributes = new S3BlobAttributes(s3, getConfiguredBucket(), attributePath(blobId).toString());
+      S3BlobAttributes blobAttributes = newBlobAttributes(blobId);
 
       boolean loaded = blobAttributes.load();
       if (!loaded) {
         // This could happen under some concurrent situations (two threads try to delete the same blob)
         // but it can also occur if the deleted index refers to a manually-deleted blob.
         log.warn("Attempt to mark-for-delete non-existent blob {}", blobId);
-        return false;
+        return null;
       }
       else if (blobAttributes.isDeleted()) {
         log.debug("Attempt to delete already-deleted blob {}", blobId);
-        return false;
+        return null;
       }
 
       blobAttributes.setDeleted(true);
       blobAttributes.setDeletedReason(reason);
       blobAttributes.store();
 
-      // set "deleted=true" tag on the object, let S3 take care of deleting the blob after it expires
-      s3.setObjectTagging(
-          new SetObjectTaggingRequest(
-              getConfiguredBucket(),
-              contentPath(blobId),
-              new ObjectTagging(Arrays.asList(DELETED_TAG))
-          )
-      );
       blob.markStale();
+      attributesCache.invalidate(blobId);
+      invalidateCachedContent(blobId);
 
-      return true;
+      return blobAttributes;
     }
     catch (Exception e) {
       throw new BlobStoreException(e, blobId);
@@ -362,6 +1261,37 @@ public class S3BlobStore
     }
   }
 
+  /**
+   * Sets the "deleted=true" tag on the content of the given blob, and on its .properties object if it has one, letting
+   * S3 delete them once they expire. Deduplicated content is left alone, its reference is tagged instead.
+   */
+  private void tagDeleted(final BlobId blobId, final S3BlobAttributes blobAttributes) {
+    for (String key : blobKeys(blobId, blobAttributes)) {
+      s3.setObjectTagging(
+          new SetObjectTaggingRequest(
+              getConfiguredBucket(),
+              key,
+              new ObjectTagging(Arrays.asList(DELETED_TAG))
+          )
+      );
+    }
+  }
+
+  /**
+   * Returns the keys of the objects of the given blob, as far as the given loaded attributes tell.
+   */
+  private List<String> blobKeys(final BlobId blobId, final S3BlobAttributes blobAttributes) {
+    String contentRef = blobAttributes.getContentRef();
+    if (contentRef != null) {
+      return Arrays.asList(dedupRefPath(contentRef, blobId), attributePath(blobId));
+    }
+    boolean inMetadata = blobAttributes instanceof S3MetadataBlobAttributes
+        && ((S3MetadataBlobAttributes) blobAttributes).isInMetadata();
+    return inMetadata
+        ? Collections.singletonList(contentPath(blobId))
+        : Arrays.asList(contentPath(blobId), attributePath(blobId));
+  }
+
   @Override
   @Guarded(by = STARTED)
   public boolean deleteHard(final BlobId blobId) {
@@ -370,14 +1300,23 @@ public class S3BlobStore
     try {
       log.debug("Hard deleting blob {}", blobId);
 
-      String attributePath = attributePath(blobId);
-      S3BlobAttributes blobAttributes = new S3BlobAttributes(s3, getConfiguredBucket(), attributePath);
+      S3BlobAttributes blobAttributes = newBlobAttributes(blobId);
       Long contentSize = getContentSizeForDeletion(blobAttributes);
+      if (contentSize == null && resolveLegacyTemporary(blobId)) {
+        blobAttributes = newBlobAttributes(blobId);
+        contentSize = getContentSizeForDeletion(blobAttributes);
+      }
+      String attributePath = attributePath(blobId);
 
-      String blobPath = contentPath(blobId);
+      // deduplicated content stays until no blob refers to it
+      String contentRef = blobAttributes.getContentRef();
+      String blobPath = contentRef != null ? dedupRefPath(contentRef, blobId) : contentPath(blobId);
 
       boolean blobDeleted = delete(blobPath);
       delete(attributePath);
+      if (contentRef != null) {
+        releaseContent(contentRef);
+      }
 
       if (blobDeleted && contentSize != null) {
         storeMetrics.recordDeletion(contentSize);
@@ -390,6 +1329,113 @@ public class S3BlobStore
     }
     finally {
       liveBlobs.invalidate(blobId);
+      attributesCache.invalidate(blobId);
+      invalidateCachedContent(blobId);
+      legacyTemporaryBlobs.remove(blobId);
+    }
+  }
+
+  /**
+   * Hard deletes the given blobs with multi-object deletes of up to {@link S3BatchDeleter#MAX_KEYS_PER_REQUEST} keys,
+   * rather than the separate requests {@link #deleteHard(BlobId)} makes for each blob.
+   */
+  @Guarded(by = STARTED)
+  public S3DeleteResult deleteHard(final Collection<BlobId> blobIds) {
+    checkNotNull(blobIds);
+    return deleteHard(blobIds.stream());
+  }
+
+  /**
+   * Hard deletes the blobs of the given stream, see {@link #deleteHard(Collection)}.
+   */
+  @Guarded(by = STARTED)
+  public S3DeleteResult deleteHard(final Stream<BlobId> blobIds) {
+    checkNotNull(blobIds);
+    S3DeleteResult result = new S3DeleteResult();
+    // each blob has a content and an attribute key
+    Iterators.partition(blobIds.iterator(), S3BatchDeleter.MAX_KEYS_PER_REQUEST / 2)
+        .forEachRemaining(batch -> deleteHard(batch, result));
+    log.debug("Hard deleted blobs from bucket {}: {}", getConfiguredBucket(), result);
+    return result;
+  }
+
+  private void deleteHard(final List<BlobId> blobIds, final S3DeleteResult result) {
+    // sizes for the store metrics, and any deduplicated content, are only known from the attributes, so read them all
+    // concurrently up front
+    Map<BlobId, Future<S3BlobAttributes>> loads = new LinkedHashMap<>();
+    for (BlobId blobId : blobIds) {
+      loads.put(blobId, batchExecutor.submit(() -> {
+        S3BlobAttributes blobAttributes = newBlobAttributes(blobId);
+        if (getContentSizeForDeletion(blobAttributes) == null && resolveLegacyTemporary(blobId)) {
+          blobAttributes = newBlobAttributes(blobId);
+          getContentSizeForDeletion(blobAttributes);
+        }
+        return blobAttributes;
+      }));
+    }
+    Map<BlobId, S3BlobAttributes> blobs = new LinkedHashMap<>();
+    for (Entry<BlobId, Future<S3BlobAttributes>> load : loads.entrySet()) {
+      blobs.put(load.getKey(), awaitAttributes(load.getValue()));
+    }
+    try {
+      deleteHard(blobs, result);
+    }
+    finally {
+      blobIds.forEach(legacyTemporaryBlobs::remove);
+    }
+  }
+
+  /**
+   * Hard deletes the given blobs in one multi-object delete, recording the deletion of those with a known size in the
+   * store metrics. Attributes that could not be loaded are {@code null}, or have no metrics.
+   */
+  private void deleteHard(final Map<BlobId, S3BlobAttributes> blobs, final S3DeleteResult result) {
+    Map<String, BlobId> keys = new LinkedHashMap<>();
+    Map<BlobId, String> primaryKeys = new LinkedHashMap<>();
+    for (Entry<BlobId, S3BlobAttributes> blob : blobs.entrySet()) {
+      BlobId blobId = blob.getKey();
+      String contentRef = blob.getValue() != null ? blob.getValue().getContentRef() : null;
+      // deduplicated content stays until no blob refers to it, deleting the reference stands in for it
+      String primaryKey = contentRef != null ? dedupRefPath(contentRef, blobId) : contentPath(blobId);
+      primaryKeys.put(blobId, primaryKey);
+      keys.put(primaryKey, blobId);
+      keys.put(attributePath(blobId), blobId);
+    }
+    Map<String, String> errors = batchDeleter.delete(keys.keySet());
+    errors.forEach((key, error) -> result.recordFailure(keys.get(key), key + " " + error));
+
+    Set<String> released = new HashSet<>();
+    for (Entry<BlobId, S3BlobAttributes> blob : blobs.entrySet()) {
+      BlobId blobId = blob.getKey();
+      S3BlobAttributes blobAttributes = blob.getValue();
+      if (!errors.containsKey(primaryKeys.get(blobId))) {
+        result.recordDeleted();
+        if (blobAttributes != null && blobAttributes.getMetrics() != null) {
+          storeMetrics.recordDeletion(blobAttributes.getMetrics().getContentSize());
+        }
+        if (blobAttributes != null && blobAttributes.getContentRef() != null) {
+          released.add(blobAttributes.getContentRef());
+        }
+      }
+      liveBlobs.invalidate(blobId);
+      attributesCache.invalidate(blobId);
+      invalidateCachedContent(blobId);
+    }
+    released.forEach(this::releaseContent);
+  }
+
+  @Nullable
+  private static S3BlobAttributes awaitAttributes(final Future<S3BlobAttributes> blobAttributes) {
+    try {
+      return blobAttributes.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BlobStoreException("Interrupted reading blob sizes for deletion", e, null);
+    }
+    catch (ExecutionException e) {
+      // attributes are read leniently, failures are already logged
+      return null;
     }
   }
 
@@ -411,16 +1457,408 @@ public class S3BlobStore
     return storeMetrics.getMetrics();
   }
 
+  /**
+   * Recomputes blob count and total size from a listing of the bucket, replacing the counters of all nodes with them.
+   */
+  @Guarded(by = STARTED)
+  public BlobStoreMetrics reconcileMetrics() throws IOException {
+    return storeMetrics.reconcile(this::listMetrics);
+  }
+
+  /**
+   * Totals the size of all content objects but those of temporary blobs, using nothing but the sizes a parallel
+   * listing reports. Deduplicated content is added up for each of its references.
+   */
+  private BlobStoreMetrics listMetrics() {
+    LongAdder blobCount = new LongAdder();
+    LongAdder totalSize = new LongAdder();
+    // a pool of its own keeps the listing requests off the common pool
+    ForkJoinPool pool = new ForkJoinPool(batchConcurrency);
+    try {
+      pool.submit(() -> blobLister().list(CONTENT_PREFIX + "/", CONTENT_PREFIX_DEPTH)
+          .parallel()
+          .filter(summary -> isPermanentContent(summary.getKey()))
+          .forEach(summary -> {
+            blobCount.increment();
+            totalSize.add(summary.getSize());
+          })).get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BlobStoreException("Interrupted while listing bucket " + getConfiguredBucket(), e, null);
+    }
+    catch (ExecutionException e) {
+      throw new BlobStoreException("Unable to list bucket " + getConfiguredBucket(), e.getCause(), null);
+    }
+    finally {
+      pool.shutdown();
+    }
+    if (deduplication) {
+      // deduplicated content counts once for every blob referring to it
+      String contentRef = null;
+      long contentSize = 0;
+      try (Stream<S3ObjectSummary> summaries = blobLister().list(DEDUP_PREFIX + "/", 0)) {
+        Iterator<S3ObjectSummary> iterator = summaries.iterator();
+        while (iterator.hasNext()) {
+          S3ObjectSummary summary = iterator.next();
+          String key = summary.getKey();
+          if (key.endsWith(BLOB_CONTENT_SUFFIX)) {
+            contentRef = key.substring(DEDUP_PREFIX.length() + 1, key.length() - BLOB_CONTENT_SUFFIX.length());
+            contentSize = summary.getSize();
+          }
+          else if (contentRef != null && key.startsWith(dedupRefsPrefix(contentRef))) {
+            blobCount.increment();
+            totalSize.add(contentSize);
+          }
+        }
+      }
+    }
+    AccumulatingBlobStoreMetrics metrics = new AccumulatingBlobStoreMetrics(0, 0, -1, true);
+    metrics.addBlobCount(blobCount.sum());
+    metrics.addTotalSize(totalSize.sum());
+    return metrics;
+  }
+
+  private static boolean isPermanentContent(final String key) {
+    // temporary blobs written before they moved to TEMPORARY_PREFIX may still sit among permanent content
+    return key.endsWith(BLOB_CONTENT_SUFFIX)
+        && !key.substring(key.lastIndexOf('/') + 1).startsWith(TEMPORARY_BLOB_ID_PREFIX);
+  }
+
+  /**
+   * Deletes .properties objects left without content, such as those of soft deleted blobs whose content expired
+   * before their attributes were tagged for expiry too.
+   *
+   * The listing is walked one directory at a time, an attribute key without a content key in the same directory
+   * being confirmed orphaned with a HEAD before it is deleted in a multi-object delete.
+   */
+  @Guarded(by = STARTED)
+  public S3DeleteResult purgeOrphanedAttributes() {
+    S3DeleteResult result = new S3DeleteResult();
+    S3BatchProgress progress = new S3BatchProgress(log, "Orphaned attributes purge", getConfiguredBucket());
+    List<String> candidates = new ArrayList<>();
+    try (Stream<S3ObjectSummary> summaries = blobLister().list(CONTENT_PREFIX + "/", CONTENT_PREFIX_DEPTH)) {
+      String directory = null;
+      Set<String> contentLocations = new HashSet<>();
+      List<String> attributeLocations = new ArrayList<>();
+      Iterator<S3ObjectSummary> iterator = summaries.iterator();
+      while (iterator.hasNext()) {
+        String key = iterator.next().getKey();
+        String keyDirectory = key.substring(0, key.lastIndexOf('/') + 1);
+        if (!keyDirectory.equals(directory)) {
+          collectOrphans(attributeLocations, contentLocations, candidates);
+          directory = keyDirectory;
+        }
+        if (key.endsWith(BLOB_CONTENT_SUFFIX)) {
+          contentLocations.add(key.substring(0, key.length() - BLOB_CONTENT_SUFFIX.length()));
+        }
+        else if (key.endsWith(BLOB_ATTRIBUTE_SUFFIX)) {
+          progress.increment();
+          attributeLocations.add(key.substring(0, key.length() - BLOB_ATTRIBUTE_SUFFIX.length()));
+        }
+        if (candidates.size() >= S3BatchDeleter.MAX_KEYS_PER_REQUEST) {
+          purgeOrphans(candidates, result);
+        }
+      }
+      collectOrphans(attributeLocations, contentLocations, candidates);
+      purgeOrphans(candidates, result);
+    }
+    progress.finish(result);
+    return result;
+  }
+
+  private static void collectOrphans(final List<String> attributeLocations,
+                                     final Set<String> contentLocations,
+                                     final List<String> candidates)
+  {
+    for (String location : attributeLocations) {
+      if (!contentLocations.contains(location)) {
+        candidates.add(location);
+      }
+    }
+    attributeLocations.clear();
+    contentLocations.clear();
+  }
+
+  /**
+   * Returns whether the blob at the given location has content, which if deduplicated is only known from its
+   * attributes.
+   */
+  private boolean hasContent(final String location) throws IOException {
+    if (deduplication) {
+      S3BlobAttributes blobAttributes =
+          new S3BlobAttributes(s3, getConfiguredBucket(), location + BLOB_ATTRIBUTE_SUFFIX);
+      if (blobAttributes.load() && blobAttributes.getContentRef() != null) {
+        return s3.doesObjectExist(getConfiguredBucket(), dedupContentPath(blobAttributes.getContentRef()));
+      }
+    }
+    return s3.doesObjectExist(getConfiguredBucket(), location + BLOB_CONTENT_SUFFIX);
+  }
+
+  /**
+   * Deletes the .properties objects of the given locations whose content does not exist, clearing the list.
+   */
+  private void purgeOrphans(final List<String> locations, final S3DeleteResult result) {
+    if (locations.isEmpty()) {
+      return;
+    }
+    // content may sit in another listed directory, or have been written since it was listed
+    Map<String, Future<Boolean>> contentExists = new LinkedHashMap<>();
+    for (String location : locations) {
+      contentExists.put(location, batchExecutor.submit(() -> hasContent(location)));
+    }
+    Map<String, BlobId> orphans = new LinkedHashMap<>();
+    for (Entry<String, Future<Boolean>> exists : contentExists.entrySet()) {
+      String attributePath = exists.getKey() + BLOB_ATTRIBUTE_SUFFIX;
+      BlobId blobId = attributePathToBlobId(attributePath);
+      try {
+        if (exists.getValue().get()) {
+          result.recordSkipped();
+        }
+        else {
+          orphans.put(attributePath, blobId);
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new BlobStoreException("Interrupted purging orphaned attributes", e, blobId);
+      }
+      catch (ExecutionException e) {
+        result.recordFailure(blobId, String.valueOf(e.getCause().getMessage()));
+      }
+    }
+    locations.clear();
+
+    Map<String, String> errors = batchDeleter.delete(orphans.keySet());
+    orphans.forEach((key, blobId) -> {
+      if (errors.containsKey(key)) {
+        result.recordFailure(blobId, key + " " + errors.get(key));
+      }
+      else {
+        log.debug("Deleted orphaned attributes {}", key);
+        result.recordDeleted();
+        liveBlobs.invalidate(blobId);
+        attributesCache.invalidate(blobId);
+        invalidateCachedContent(blobId);
+      }
+    });
+  }
+
+  /**
+   * Returns hit, miss and eviction counts of the blob attributes cache.
+   */
+  @Guarded(by = STARTED)
+  public CacheStats getAttributesCacheStats() {
+    return attributesCache.stats();
+  }
+
+  /**
+   * Returns the local cache of blob content, or {@code null} if it is disabled.
+   */
+  @Nullable
+  @Guarded(by = STARTED)
+  public S3ContentCache getContentCache() {
+    return contentCache;
+  }
+
+  /**
+   * Returns the coalescing of concurrent content reads, or {@code null} if it is disabled.
+   */
+  @Nullable
+  @Guarded(by = STARTED)
+  public S3ReadCoalescer getReadCoalescer() {
+    return readCoalescer;
+  }
+
+  /**
+   * Returns the connection pool usage of the client, which is shared with blob stores using the same client settings.
+   */
+  @Nullable
+  public S3ClientMetrics getClientMetrics() {
+    return s3 != null ? amazonS3Factory.getMetrics(s3) : null;
+  }
+
+  /**
+   * Returns hit and miss counts of the cache of blobs found missing.
+   */
+  @Guarded(by = STARTED)
+  public CacheStats getMissingBlobCacheStats() {
+    return missingBlobs.stats();
+  }
+
+  /**
+   * Returns whether the given blob is known not to exist, without asking S3. The filter only vouches for blobs it is
+   * populated with, which leaves out temporary and direct path blobs, and only while no other node shares the bucket.
+   */
+  private boolean isKnownMissing(final BlobId blobId) {
+    if (missingBlobs.getIfPresent(blobId) != null) {
+      return true;
+    }
+    S3BlobIdFilter filter = blobIdFilter;
+    if (filter == null || !isFiltered(blobId) || storeMetrics.hasOtherNodes() || filter.mightContain(blobId)) {
+      return false;
+    }
+    // a node may have joined since other nodes were last looked for, so confirm the absence before trusting it
+    try {
+      if (blobObjectsExist(blobId)) {
+        log.debug("Blob {} absent from the filter exists, it was written by another node", blobId);
+        filter.put(blobId);
+        return false;
+      }
+    }
+    catch (Exception e) {
+      log.debug("Unable to confirm blob {} is missing", blobId, e);
+      return false;
+    }
+    missingBlobs.put(blobId, Boolean.TRUE);
+    return true;
+  }
+
+  /**
+   * Asks S3 with HEAD requests whether any object of the given blob exists, its attributes being held by its
+   * .properties object or, when attributes are stored in object metadata, possibly by its content object instead.
+   */
+  private boolean blobObjectsExist(final BlobId blobId) {
+    return (attributesInMetadata && s3.doesObjectExist(getConfiguredBucket(), contentPath(blobId)))
+        || s3.doesObjectExist(getConfiguredBucket(), attributePath(blobId));
+  }
+
+  private boolean isFiltered(final BlobId blobId) {
+    return !isTemporary(blobId) && !getLocation(blobId).startsWith(DIRECT_PATH_PREFIX + "/");
+  }
+
+  private void markExisting(final BlobId blobId) {
+    S3BlobIdFilter filter = blobIdFilter;
+    if (filter != null) {
+      filter.put(blobId);
+    }
+    missingBlobs.invalidate(blobId);
+  }
+
+  private void invalidateCachedContent(final BlobId blobId) {
+    if (contentCache != null) {
+      contentCache.invalidate(blobId);
+    }
+  }
+
+  /**
+   * Returns the pool staging upload parts off-heap, for monitoring its occupancy.
+   */
+  @Guarded(by = STARTED)
+  public S3PartBufferPool getPartBufferPool() {
+    return uploader.getBufferPool();
+  }
+
   @Override
   @Guarded(by = STARTED)
   public synchronized void compact() {
     compact(null);
   }
 
+  /**
+   * Hard deletes soft deleted blobs ahead of their expiry, restoring those the given checker finds still in use.
+   * Attributes are loaded a page of blobs at a time with up to {@link #BATCH_CONCURRENCY_KEY} requests in flight, all
+   * requests together being held to {@link #COMPACT_REQUEST_RATE_KEY}.
+   */
   @Override
   @Guarded(by = STARTED)
   public synchronized void compact(@Nullable final BlobStoreUsageChecker inUseChecker) {
-      // no-op
+    RateLimiter rateLimiter =
+        RateLimiter.create(getConfiguredInt(COMPACT_REQUEST_RATE_KEY, DEFAULT_COMPACT_REQUEST_RATE));
+    S3BatchProgress progress = new S3BatchProgress(log, "Compact", getConfiguredBucket());
+    S3DeleteResult result = new S3DeleteResult();
+    try (Stream<BlobId> blobIds = getBlobIdStream()) {
+      // each blob has a content and an attribute key
+      Iterators.partition(blobIds.iterator(), S3BatchDeleter.MAX_KEYS_PER_REQUEST / 2)
+          .forEachRemaining(page -> compact(page, inUseChecker, rateLimiter, progress, result));
+    }
+    if (deduplication) {
+      releaseUnreferencedContent(rateLimiter);
+    }
+    // blobs found in use are counted as skipped
+    progress.finish(result);
+  }
+
+  private void compact(final List<BlobId> page,
+                       @Nullable final BlobStoreUsageChecker inUseChecker,
+                       final RateLimiter rateLimiter,
+                       final S3BatchProgress progress,
+                       final S3DeleteResult result)
+  {
+    Map<BlobId, Future<S3BlobAttributes>> loads = new LinkedHashMap<>();
+    for (BlobId blobId : page) {
+      loads.put(blobId, batchExecutor.submit(() -> {
+        rateLimiter.acquire();
+        S3BlobAttributes blobAttributes = newBlobAttributes(blobId);
+        return blobAttributes.load() ? blobAttributes : null;
+      }));
+    }
+
+    Map<BlobId, S3BlobAttributes> deleted = new LinkedHashMap<>();
+    for (Entry<BlobId, Future<S3BlobAttributes>> load : loads.entrySet()) {
+      BlobId blobId = load.getKey();
+      progress.increment();
+      try {
+        S3BlobAttributes blobAttributes = load.getValue().get();
+        if (blobAttributes == null || !blobAttributes.isDeleted()) {
+          continue;
+        }
+        String blobName = blobAttributes.getHeaders().get(BLOB_NAME_HEADER);
+        if (inUseChecker != null && inUseChecker.test(this, blobId, blobName)) {
+          // rewriting the attributes and removing the tag
+          rateLimiter.acquire(2);
+          undelete(blobId);
+          result.recordSkipped();
+        }
+        else {
+          deleted.put(blobId, blobAttributes);
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new BlobStoreException("Interrupted compacting bucket " + getConfiguredBucket(), e, blobId);
+      }
+      catch (ExecutionException e) {
+        log.debug("Unable to load attributes of blob {} for compaction", blobId, e.getCause());
+        result.recordFailure(blobId, String.valueOf(e.getCause().getMessage()));
+      }
+      catch (Exception e) {
+        log.debug("Unable to restore blob {} during compaction", blobId, e);
+        result.recordFailure(blobId, String.valueOf(e.getMessage()));
+      }
+    }
+
+    if (!deleted.isEmpty()) {
+      rateLimiter.acquire();
+      deleteHard(deleted, result);
+    }
+  }
+
+  /**
+   * Clears the soft deletion of the given blob, unless someone else already did.
+   */
+  private void undelete(final BlobId blobId) throws IOException {
+    S3Blob blob = liveBlobs.getUnchecked(blobId);
+    Lock lock = blob.lock();
+    try {
+      S3BlobAttributes blobAttributes = newBlobAttributes(blobId);
+      if (!blobAttributes.load() || !blobAttributes.isDeleted()) {
+        return;
+      }
+      log.debug("Restoring soft deleted blob {} which is still in use", blobId);
+      blobAttributes.setDeleted(false);
+      blobAttributes.setDeletedReason(null);
+      // with attributes in metadata this copies the content, so only remove the tags afterwards
+      blobAttributes.store();
+      for (String key : blobKeys(blobId, blobAttributes)) {
+        s3.deleteObjectTagging(new DeleteObjectTaggingRequest(getConfiguredBucket(), key));
+      }
+      blob.markStale();
+      attributesCache.invalidate(blobId);
+    }
+    finally {
+      lock.unlock();
+    }
   }
 
   @Override
@@ -432,20 +1870,21 @@ public class S3BlobStore
   public void init(final BlobStoreConfiguration configuration) {
     this.blobStoreConfiguration = configuration;
     try {
+      if (s3 != null) {
+        // re-initialized with a new configuration, which may need a different client
+        amazonS3Factory.release(s3);
+      }
       this.s3 = amazonS3Factory.create(configuration);
+      // temporary blobs expire whether or not soft-deleted blobs do
       if (!s3.doesBucketExist(getConfiguredBucket())) {
         s3.createBucket(getConfiguredBucket());
-
-        if (getConfiguredExpirationInDays()>=0) {
-          addBucketLifecycleConfiguration(null);
-        }
+        addBucketLifecycleConfiguration(null);
       } else {
-        if (getConfiguredExpirationInDays()>=0) {
-          // bucket exists, we should test that the correct lifecycle config is present
-          BucketLifecycleConfiguration lifecycleConfiguration = s3.getBucketLifecycleConfiguration(getConfiguredBucket());
-          if (!isExpirationLifecycleConfigurationPresent(lifecycleConfiguration)) {
-            addBucketLifecycleConfiguration(lifecycleConfiguration);
-          }
+        // bucket exists, we should test that the correct lifecycle config is present
+        BucketLifecycleConfiguration lifecycleConfiguration = s3.getBucketLifecycleConfiguration(getConfiguredBucket());
+        if (!isExpirationLifecycleConfigurationPresent(lifecycleConfiguration) ||
+            !isTemporaryLifecycleConfigurationPresent(lifecycleConfiguration)) {
+          addBucketLifecycleConfiguration(lifecycleConfiguration);
         }
       }
 
@@ -456,35 +1895,83 @@ public class S3BlobStore
     }
   }
 
+  /**
+   * Whether soft-deleted blobs expire as configured, always so if they are not meant to expire.
+   */
   boolean isExpirationLifecycleConfigurationPresent(BucketLifecycleConfiguration lifecycleConfiguration) {
+    if (getConfiguredExpirationInDays() < 0) {
+      return true;
+    }
     return lifecycleConfiguration != null &&
         lifecycleConfiguration.getRules() != null &&
         lifecycleConfiguration.getRules().stream()
-        .filter(r -> r.getExpirationInDays() == getConfiguredExpirationInDays())
-        .filter(r -> {
-          LifecycleFilterPredicate predicate = r.getFilter().getPredicate();
-          if (predicate instanceof LifecycleTagPredicate) {
-            LifecycleTagPredicate tagPredicate = (LifecycleTagPredicate) predicate;
-            return DELETED_TAG.equals(tagPredicate.getTag());
-          }
-          return false;
-        })
-        .findAny().isPresent();
+        .anyMatch(r -> isExpirationRule(r, getConfiguredExpirationInDays()));
+  }
+
+  boolean isTemporaryLifecycleConfigurationPresent(BucketLifecycleConfiguration lifecycleConfiguration) {
+    return lifecycleConfiguration != null &&
+        lifecycleConfiguration.getRules() != null &&
+        lifecycleConfiguration.getRules().stream().anyMatch(S3BlobStore::isTemporaryRule);
+  }
+
+  private static boolean isExpirationRule(final BucketLifecycleConfiguration.Rule rule, final int expirationInDays) {
+    if (rule.getExpirationInDays() != expirationInDays || rule.getFilter() == null) {
+      return false;
+    }
+    LifecycleFilterPredicate predicate = rule.getFilter().getPredicate();
+    if (predicate instanceof LifecycleTagPredicate) {
+      LifecycleTagPredicate tagPredicate = (LifecycleTagPredicate) predicate;
+      return DELETED_TAG.equals(tagPredicate.getTag());
+    }
+    return false;
   }
 
+  private static boolean isTemporaryRule(final BucketLifecycleConfiguration.Rule rule) {
+    if (rule.getExpirationInDays() != TEMPORARY_EXPIRATION_IN_DAYS || rule.getFilter() == null) {
+      return false;
+    }
+    LifecycleFilterPredicate predicate = rule.getFilter().getPredicate();
+    return predicate instanceof LifecyclePrefixPredicate &&
+        (TEMPORARY_PREFIX + "/").equals(((LifecyclePrefixPredicate) predicate).getPrefix());
+  }
+
+  /**
+   * Adds whichever of the rules expiring soft-deleted and temporary blobs are missing from the given configuration,
+   * replacing outdated rules of the same id. Soft-deleted blobs are left alone if the expiration is negative.
+   */
   BucketLifecycleConfiguration makeLifecycleConfiguration(BucketLifecycleConfiguration existing, int expirationInDays) {
-    BucketLifecycleConfiguration.Rule rule = new BucketLifecycleConfiguration.Rule()
-        .withId(LIFECYCLE_EXPIRATION_RULE_ID)
-        .withFilter(new LifecycleFilter(
-            new LifecycleTagPredicate(DELETED_TAG)))
-        .withExpirationInDays(expirationInDays)
-        .withStatus(BucketLifecycleConfiguration.ENABLED.toString());
+    List<BucketLifecycleConfiguration.Rule> rules = new ArrayList<>();
+    if (existing != null && existing.getRules() != null) {
+      rules.addAll(existing.getRules());
+    }
+
+    if (expirationInDays >= 0 && rules.stream().noneMatch(r -> isExpirationRule(r, expirationInDays))) {
+      rules.removeIf(r -> LIFECYCLE_EXPIRATION_RULE_ID.equals(r.getId()));
+      rules.add(new BucketLifecycleConfiguration.Rule()
+          .withId(LIFECYCLE_EXPIRATION_RULE_ID)
+          .withFilter(new LifecycleFilter(
+              new LifecycleTagPredicate(DELETED_TAG)))
+          .withExpirationInDays(expirationInDays)
+          .withStatus(BucketLifecycleConfiguration.ENABLED.toString()));
+    }
+
+    if (rules.stream().noneMatch(S3BlobStore::isTemporaryRule)) {
+      rules.removeIf(r -> LIFECYCLE_TEMPORARY_RULE_ID.equals(r.getId()));
+      rules.add(new BucketLifecycleConfiguration.Rule()
+          .withId(LIFECYCLE_TEMPORARY_RULE_ID)
+          .withFilter(new LifecycleFilter(
+              new LifecyclePrefixPredicate(TEMPORARY_PREFIX + "/")))
+          .withExpirationInDays(TEMPORARY_EXPIRATION_IN_DAYS)
+          .withAbortIncompleteMultipartUpload(
+              new AbortIncompleteMultipartUpload().withDaysAfterInitiation(TEMPORARY_EXPIRATION_IN_DAYS))
+          .withStatus(BucketLifecycleConfiguration.ENABLED.toString()));
+    }
 
     if (existing != null) {
-      existing.getRules().add(rule);
+      existing.setRules(rules);
       return existing;
     } else {
-      return new BucketLifecycleConfiguration().withRules(rule);
+      return new BucketLifecycleConfiguration().withRules(rules);
     }
   }
 
@@ -494,6 +1981,22 @@ public class S3BlobStore
         makeLifecycleConfiguration(lifecycleConfiguration, getConfiguredExpirationInDays()));
   }
 
+  private void deleteTemporaryBlobs() {
+    S3BatchDeleter deleter = new S3BatchDeleter(s3, getConfiguredBucket());
+    ListObjectsRequest request = new ListObjectsRequest()
+        .withBucketName(getConfiguredBucket())
+        .withPrefix(TEMPORARY_PREFIX + "/");
+    ObjectListing listing;
+    do {
+      listing = s3.listObjects(request);
+      List<String> keys = new ArrayList<>();
+      listing.getObjectSummaries().forEach(summary -> keys.add(summary.getKey()));
+      deleter.delete(keys).forEach((key, error) -> log.warn("Unable to delete temporary blob {}: {}", key, error));
+      request.setMarker(listing.getNextMarker());
+    }
+    while (listing.isTruncated());
+  }
+
   private boolean delete(final String path) throws IOException {
     s3.deleteObject(getConfiguredBucket(), path);
     // note: no info returned from s3
@@ -513,9 +2016,32 @@ public class S3BlobStore
   }
 
   private int getConfiguredExpirationInDays() {
-    return Integer.parseInt(
-        blobStoreConfiguration.attributes(CONFIG_KEY).get(EXPIRATION_KEY, DEFAULT_EXPIRATION_IN_DAYS).toString()
-    );
+    return getConfiguredInt(EXPIRATION_KEY, DEFAULT_EXPIRATION_IN_DAYS);
+  }
+
+  private Path getConfiguredContentCacheDirectory() {
+    String directory = blobStoreConfiguration.attributes(CONFIG_KEY).get(CONTENT_CACHE_DIRECTORY_KEY, "").toString();
+    if (!directory.trim().isEmpty()) {
+      return Paths.get(directory.trim());
+    }
+    return Paths.get(System.getProperty("java.io.tmpdir"), "s3-blobstore-cache");
+  }
+
+  private Path getConfiguredReadCoalescingDirectory() {
+    String directory =
+        blobStoreConfiguration.attributes(CONFIG_KEY).get(READ_COALESCING_DIRECTORY_KEY, "").toString();
+    if (!directory.trim().isEmpty()) {
+      return Paths.get(directory.trim());
+    }
+    return Paths.get(System.getProperty("java.io.tmpdir"));
+  }
+
+  private int getConfiguredInt(final String key, final int defaultValue) {
+    return Integer.parseInt(blobStoreConfiguration.attributes(CONFIG_KEY).get(key, defaultValue).toString());
+  }
+
+  private static long megabytes(final int megabytes) {
+    return megabytes * 1024L * 1024L;
   }
 
   /**
@@ -527,6 +2053,8 @@ public class S3BlobStore
     try {
       boolean contentEmpty = s3.listObjects(getConfiguredBucket(), CONTENT_PREFIX + "/").getObjectSummaries().isEmpty();
       if (contentEmpty) {
+        // temporary blobs are disposable, but would keep the bucket from being deleted until they expire
+        deleteTemporaryBlobs();
         S3PropertiesFile metadata = new S3PropertiesFile(s3, getConfiguredBucket(), METADATA_FILENAME);
         metadata.remove();
         storeMetrics.remove();
@@ -547,55 +2075,245 @@ public class S3BlobStore
     catch (IOException e) {
       throw new BlobStoreException(e, null);
     }
+    finally {
+      amazonS3Factory.release(s3);
+      s3 = null;
+    }
+  }
+
+  /**
+   * Attributes held by the attribute cache, along with when they were last known to match S3.
+   */
+  private static class CachedAttributes
+  {
+    private final S3BlobAttributes attributes;
+
+    private final long validatedAt = System.nanoTime();
+
+    CachedAttributes(final S3BlobAttributes attributes) {
+      this.attributes = checkNotNull(attributes);
+    }
   }
 
   class S3Blob
       extends BlobSupport
+      implements RangedBlob, RedirectableBlob
   {
+    /**
+     * Path of the content as last seen, which is shared by other blobs if deduplicated.
+     */
+    private volatile String contentPath;
+
+    /**
+     * Counts changes of the blob's state, guarded by this like {@link #refreshing}.
+     */
+    private long version;
+
+    /**
+     * Load of the attributes under way for readers of the stale blob, {@code null} if there is none.
+     */
+    private CompletableFuture<S3BlobAttributes> refreshing;
+
     S3Blob(final BlobId blobId) {
       super(blobId);
     }
 
+    String getContentPath() {
+      String path = contentPath;
+      return path != null ? path : contentPath(getId());
+    }
+
+    /**
+     * Publishes the state of a blob just written.
+     */
+    synchronized void refresh(final Map<String, String> headers, final BlobMetrics metrics, final String contentPath) {
+      version++;
+      refreshing = null;
+      this.contentPath = contentPath;
+      refresh(headers, metrics);
+    }
+
+    /**
+     * Publishes state loaded when the blob was at the given version, unless it has changed since.
+     */
+    synchronized boolean refresh(final long loadedVersion,
+                                 final Map<String, String> headers,
+                                 final BlobMetrics metrics,
+                                 final String contentPath)
+    {
+      if (version != loadedVersion) {
+        return false;
+      }
+      refresh(headers, metrics, contentPath);
+      return true;
+    }
+
+    /**
+     * Also keeps readers arriving from now on from joining a load that started before.
+     */
+    @Override
+    public synchronized void markStale() {
+      version++;
+      refreshing = null;
+      super.markStale();
+    }
+
     @Override
     public InputStream getInputStream() {
-      S3Object object = s3.getObject(getConfiguredBucket(), contentPath(getId()));
-      return object.getObjectContent();
+      BlobMetrics metrics = getMetrics();
+      if (metrics == null) {
+        return downloader.open(getContentPath(), -1L);
+      }
+      S3ContentCache cache = contentCache;
+      if (cache != null) {
+        InputStream cached = cache.open(getId(), metrics.getSha1Hash(), 0, metrics.getContentSize());
+        if (cached != null) {
+          return cached;
+        }
+      }
+      S3ReadCoalescer coalescer = readCoalescer;
+      if (coalescer == null) {
+        return download(metrics, cache);
+      }
+      try {
+        // keyed by content rather than blob, so blobs sharing deduplicated content share downloads too
+        return coalescer.open(getContentPath() + "@" + metrics.getSha1Hash(), metrics.getContentSize(),
+            () -> download(metrics, cache));
+      }
+      catch (IOException e) {
+        throw new BlobStoreException(e, getId());
+      }
+    }
+
+    private InputStream download(final BlobMetrics metrics, @Nullable final S3ContentCache cache) {
+      InputStream content = downloader.open(getContentPath(), metrics.getContentSize());
+      return cache != null ? cache.fill(getId(), metrics.getSha1Hash(), metrics.getContentSize(), content) : content;
+    }
+
+    @Override
+    public InputStream getInputStream(final long offset, final long length) {
+      checkArgument(offset >= 0, "Offset must not be negative");
+      checkArgument(length >= 0, "Length must not be negative");
+      BlobMetrics metrics = getMetrics();
+      if (metrics == null) {
+        // without the size the range cannot be checked or truncated, so skip to it in the whole content
+        return rangeOf(getInputStream(), offset, length);
+      }
+      long size = metrics.getContentSize();
+      checkArgument(offset <= size, "Offset %s outside of blob %s of size %s", offset, getId(), size);
+      // ranges are served from the cache but never fill it, which takes the content from start to end
+      S3ContentCache cache = contentCache;
+      if (cache != null) {
+        InputStream cached = cache.open(getId(), metrics.getSha1Hash(), offset, Math.min(length, size - offset));
+        if (cached != null) {
+          return cached;
+        }
+      }
+      return downloader.open(getContentPath(), offset, Math.min(length, size - offset));
+    }
+
+    private InputStream rangeOf(final InputStream content, final long offset, final long length) {
+      try {
+        ByteStreams.skipFully(content, offset);
+        return ByteStreams.limit(content, length);
+      }
+      catch (IOException e) {
+        try {
+          content.close();
+        }
+        catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+        throw new BlobStoreException("Unable to read blob from offset " + offset, e, getId());
+      }
+    }
+
+    @Nullable
+    @Override
+    public URL getRedirectUrl() {
+      // attributes stored as user metadata would be handed to clients as x-amz-meta-* headers of the response
+      if (presignedUrlThreshold < 0 || attributesInMetadata) {
+        return null;
+      }
+      BlobMetrics metrics = getMetrics();
+      if (metrics == null || metrics.getContentSize() < presignedUrlThreshold) {
+        return null;
+      }
+      GeneratePresignedUrlRequest request =
+          new GeneratePresignedUrlRequest(getConfiguredBucket(), getContentPath(), HttpMethod.GET)
+              .withExpiration(new Date(System.currentTimeMillis() + presignedUrlExpirationMillis));
+      String contentType = getHeaders().get(CONTENT_TYPE_HEADER);
+      if (contentType != null) {
+        request.withResponseHeaders(new ResponseHeaderOverrides().withContentType(contentType));
+      }
+      return s3.generatePresignedUrl(request);
     }
   }
 
   private interface BlobIngester {
-    StreamMetrics ingestTo(final String destination) throws IOException;
+    /**
+     * @param userMetadata returns the user metadata to store with content of the given metrics, or {@code null}
+     */
+    StreamMetrics ingestTo(final String destination,
+                           final Function<StreamMetrics, Map<String, String>> userMetadata) throws IOException;
+  }
+
+  private interface ContentWriter {
+    void write(final String destination) throws IOException;
   }
 
+  /**
+   * Returns the IDs of all blobs, the stream lists volume and chapter prefixes concurrently when made parallel.
+   */
   @Override
   public Stream<BlobId> getBlobIdStream() {
-    Iterable<S3ObjectSummary> summaries = S3Objects.withPrefix(s3, getConfiguredBucket(), CONTENT_PREFIX);
-    return blobIdStream(summaries);
+    return blobIdStream(blobLister().list(CONTENT_PREFIX + "/", CONTENT_PREFIX_DEPTH));
   }
 
   @Override
   public Stream<BlobId> getDirectPathBlobIdStream(final String prefix) {
     String subpath = format("%s/%s", DIRECT_PATH_PREFIX, prefix);
-    Iterable<S3ObjectSummary> summaries = S3Objects.withPrefix(s3, getConfiguredBucket(), subpath);
-    return stream(summaries.spliterator(), false)
+    String suffix = listingSuffix();
+    return blobLister().list(subpath, 1)
       .map(S3ObjectSummary::getKey)
-      .filter(key -> key.endsWith(BLOB_ATTRIBUTE_SUFFIX))
-      .map(this::attributePathToDirectPathBlobId);
+      .filter(key -> key.endsWith(suffix))
+      .map(key -> pathToDirectPathBlobId(key, suffix));
+  }
+
+  private S3BlobLister blobLister() {
+    // discovery runs inline when listing a blob store that is not started
+    Executor executor = batchExecutor;
+    return new S3BlobLister(s3, getConfiguredBucket(), executor != null ? executor : MoreExecutors.directExecutor());
   }
 
-  private Stream<BlobId> blobIdStream(Iterable<S3ObjectSummary> summaries) {
-    return StreamSupport.stream(summaries.spliterator(), false)
+  private Stream<BlobId> blobIdStream(Stream<S3ObjectSummary> summaries) {
+    String suffix = listingSuffix();
+    return summaries
       .map(S3ObjectSummary::getKey)
-      .map(key -> key.substring(key.lastIndexOf('/') + 1, key.length()))
-      .filter(filename -> filename.endsWith(BLOB_ATTRIBUTE_SUFFIX) && !filename.startsWith(TEMPORARY_BLOB_ID_PREFIX))
-      .map(filename -> filename.substring(0, filename.length() - BLOB_ATTRIBUTE_SUFFIX.length()))
-      .map(BlobId::new);
+      .filter(key -> key.endsWith(suffix))
+      .filter(key -> {
+        // temporary blobs live under their own prefix, but those written before may still sit among permanent content
+        if (key.substring(key.lastIndexOf('/') + 1).startsWith(TEMPORARY_BLOB_ID_PREFIX)) {
+          log.debug("Skipping temporary blob {} listed among permanent content", key);
+          return false;
+        }
+        return true;
+      })
+      .map(key -> keyToBlobId(key, suffix));
+  }
+
+  /**
+   * Returns the suffix of the one key listed per blob, every blob has content but with {@link #TYPE_V2} not all have
+   * a .properties object.
+   */
+  private String listingSuffix() {
+    return attributesInMetadata ? BLOB_CONTENT_SUFFIX : BLOB_ATTRIBUTE_SUFFIX;
   }
 
   @Override
   public BlobAttributes getBlobAttributes(final BlobId blobId) {
     try {
-      S3BlobAttributes blobAttributes = new S3BlobAttributes(s3, getConfiguredBucket(), attributePath(blobId));
+      S3BlobAttributes blobAttributes = newBlobAttributes(blobId);
       return blobAttributes.load() ? blobAttributes : null;
     }
     catch (IOException e) {
@@ -610,6 +2328,12 @@ public class S3BlobStore
       S3BlobAttributes s3BlobAttributes = (S3BlobAttributes) getBlobAttributes(blobId);
       s3BlobAttributes.updateFrom(blobAttributes);
       s3BlobAttributes.store();
+      attributesCache.invalidate(blobId);
+      // readers holding the blob see the new headers once they get it again
+      S3Blob blob = liveBlobs.getIfPresent(blobId);
+      if (blob != null) {
+        blob.markStale();
+      }
     }
     catch (Exception e) {
       log.error("Unable to set BlobAttributes for blob id: {}, exception: {}",
@@ -618,15 +2342,15 @@ public class S3BlobStore
   }
 
   /**
-   * Used by {@link #getDirectPathBlobIdStream(String)} to convert an s3 key to a {@link BlobId}.
+   * Used by {@link #getDirectPathBlobIdStream(String)} to convert an s3 key with the given suffix to a {@link BlobId}.
    *
    * @see BlobIdLocationResolver
    */
-  private BlobId attributePathToDirectPathBlobId(final String s3Key) {
+  private BlobId pathToDirectPathBlobId(final String s3Key, final String suffix) {
     checkArgument(s3Key.startsWith(DIRECT_PATH_PREFIX + "/"), "Not direct path blob path: %s", s3Key);
-    checkArgument(s3Key.endsWith(BLOB_ATTRIBUTE_SUFFIX), "Not blob attribute path: %s", s3Key);
+    checkArgument(s3Key.endsWith(suffix), "Not blob %s path: %s", suffix, s3Key);
     String blobName = s3Key
-        .substring(0, s3Key.length() - BLOB_ATTRIBUTE_SUFFIX.length())
+        .substring(0, s3Key.length() - suffix.length())
         .substring(DIRECT_PATH_PREFIX.length() + 1);
     Map<String, String> headers = ImmutableMap.of(
         BLOB_NAME_HEADER, blobName,
@@ -20,6 +20,7 @@ import javax.inject.Named;
 import org.sonatype.goodies.i18n.I18N;
 import org.sonatype.goodies.i18n.MessageBundle;
 import org.sonatype.nexus.blobstore.BlobStoreDescriptor;
+import org.sonatype.nexus.formfields.CheckboxFormField;
 import org.sonatype.nexus.formfields.FormField;
 import org.sonatype.nexus.formfields.NumberTextFormField;
 import org.sonatype.nexus.formfields.PasswordFormField;
@@ -84,11 +85,197 @@ public class S3BlobStoreDescriptor
     @DefaultMessage("AWS Endpoint URL")
     String endpointHelp();
 
+    @DefaultMessage("Max Connections")
+    String maxConnectionsLabel();
+
+    @DefaultMessage("Size of the S3 connection pool, shared by all blob stores with the same credentials, region, endpoint and connection settings")
+    String maxConnectionsHelp();
+
+    @DefaultMessage("Connection TTL")
+    String connectionTtlLabel();
+
+    @DefaultMessage("How many seconds a pooled connection may be reused for, -1 to reuse it for as long as it is usable")
+    String connectionTtlHelp();
+
+    @DefaultMessage("Socket Timeout")
+    String socketTimeoutLabel();
+
+    @DefaultMessage("How many seconds to wait for data from S3 before giving up on a connection")
+    String socketTimeoutHelp();
+
+    @DefaultMessage("Request Timeout")
+    String requestTimeoutLabel();
+
+    @DefaultMessage("How many seconds a whole request to S3 may take, 0 to disable")
+    String requestTimeoutHelp();
+
+    @DefaultMessage("TCP Keep-Alive")
+    String tcpKeepAliveLabel();
+
+    @DefaultMessage("Send TCP keep-alive probes on pooled connections")
+    String tcpKeepAliveHelp();
+
     @DefaultMessage("Expiration Days")
     String expirationLabel();
 
     @DefaultMessage("How many days until deleted blobs are finally removed from the S3 bucket. Set -1 to disable (Minio)")
     String expirationHelp();
+
+    @DefaultMessage("Multipart Upload Threshold")
+    String multipartUploadThresholdLabel();
+
+    @DefaultMessage("Size in MB above which blob content is uploaded to S3 in parallel parts, at most the part buffer pool size")
+    String multipartUploadThresholdHelp();
+
+    @DefaultMessage("Multipart Upload Part Size")
+    String multipartUploadPartSizeLabel();
+
+    @DefaultMessage("Minimum size in MB of each part of a multipart upload, larger parts are used on faster links")
+    String multipartUploadPartSizeHelp();
+
+    @DefaultMessage("Multipart Copy Threshold")
+    String multipartCopyThresholdLabel();
+
+    @DefaultMessage("Size in MB above which blobs are copied within S3 in parallel parts")
+    String multipartCopyThresholdHelp();
+
+    @DefaultMessage("Part Buffer Pool Size")
+    String partBufferPoolSizeLabel();
+
+    @DefaultMessage("Size in MB of the off-heap memory used to stage upload parts, uploads wait when it is exhausted")
+    String partBufferPoolSizeHelp();
+
+    @DefaultMessage("Parallel Download Threshold")
+    String parallelDownloadThresholdLabel();
+
+    @DefaultMessage("Size in MB at which blob content is downloaded from S3 in parallel ranges, held in memory. Set -1 to disable")
+    String parallelDownloadThresholdHelp();
+
+    @DefaultMessage("Parallel Download Range Size")
+    String parallelDownloadRangeSizeLabel();
+
+    @DefaultMessage("Size in MB of each range of a parallel download, at most 64")
+    String parallelDownloadRangeSizeHelp();
+
+    @DefaultMessage("Parallel Download Concurrency")
+    String parallelDownloadConcurrencyLabel();
+
+    @DefaultMessage("Number of ranges each parallel download fetches ahead of the reader")
+    String parallelDownloadConcurrencyHelp();
+
+    @DefaultMessage("Parallel Download Buffer Size")
+    String parallelDownloadBufferSizeLabel();
+
+    @DefaultMessage("Size in MB of the heap all parallel downloads together hold ranges in, at least the range size. Downloads read ahead less once it is spent")
+    String parallelDownloadBufferSizeHelp();
+
+    @DefaultMessage("Presigned URL Threshold")
+    String presignedUrlThresholdLabel();
+
+    @DefaultMessage("Size in MB at which clients are redirected to download blobs directly from S3, unless attributes are stored in object metadata. Set -1 to disable")
+    String presignedUrlThresholdHelp();
+
+    @DefaultMessage("Presigned URL Expiration")
+    String presignedUrlExpirationLabel();
+
+    @DefaultMessage("How many seconds a redirect to S3 remains valid")
+    String presignedUrlExpirationHelp();
+
+    @DefaultMessage("Attribute Cache Size")
+    String attributeCacheSizeLabel();
+
+    @DefaultMessage("Maximum number of blob attributes cached in memory. Set 0 to disable")
+    String attributeCacheSizeHelp();
+
+    @DefaultMessage("Content Cache Size")
+    String contentCacheSizeLabel();
+
+    @DefaultMessage("Megabytes of recently read blob content kept on local disk, least recently used first out. Set 0 to disable")
+    String contentCacheSizeHelp();
+
+    @DefaultMessage("Content Cache Directory")
+    String contentCacheDirectoryLabel();
+
+    @DefaultMessage("Local directory the content cache keeps a subdirectory named after the blob store in, which is emptied of cached content on start. Defaults to a directory under the temporary directory")
+    String contentCacheDirectoryHelp();
+
+    @DefaultMessage("Read Coalescing")
+    String readCoalescingLabel();
+
+    @DefaultMessage("Share one download between concurrent reads of the same blob, spooled through a local file")
+    String readCoalescingHelp();
+
+    @DefaultMessage("Read Coalescing Directory")
+    String readCoalescingDirectoryLabel();
+
+    @DefaultMessage("Local directory shared downloads are spooled through. Defaults to the temporary directory")
+    String readCoalescingDirectoryHelp();
+
+    @DefaultMessage("Read Coalescing Size")
+    String readCoalescingSizeLabel();
+
+    @DefaultMessage("Megabytes of local disk all shared downloads together may spool through, reads beyond it are not shared")
+    String readCoalescingSizeHelp();
+
+    @DefaultMessage("Missing Blob Cache TTL")
+    String missingBlobCacheTtlLabel();
+
+    @DefaultMessage("How many seconds a blob found missing is answered as missing without asking S3 again, 0 to disable. Blobs written by other nodes sharing the bucket may appear missing for this long")
+    String missingBlobCacheTtlHelp();
+
+    @DefaultMessage("Missing Blob Cache Size")
+    String missingBlobCacheSizeLabel();
+
+    @DefaultMessage("Maximum number of blobs found missing remembered in memory")
+    String missingBlobCacheSizeHelp();
+
+    @DefaultMessage("Missing Blob Filter")
+    String missingBlobFilterLabel();
+
+    @DefaultMessage("Confirm lookups of blobs absent from a Bloom filter built on start with a HEAD request instead of reading them. Only consulted while no other node shares the bucket")
+    String missingBlobFilterHelp();
+
+    @DefaultMessage("Attribute Cache TTL")
+    String attributeCacheTtlLabel();
+
+    @DefaultMessage("How many seconds cached blob attributes are used before asking S3 whether they have changed")
+    String attributeCacheTtlHelp();
+
+    @DefaultMessage("Store Attributes In Object Metadata")
+    String attributesInMetadataLabel();
+
+    @DefaultMessage("Keep blob attributes in the metadata of each content object, halving the objects per blob. Attributes above 1900 characters encoded, of content above the multipart upload threshold, or updated after creation stay in a .properties object. Existing blobs are migrated in the background and this cannot be undone")
+    String attributesInMetadataHelp();
+
+    @DefaultMessage("Deduplication")
+    String deduplicationLabel();
+
+    @DefaultMessage("Store identical content once, shared by all blobs with the same SHA-1. Cannot be combined with attributes in metadata")
+    String deduplicationHelp();
+
+    @DefaultMessage("Batch Concurrency")
+    String batchConcurrencyLabel();
+
+    @DefaultMessage("Number of blobs processed concurrently by bulk operations such as layout migration")
+    String batchConcurrencyHelp();
+
+    @DefaultMessage("Metrics Refresh Period")
+    String metricsRefreshPeriodLabel();
+
+    @DefaultMessage("How many seconds between reloads of the blob count and size recorded by other nodes")
+    String metricsRefreshPeriodHelp();
+
+    @DefaultMessage("Metrics Reconcile Period")
+    String metricsReconcilePeriodLabel();
+
+    @DefaultMessage("How many hours between recounts of blob count and size from a listing of the bucket, 0 to disable")
+    String metricsReconcilePeriodHelp();
+
+    @DefaultMessage("Compact Request Rate")
+    String compactRequestRateLabel();
+
+    @DefaultMessage("How many requests per second compacting the blob store may make")
+    String compactRequestRateHelp();
   }
 
   private static final Messages messages = I18N.create(Messages.class);
@@ -100,7 +287,38 @@ public class S3BlobStoreDescriptor
   private final FormField assumeRole;
   private final FormField region;
   private final FormField endpoint;
+  private final FormField maxConnections;
+  private final FormField connectionTtl;
+  private final FormField socketTimeout;
+  private final FormField requestTimeout;
+  private final FormField tcpKeepAlive;
   private final FormField expiration;
+  private final FormField multipartUploadThreshold;
+  private final FormField multipartUploadPartSize;
+  private final FormField multipartCopyThreshold;
+  private final FormField partBufferPoolSize;
+  private final FormField parallelDownloadThreshold;
+  private final FormField parallelDownloadRangeSize;
+  private final FormField parallelDownloadConcurrency;
+  private final FormField parallelDownloadBufferSize;
+  private final FormField presignedUrlThreshold;
+  private final FormField presignedUrlExpiration;
+  private final FormField attributeCacheSize;
+  private final FormField attributeCacheTtl;
+  private final FormField contentCacheSize;
+  private final FormField contentCacheDirectory;
+  private final FormField readCoalescing;
+  private final FormField readCoalescingDirectory;
+  private final FormField readCoalescingSize;
+  private final FormField missingBlobCacheTtl;
+  private final FormField missingBlobCacheSize;
+  private final FormField missingBlobFilter;
+  private final FormField attributesInMetadata;
+  private final FormField deduplication;
+  private final FormField batchConcurrency;
+  private final FormField metricsRefreshPeriod;
+  private final FormField metricsReconcilePeriod;
+  private final FormField compactRequestRate;
 
   public S3BlobStoreDescriptor() {
     this.bucket = new StringTextFormField(
@@ -145,6 +363,40 @@ public class S3BlobStoreDescriptor
         messages.endpointHelp(),
         FormField.OPTIONAL
     );
+    this.maxConnections = new NumberTextFormField(
+        S3BlobStore.MAX_CONNECTIONS_KEY,
+        messages.maxConnectionsLabel(),
+        messages.maxConnectionsHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_MAX_CONNECTIONS)
+        .withMinimumValue(1);
+    this.connectionTtl = new NumberTextFormField(
+        S3BlobStore.CONNECTION_TTL_KEY,
+        messages.connectionTtlLabel(),
+        messages.connectionTtlHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_CONNECTION_TTL_SECONDS)
+        .withMinimumValue(-1);
+    this.socketTimeout = new NumberTextFormField(
+        S3BlobStore.SOCKET_TIMEOUT_KEY,
+        messages.socketTimeoutLabel(),
+        messages.socketTimeoutHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_SOCKET_TIMEOUT_SECONDS)
+        .withMinimumValue(0);
+    this.requestTimeout = new NumberTextFormField(
+        S3BlobStore.REQUEST_TIMEOUT_KEY,
+        messages.requestTimeoutLabel(),
+        messages.requestTimeoutHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_REQUEST_TIMEOUT_SECONDS)
+        .withMinimumValue(0);
+    this.tcpKeepAlive = new CheckboxFormField(
+        S3BlobStore.TCP_KEEP_ALIVE_KEY,
+        messages.tcpKeepAliveLabel(),
+        messages.tcpKeepAliveHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(true);
     this.expiration = new NumberTextFormField(
         S3BlobStore.EXPIRATION_KEY,
         messages.expirationLabel(),
@@ -152,6 +404,183 @@ public class S3BlobStoreDescriptor
         FormField.OPTIONAL)
         .withInitialValue(S3BlobStore.DEFAULT_EXPIRATION_IN_DAYS)
         .withMinimumValue(-1);
+    this.multipartUploadThreshold = new NumberTextFormField(
+        S3BlobStore.MULTIPART_UPLOAD_THRESHOLD_KEY,
+        messages.multipartUploadThresholdLabel(),
+        messages.multipartUploadThresholdHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_MULTIPART_UPLOAD_THRESHOLD_MB)
+        .withMinimumValue(S3BlobStore.MINIMUM_MULTIPART_UPLOAD_PART_SIZE_MB);
+    this.multipartUploadPartSize = new NumberTextFormField(
+        S3BlobStore.MULTIPART_UPLOAD_PART_SIZE_KEY,
+        messages.multipartUploadPartSizeLabel(),
+        messages.multipartUploadPartSizeHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_MULTIPART_UPLOAD_PART_SIZE_MB)
+        .withMinimumValue(S3BlobStore.MINIMUM_MULTIPART_UPLOAD_PART_SIZE_MB);
+    this.multipartCopyThreshold = new NumberTextFormField(
+        S3BlobStore.MULTIPART_COPY_THRESHOLD_KEY,
+        messages.multipartCopyThresholdLabel(),
+        messages.multipartCopyThresholdHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_MULTIPART_COPY_THRESHOLD_MB)
+        .withMinimumValue(S3BlobStore.MINIMUM_MULTIPART_UPLOAD_PART_SIZE_MB);
+    this.partBufferPoolSize = new NumberTextFormField(
+        S3BlobStore.PART_BUFFER_POOL_SIZE_KEY,
+        messages.partBufferPoolSizeLabel(),
+        messages.partBufferPoolSizeHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_PART_BUFFER_POOL_SIZE_MB)
+        .withMinimumValue(S3BlobStore.MINIMUM_PART_BUFFER_POOL_SIZE_MB);
+    this.parallelDownloadThreshold = new NumberTextFormField(
+        S3BlobStore.PARALLEL_DOWNLOAD_THRESHOLD_KEY,
+        messages.parallelDownloadThresholdLabel(),
+        messages.parallelDownloadThresholdHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_PARALLEL_DOWNLOAD_THRESHOLD_MB)
+        .withMinimumValue(-1);
+    this.parallelDownloadRangeSize = new NumberTextFormField(
+        S3BlobStore.PARALLEL_DOWNLOAD_RANGE_SIZE_KEY,
+        messages.parallelDownloadRangeSizeLabel(),
+        messages.parallelDownloadRangeSizeHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_PARALLEL_DOWNLOAD_RANGE_SIZE_MB)
+        .withMinimumValue(1)
+        .withMaximumValue(S3BlobStore.MAXIMUM_PARALLEL_DOWNLOAD_RANGE_SIZE_MB);
+    this.parallelDownloadConcurrency = new NumberTextFormField(
+        S3BlobStore.PARALLEL_DOWNLOAD_CONCURRENCY_KEY,
+        messages.parallelDownloadConcurrencyLabel(),
+        messages.parallelDownloadConcurrencyHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_PARALLEL_DOWNLOAD_CONCURRENCY)
+        .withMinimumValue(1);
+    this.parallelDownloadBufferSize = new NumberTextFormField(
+        S3BlobStore.PARALLEL_DOWNLOAD_BUFFER_SIZE_KEY,
+        messages.parallelDownloadBufferSizeLabel(),
+        messages.parallelDownloadBufferSizeHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_PARALLEL_DOWNLOAD_BUFFER_SIZE_MB)
+        .withMinimumValue(1);
+    this.presignedUrlThreshold = new NumberTextFormField(
+        S3BlobStore.PRESIGNED_URL_THRESHOLD_KEY,
+        messages.presignedUrlThresholdLabel(),
+        messages.presignedUrlThresholdHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_PRESIGNED_URL_THRESHOLD_MB)
+        .withMinimumValue(-1);
+    this.presignedUrlExpiration = new NumberTextFormField(
+        S3BlobStore.PRESIGNED_URL_EXPIRATION_KEY,
+        messages.presignedUrlExpirationLabel(),
+        messages.presignedUrlExpirationHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_PRESIGNED_URL_EXPIRATION_SECONDS)
+        .withMinimumValue(1);
+    this.attributeCacheSize = new NumberTextFormField(
+        S3BlobStore.ATTRIBUTE_CACHE_SIZE_KEY,
+        messages.attributeCacheSizeLabel(),
+        messages.attributeCacheSizeHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_ATTRIBUTE_CACHE_SIZE)
+        .withMinimumValue(0);
+    this.contentCacheSize = new NumberTextFormField(
+        S3BlobStore.CONTENT_CACHE_SIZE_KEY,
+        messages.contentCacheSizeLabel(),
+        messages.contentCacheSizeHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_CONTENT_CACHE_SIZE_MB)
+        .withMinimumValue(0);
+    this.contentCacheDirectory = new StringTextFormField(
+        S3BlobStore.CONTENT_CACHE_DIRECTORY_KEY,
+        messages.contentCacheDirectoryLabel(),
+        messages.contentCacheDirectoryHelp(),
+        FormField.OPTIONAL
+    );
+    this.readCoalescing = new CheckboxFormField(
+        S3BlobStore.READ_COALESCING_KEY,
+        messages.readCoalescingLabel(),
+        messages.readCoalescingHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(false);
+    this.readCoalescingDirectory = new StringTextFormField(
+        S3BlobStore.READ_COALESCING_DIRECTORY_KEY,
+        messages.readCoalescingDirectoryLabel(),
+        messages.readCoalescingDirectoryHelp(),
+        FormField.OPTIONAL
+    );
+    this.readCoalescingSize = new NumberTextFormField(
+        S3BlobStore.READ_COALESCING_SIZE_KEY,
+        messages.readCoalescingSizeLabel(),
+        messages.readCoalescingSizeHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_READ_COALESCING_SIZE_MB)
+        .withMinimumValue(1);
+    this.missingBlobCacheTtl = new NumberTextFormField(
+        S3BlobStore.MISSING_BLOB_CACHE_TTL_KEY,
+        messages.missingBlobCacheTtlLabel(),
+        messages.missingBlobCacheTtlHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_MISSING_BLOB_CACHE_TTL_SECONDS)
+        .withMinimumValue(0);
+    this.missingBlobCacheSize = new NumberTextFormField(
+        S3BlobStore.MISSING_BLOB_CACHE_SIZE_KEY,
+        messages.missingBlobCacheSizeLabel(),
+        messages.missingBlobCacheSizeHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_MISSING_BLOB_CACHE_SIZE)
+        .withMinimumValue(0);
+    this.missingBlobFilter = new CheckboxFormField(
+        S3BlobStore.MISSING_BLOB_FILTER_KEY,
+        messages.missingBlobFilterLabel(),
+        messages.missingBlobFilterHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(false);
+    this.attributeCacheTtl = new NumberTextFormField(
+        S3BlobStore.ATTRIBUTE_CACHE_TTL_KEY,
+        messages.attributeCacheTtlLabel(),
+        messages.attributeCacheTtlHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_ATTRIBUTE_CACHE_TTL_SECONDS)
+        .withMinimumValue(0);
+    this.attributesInMetadata = new CheckboxFormField(
+        S3BlobStore.ATTRIBUTES_IN_METADATA_KEY,
+        messages.attributesInMetadataLabel(),
+        messages.attributesInMetadataHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(false);
+    this.deduplication = new CheckboxFormField(
+        S3BlobStore.DEDUPLICATION_KEY,
+        messages.deduplicationLabel(),
+        messages.deduplicationHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(false);
+    this.batchConcurrency = new NumberTextFormField(
+        S3BlobStore.BATCH_CONCURRENCY_KEY,
+        messages.batchConcurrencyLabel(),
+        messages.batchConcurrencyHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_BATCH_CONCURRENCY)
+        .withMinimumValue(1);
+    this.metricsRefreshPeriod = new NumberTextFormField(
+        S3BlobStore.METRICS_REFRESH_PERIOD_KEY,
+        messages.metricsRefreshPeriodLabel(),
+        messages.metricsRefreshPeriodHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStoreMetricsStore.DEFAULT_METRICS_REFRESH_PERIOD_SECONDS)
+        .withMinimumValue(1);
+    this.metricsReconcilePeriod = new NumberTextFormField(
+        S3BlobStore.METRICS_RECONCILE_PERIOD_KEY,
+        messages.metricsReconcilePeriodLabel(),
+        messages.metricsReconcilePeriodHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_METRICS_RECONCILE_PERIOD_HOURS)
+        .withMinimumValue(0);
+    this.compactRequestRate = new NumberTextFormField(
+        S3BlobStore.COMPACT_REQUEST_RATE_KEY,
+        messages.compactRequestRateLabel(),
+        messages.compactRequestRateHelp(),
+        FormField.OPTIONAL)
+        .withInitialValue(S3BlobStore.DEFAULT_COMPACT_REQUEST_RATE)
+        .withMinimumValue(1);
   }
 
   @Override
@@ -161,6 +590,13 @@ public class S3BlobStoreDescriptor
 
   @Override
   public List<FormField> getFormFields() {
-      return Arrays.asList(bucket, accessKeyId, secretAccessKey, sessionToken, assumeRole, region, endpoint, expiration);
+      return Arrays.asList(bucket, accessKeyId, secretAccessKey, sessionToken, assumeRole, region, endpoint,
+          maxConnections, connectionTtl, socketTimeout, requestTimeout, tcpKeepAlive, expiration,
+          multipartUploadThreshold, multipartUploadPartSize, multipartCopyThreshold, partBufferPoolSize, parallelDownloadThreshold,
+          parallelDownloadRangeSize, parallelDownloadConcurrency, parallelDownloadBufferSize, presignedUrlThreshold,
+          presignedUrlExpiration, attributeCacheSize, attributeCacheTtl, contentCacheSize, contentCacheDirectory,
+          readCoalescing, readCoalescingDirectory, readCoalescingSize, missingBlobCacheTtl, missingBlobCacheSize,
+          missingBlobFilter, attributesInMetadata, deduplication, batchConcurrency, metricsRefreshPeriod,
+          metricsReconcilePeriod, compactRequestRate);
   }
 }
@@ -13,9 +13,17 @@
 package org.sonatype.nexus.blobstore.s3.internal;
 
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Stream;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -27,17 +35,35 @@ import org.sonatype.nexus.blobstore.PeriodicJobService.PeriodicJob;
 import org.sonatype.nexus.common.node.NodeAccess;
 import org.sonatype.nexus.common.stateguard.Guarded;
 import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+import org.sonatype.nexus.thread.NexusThreadFactory;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.lang.Long.parseLong;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.STARTED;
 
 /**
  * A {@link BlobStoreMetricsStore} implementation that retains blobstore metrics in memory, periodically
  * writing them out to AWS S3.
+ *
+ * The metrics files of other nodes sharing the bucket are reloaded in the background, so reading the combined metrics
+ * of all nodes needs no requests to S3.
+ *
+ * Changes are flushed once writes pause, or at the latest {@link #MAX_FLUSH_LAG_SECONDS} after the first unflushed
+ * change, so a busy node coalesces many changes into one write. Each write carries a sequence number and writer id;
+ * should the file have been written by anyone else since, the changes made here are added to what they wrote rather
+ * than overwriting it.
+ *
+ * Reconciling with a listing of the bucket runs on a thread of its own, as a listing can take long enough to hold up
+ * the jobs of every blob store sharing the {@link PeriodicJobService}.
  */
 @Named
 public class S3BlobStoreMetricsStore
@@ -51,8 +77,19 @@ public class S3BlobStoreMetricsStore
 
   private static final String BLOB_COUNT_PROP_NAME = "blobCount";
 
+  private static final String SEQUENCE_PROP_NAME = "sequence";
+
+  private static final String WRITER_PROP_NAME = "writer";
+
   private static final int METRICS_FLUSH_PERIOD_SECONDS = 2;
 
+  /**
+   * Upper bound on how long a change may go unflushed while writes keep arriving.
+   */
+  static final int MAX_FLUSH_LAG_SECONDS = 30;
+
+  public static final int DEFAULT_METRICS_REFRESH_PERIOD_SECONDS = 30;
+
   private final PeriodicJobService jobService;
 
   private AtomicLong blobCount;
@@ -61,14 +98,65 @@ public class S3BlobStoreMetricsStore
 
   private AtomicLong totalSize;
 
-  private AtomicBoolean dirty;
+  /**
+   * When the oldest unflushed change was made in milliseconds since the epoch, {@code 0} if everything is flushed.
+   */
+  private final AtomicLong pendingSince = new AtomicLong();
+
+  /**
+   * Changes made since the flush job last ran, telling a busy node from a quiet one.
+   */
+  private final AtomicLong recentChanges = new AtomicLong();
+
+  private final AtomicLong flushCount = new AtomicLong();
+
+  private volatile long lastFlushLatencyMillis;
+
+  /**
+   * Identifies the counters written by this node since it started.
+   */
+  private String writerId;
+
+  /**
+   * Sequence number of the last write to the metrics file.
+   */
+  private long sequence;
+
+  private long flushedBlobCount;
+
+  private long flushedTotalSize;
 
   private PeriodicJob metricsWritingJob;
 
+  private PeriodicJob metricsRefreshJob;
+
+  private ScheduledExecutorService reconcileExecutor;
+
+  private int refreshPeriodSeconds = DEFAULT_METRICS_REFRESH_PERIOD_SECONDS;
+
+  private Supplier<BlobStoreMetrics> reconcileListing;
+
+  private int reconcilePeriodSeconds;
+
+  /**
+   * Combined metrics of the other nodes as last loaded from their metrics files.
+   */
+  private volatile Totals otherNodes = new Totals(0, 0);
+
+  /**
+   * Whether metrics files of other nodes were found when last refreshed.
+   */
+  private volatile boolean hasOtherNodes;
+
   private String bucket;
 
   private S3PropertiesFile propertiesFile;
 
+  /**
+   * Metrics files seen so far, kept so that unchanged files are revalidated rather than downloaded again.
+   */
+  private final Map<String, S3PropertiesFile> metricsFiles = new ConcurrentHashMap<>();
+
   private AmazonS3 s3;
 
   @Inject
@@ -81,45 +169,85 @@ public class S3BlobStoreMetricsStore
   protected void doStart() throws Exception {
     blobCount = new AtomicLong();
     totalSize = new AtomicLong();
-    dirty = new AtomicBoolean();
-
-    propertiesFile = new S3PropertiesFile(s3, bucket, nodeAccess.getId() + METRICS_SUFFIX + METRICS_EXTENSION);
-    if (propertiesFile.exists()) {
-      log.info("Loading blob store metrics file {}", propertiesFile);
-      propertiesFile.load();
+    pendingSince.set(0);
+    recentChanges.set(0);
+    writerId = UUID.randomUUID().toString();
+    sequence = 0;
+
+    propertiesFile = new S3PropertiesFile(s3, bucket, metricsKey());
+    if (propertiesFile.loadIfExists()) {
+      log.info("Loaded blob store metrics file {}", propertiesFile);
       readProperties();
     }
     else {
       log.info("Blob store metrics file {} not found - initializing at zero.", propertiesFile);
-      updateProperties();
+      updateProperties(0, 0);
       propertiesFile.store();
     }
+    flushedBlobCount = blobCount.get();
+    flushedTotalSize = totalSize.get();
 
     jobService.startUsing();
     metricsWritingJob = jobService.schedule(() -> {
       try {
-        if (dirty.compareAndSet(true, false)) {
-          updateProperties();
-          log.trace("Writing blob store metrics to {}", propertiesFile);
-          propertiesFile.store();
-        }
+        flushIfDue();
       }
       catch (Exception e) {
         // Don't propagate, as this stops subsequent executions
         log.error("Cannot write blob store metrics", e);
       }
     }, METRICS_FLUSH_PERIOD_SECONDS);
+
+    refresh();
+    metricsRefreshJob = jobService.schedule(() -> {
+      try {
+        refresh();
+      }
+      catch (Exception e) {
+        // Don't propagate, as this stops subsequent executions
+        log.warn("Cannot refresh blob store metrics of other nodes", e);
+      }
+    }, refreshPeriodSeconds);
+
+    if (reconcileListing != null && reconcilePeriodSeconds > 0) {
+      reconcileExecutor = Executors.newSingleThreadScheduledExecutor(
+          new NexusThreadFactory("s3-blobstore", "metrics-reconcile-" + bucket));
+      reconcileExecutor.scheduleWithFixedDelay(() -> {
+        try {
+          reconcile(reconcileListing);
+        }
+        catch (Exception e) {
+          // Don't propagate, as this stops subsequent executions
+          log.warn("Cannot reconcile blob store metrics", e);
+        }
+      }, reconcilePeriodSeconds, reconcilePeriodSeconds, SECONDS);
+    }
   }
 
   @Override
   protected void doStop() throws Exception {
     metricsWritingJob.cancel();
     metricsWritingJob = null;
+    metricsRefreshJob.cancel();
+    metricsRefreshJob = null;
+    if (reconcileExecutor != null) {
+      // abandons a listing in progress
+      reconcileExecutor.shutdownNow();
+      reconcileExecutor = null;
+    }
     jobService.stopUsing();
 
+    if (pendingSince.get() != 0) {
+      try {
+        flush();
+      }
+      catch (Exception e) {
+        log.warn("Cannot write blob store metrics on stop, changes since {} are lost", pendingSince.get(), e);
+      }
+    }
+
     blobCount = null;
     totalSize = null;
-    dirty = null;
 
     propertiesFile = null;
   }
@@ -136,66 +264,241 @@ public class S3BlobStoreMetricsStore
     this.s3 = s3;
   }
 
+  /**
+   * Sets how often the metrics files of other nodes are reloaded, takes effect on next start.
+   */
+  public void setRefreshPeriodSeconds(final int refreshPeriodSeconds) {
+    checkArgument(refreshPeriodSeconds > 0, "Refresh period must be positive");
+    this.refreshPeriodSeconds = refreshPeriodSeconds;
+  }
+
+  /**
+   * Periodically reconciles the metrics with totals computed by the given listing, takes effect on next start.
+   *
+   * @param periodSeconds how often to reconcile, {@code 0} to only reconcile on demand
+   */
+  public void setReconciliation(final Supplier<BlobStoreMetrics> listing, final int periodSeconds) {
+    checkArgument(periodSeconds >= 0, "Reconcile period must not be negative");
+    this.reconcileListing = checkNotNull(listing);
+    this.reconcilePeriodSeconds = periodSeconds;
+  }
+
+  /**
+   * Brings the combined metrics of all nodes in line with the totals computed by the given listing. Only this node's
+   * metrics file is written, as other nodes may be writing theirs: it takes on whatever the listed totals differ by
+   * from what the other nodes report, so its own counters may turn negative. Changes recorded here while listing are
+   * kept on top of the listed totals, whether or not the listing saw them.
+   */
   @Guarded(by = STARTED)
-  public BlobStoreMetrics getMetrics() {
-    Stream<S3PropertiesFile> blobStoreMetricsFiles = backingFiles();
-    return getCombinedMetrics(blobStoreMetricsFiles);
+  public BlobStoreMetrics reconcile(final Supplier<BlobStoreMetrics> listing) throws IOException {
+    long countBefore = blobCount.get();
+    long sizeBefore = totalSize.get();
+    long started = System.nanoTime();
+    BlobStoreMetrics listed = listing.get();
+    synchronized (this) {
+      refresh();
+      Totals others = otherNodes;
+      blobCount.addAndGet(listed.getBlobCount() - others.blobCount - countBefore);
+      totalSize.addAndGet(listed.getTotalSize() - others.totalSize - sizeBefore);
+      changed();
+      flush();
+    }
+    log.info("Reconciled blob store metrics of bucket {} with listing in {} ms: blobCount={}, totalSize={}", bucket,
+        NANOSECONDS.toMillis(System.nanoTime() - started), listed.getBlobCount(), listed.getTotalSize());
+    return listed;
   }
 
-  private BlobStoreMetrics getCombinedMetrics(final Stream<S3PropertiesFile> blobStoreMetricsFiles) {
+  /**
+   * Returns the metrics of all nodes, combining this node's live counters with those of other nodes as last
+   * refreshed.
+   */
+  @Guarded(by = STARTED)
+  public BlobStoreMetrics getMetrics() {
+    Totals others = otherNodes;
     AccumulatingBlobStoreMetrics blobStoreMetrics = new AccumulatingBlobStoreMetrics(0, 0, -1, true);
+    blobStoreMetrics.addBlobCount(blobCount.get() + others.blobCount);
+    blobStoreMetrics.addTotalSize(totalSize.get() + others.totalSize);
+    return blobStoreMetrics;
+  }
 
-    blobStoreMetricsFiles.forEach(metricsFile -> {
-        try {
-          metricsFile.load();
-          blobStoreMetrics.addBlobCount(parseLong(metricsFile.getProperty(BLOB_COUNT_PROP_NAME, "0")));
-          blobStoreMetrics.addTotalSize(parseLong(metricsFile.getProperty(TOTAL_SIZE_PROP_NAME, "0")));
-        } catch (IOException e) {
-          throw new RuntimeException(e);
+  /**
+   * Returns whether other nodes share the bucket, as far as their metrics files tell. Nodes that left keep counting
+   * until their metrics files are removed.
+   */
+  public boolean hasOtherNodes() {
+    return hasOtherNodes;
+  }
+
+  /**
+   * Reloads the metrics files of the other nodes, only transferring those that changed since last time.
+   */
+  synchronized void refresh() throws IOException {
+    String ownKey = metricsKey();
+    Set<String> keys = new HashSet<>(listMetricsKeys());
+    metricsFiles.keySet().retainAll(keys);
+
+    long count = 0;
+    long size = 0;
+    for (String key : keys) {
+      if (key.equals(ownKey)) {
+        continue;
+      }
+      S3PropertiesFile metricsFile = metricsFiles.computeIfAbsent(key, k -> new S3PropertiesFile(s3, bucket, k));
+      if (!metricsFile.loadIfExists()) {
+        // removed since it was listed
+        metricsFiles.remove(key);
+        continue;
+      }
+      count += parseLong(metricsFile.getProperty(BLOB_COUNT_PROP_NAME, "0"));
+      size += parseLong(metricsFile.getProperty(TOTAL_SIZE_PROP_NAME, "0"));
+    }
+    otherNodes = new Totals(count, size);
+    hasOtherNodes = !metricsFiles.isEmpty();
+    log.trace("Refreshed blob store metrics of {} other nodes: {}", metricsFiles.size(), otherNodes);
+  }
+
+  /**
+   * Writes pending changes once writes have paused for a flush period, or when the oldest of them reaches
+   * {@link #MAX_FLUSH_LAG_SECONDS}.
+   */
+  void flushIfDue() throws IOException {
+    boolean busy = recentChanges.getAndSet(0) > 0;
+    long since = pendingSince.get();
+    if (since != 0 && (!busy || System.currentTimeMillis() - since >= SECONDS.toMillis(MAX_FLUSH_LAG_SECONDS))) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes the counters to this node's metrics file. The file is revalidated first; if anyone else wrote it since the
+   * last flush their counters are kept and only the changes made here since are added on top.
+   */
+  synchronized void flush() throws IOException {
+    long started = System.nanoTime();
+    long since = pendingSince.getAndSet(0);
+    long count = blobCount.get();
+    long size = totalSize.get();
+    try {
+      if (propertiesFile.loadIfExists() && !isLastWrite()) {
+        long countDrift = parseLong(propertiesFile.getProperty(BLOB_COUNT_PROP_NAME, "0")) - flushedBlobCount;
+        long sizeDrift = parseLong(propertiesFile.getProperty(TOTAL_SIZE_PROP_NAME, "0")) - flushedTotalSize;
+        if (countDrift != 0 || sizeDrift != 0) {
+          log.warn("Blob store metrics file {} was changed by writer {}, merging changes of {} blobs, {} bytes",
+              propertiesFile, propertiesFile.getProperty(WRITER_PROP_NAME), countDrift, sizeDrift);
+          blobCount.addAndGet(countDrift);
+          totalSize.addAndGet(sizeDrift);
+          count += countDrift;
+          size += sizeDrift;
         }
-    });
-    return blobStoreMetrics;
+        sequence = Math.max(sequence, parseLong(propertiesFile.getProperty(SEQUENCE_PROP_NAME, "0")));
+      }
+      sequence++;
+      updateProperties(count, size);
+      log.trace("Writing blob store metrics to {}", propertiesFile);
+      propertiesFile.store();
+    }
+    catch (IOException | RuntimeException e) {
+      // keep the changes pending so the next flush retries them
+      if (since != 0) {
+        pendingSince.accumulateAndGet(since, (current, earlier) -> current == 0 ? earlier : Math.min(current, earlier));
+      }
+      throw e;
+    }
+    flushedBlobCount = count;
+    flushedTotalSize = size;
+    flushCount.incrementAndGet();
+    lastFlushLatencyMillis = NANOSECONDS.toMillis(System.nanoTime() - started);
+  }
+
+  /**
+   * Whether the loaded metrics file is the one last written here.
+   */
+  private boolean isLastWrite() {
+    return writerId.equals(propertiesFile.getProperty(WRITER_PROP_NAME))
+        && Long.toString(sequence).equals(propertiesFile.getProperty(SEQUENCE_PROP_NAME));
+  }
+
+  /**
+   * How long the last flush took, including revalidating the metrics file.
+   */
+  public long getFlushLatencyMillis() {
+    return lastFlushLatencyMillis;
+  }
+
+  /**
+   * How long the oldest change not yet flushed has been waiting, {@code 0} if everything is flushed.
+   */
+  public long getFlushLagMillis() {
+    long since = pendingSince.get();
+    return since == 0 ? 0 : Math.max(0, System.currentTimeMillis() - since);
+  }
+
+  public long getFlushCount() {
+    return flushCount.get();
   }
 
   @Guarded(by = STARTED)
   public void recordAddition(final long size) {
     blobCount.incrementAndGet();
     totalSize.addAndGet(size);
-    dirty.set(true);
+    changed();
   }
 
   @Guarded(by = STARTED)
   public void recordDeletion(final long size) {
     blobCount.decrementAndGet();
     totalSize.addAndGet(-size);
-    dirty.set(true);
+    changed();
   }
 
-  public void remove() {
-    backingFiles().forEach(metricsFile -> {
-        try {
-          metricsFile.remove();
-        }
-        catch (IOException e) {
-          throw new RuntimeException(e);
-        }
-    });
+  private void changed() {
+    recentChanges.incrementAndGet();
+    pendingSince.compareAndSet(0, System.currentTimeMillis());
   }
 
-  private Stream<S3PropertiesFile> backingFiles() {
+  public void remove() {
     if (s3 == null) {
-      return Stream.empty();
-    } else {
-      Stream<S3PropertiesFile> stream = s3.listObjects(bucket, nodeAccess.getId()).getObjectSummaries().stream()
-          .filter(summary -> summary.getKey().endsWith(METRICS_EXTENSION))
-          .map(summary -> new S3PropertiesFile(s3, bucket, summary.getKey()));
-      return stream;
+      return;
+    }
+    for (String key : listMetricsKeys()) {
+      try {
+        new S3PropertiesFile(s3, bucket, key).remove();
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    metricsFiles.clear();
+  }
+
+  private String metricsKey() {
+    return nodeAccess.getId() + METRICS_SUFFIX + METRICS_EXTENSION;
+  }
+
+  /**
+   * Lists the metrics files of all nodes, which sit at the root of the bucket, across all pages.
+   */
+  private List<String> listMetricsKeys() {
+    List<String> keys = new ArrayList<>();
+    ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucket).withDelimiter("/");
+    ObjectListing listing;
+    do {
+      listing = s3.listObjects(request);
+      listing.getObjectSummaries().stream()
+          .map(S3ObjectSummary::getKey)
+          .filter(key -> key.endsWith(METRICS_SUFFIX + METRICS_EXTENSION))
+          .forEach(keys::add);
+      request.setMarker(listing.getNextMarker());
     }
+    while (listing.isTruncated());
+    return keys;
   }
 
-  private void updateProperties() {
-    propertiesFile.setProperty(TOTAL_SIZE_PROP_NAME, totalSize.toString());
-    propertiesFile.setProperty(BLOB_COUNT_PROP_NAME, blobCount.toString());
+  private void updateProperties(final long count, final long size) {
+    propertiesFile.setProperty(TOTAL_SIZE_PROP_NAME, Long.toString(size));
+    propertiesFile.setProperty(BLOB_COUNT_PROP_NAME, Long.toString(count));
+    propertiesFile.setProperty(SEQUENCE_PROP_NAME, Long.toString(sequence));
+    propertiesFile.setProperty(WRITER_PROP_NAME, writerId);
   }
 
   private void readProperties() {
@@ -208,5 +511,24 @@ public class S3BlobStoreMetricsStore
     if (count != null) {
       blobCount.set(parseLong(count));
     }
+
+    sequence = parseLong(propertiesFile.getProperty(SEQUENCE_PROP_NAME, "0"));
+  }
+
+  private static final class Totals
+  {
+    private final long blobCount;
+
+    private final long totalSize;
+
+    private Totals(final long blobCount, final long totalSize) {
+      this.blobCount = blobCount;
+      this.totalSize = totalSize;
+    }
+
+    @Override
+    public String toString() {
+      return "blobCount=" + blobCount + ", totalSize=" + totalSize;
+    }
   }
 }
@@ -0,0 +1,131 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+
+import static com.amazonaws.util.AWSRequestMetrics.Field.HttpClientPoolAvailableCount;
+import static com.amazonaws.util.AWSRequestMetrics.Field.HttpClientPoolLeasedCount;
+import static com.amazonaws.util.AWSRequestMetrics.Field.HttpClientPoolPendingCount;
+
+/**
+ * Records the connection pool usage of an AmazonS3 client, as sampled by the client at each request.
+ */
+public class S3ClientMetrics
+    extends RequestMetricCollector
+{
+  private final int maxConnections;
+
+  private final AtomicLong requestCount = new AtomicLong();
+
+  private final AtomicLong leased = new AtomicLong();
+
+  private final AtomicLong available = new AtomicLong();
+
+  private final AtomicLong pending = new AtomicLong();
+
+  private final AtomicLong peakLeased = new AtomicLong();
+
+  private final AtomicLong peakPending = new AtomicLong();
+
+  public S3ClientMetrics(final int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  @Override
+  public void collectMetrics(final Request<?> request, final Response<?> response) {
+    requestCount.incrementAndGet();
+    AWSRequestMetrics metrics = request.getAWSRequestMetrics();
+    if (metrics == null) {
+      return;
+    }
+    TimingInfo timing = metrics.getTimingInfo();
+    record(timing, HttpClientPoolLeasedCount, leased, peakLeased);
+    record(timing, HttpClientPoolAvailableCount, available, null);
+    record(timing, HttpClientPoolPendingCount, pending, peakPending);
+  }
+
+  private static void record(final TimingInfo timing,
+                             final AWSRequestMetrics.Field field,
+                             final AtomicLong current,
+                             final AtomicLong peak)
+  {
+    Number count = timing.getCounter(field.name());
+    if (count == null) {
+      return;
+    }
+    current.set(count.longValue());
+    if (peak != null) {
+      peak.accumulateAndGet(count.longValue(), Math::max);
+    }
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Returns the connections in use as of the latest request.
+   */
+  public long getLeasedConnections() {
+    return leased.get();
+  }
+
+  /**
+   * Returns the idle pooled connections as of the latest request.
+   */
+  public long getAvailableConnections() {
+    return available.get();
+  }
+
+  /**
+   * Returns the requests waiting for a connection as of the latest request.
+   */
+  public long getPendingRequests() {
+    return pending.get();
+  }
+
+  public long getPeakLeasedConnections() {
+    return peakLeased.get();
+  }
+
+  /**
+   * Returns the most requests seen waiting for a connection, anything above zero means the pool is too small.
+   */
+  public long getPeakPendingRequests() {
+    return peakPending.get();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" +
+        "maxConnections=" + maxConnections +
+        ", requestCount=" + requestCount +
+        ", leased=" + leased +
+        ", available=" + available +
+        ", pending=" + pending +
+        ", peakLeased=" + peakLeased +
+        ", peakPending=" + peakPending +
+        '}';
+  }
+}
@@ -0,0 +1,427 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobId;
+
+import com.google.common.io.ByteStreams;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Keeps the content of recently read blobs on local disk, bounded by total size and evicting the least recently used.
+ *
+ * Entries are keyed by blob ID and only served for the SHA-1 the blob has when read, so content that changed misses
+ * rather than serving old bytes. The index is kept in memory, files left by an earlier run are discarded.
+ *
+ * Each cache owns a subdirectory of its own, named after its blob store, which it locks against use by any other cache
+ * in this or another process. Only the files the cache writes there are ever deleted.
+ */
+public class S3ContentCache
+    extends ComponentSupport
+{
+  private static final String CONTENT_SUFFIX = ".bytes";
+
+  private static final String PART_SUFFIX = ".part";
+
+  private static final String LOCK_FILENAME = ".lock";
+
+  private final Path directory;
+
+  private final FileChannel lockChannel;
+
+  private final long maxSize;
+
+  /**
+   * Guarded by this, in access order so the eldest entry is the least recently used.
+   */
+  private final LinkedHashMap<BlobId, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long size;
+
+  private final AtomicLong hitCount = new AtomicLong();
+
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * @param directory parent of the subdirectory the cache keeps its content in
+   * @param name      name of the subdirectory, unique to the blob store
+   * @throws IllegalStateException if another cache already uses the subdirectory
+   */
+  public S3ContentCache(final Path directory, final String name, final long maxSize) throws IOException {
+    checkArgument(maxSize > 0, "Maximum size must be positive");
+    checkArgument(!name.isEmpty() && !name.startsWith(".") && name.indexOf('/') < 0 && name.indexOf('\\') < 0,
+        "Invalid content cache name: %s", name);
+    this.directory = checkNotNull(directory).resolve(name);
+    this.maxSize = maxSize;
+    Files.createDirectories(this.directory);
+    this.lockChannel = lock(this.directory);
+    try {
+      clear();
+    }
+    catch (IOException | RuntimeException e) {
+      lockChannel.close();
+      throw e;
+    }
+  }
+
+  private static FileChannel lock(final Path directory) throws IOException {
+    FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILENAME), CREATE, WRITE);
+    FileLock lock;
+    try {
+      lock = channel.tryLock();
+    }
+    catch (OverlappingFileLockException e) {
+      // held within this process
+      lock = null;
+    }
+    if (lock == null) {
+      channel.close();
+      throw new IllegalStateException("Content cache directory " + directory + " is used by another blob store");
+    }
+    return channel;
+  }
+
+  /**
+   * Opens the given range of cached content, returning {@code null} if the blob is not cached with the given SHA-1.
+   * Reads go straight through a {@link FileChannel}, without staging the content in memory.
+   */
+  @Nullable
+  public InputStream open(final BlobId blobId, final String sha1, final long offset, final long length) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(blobId);
+    }
+    if (entry == null || !entry.sha1.equals(sha1)) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    try {
+      FileChannel channel = FileChannel.open(entry.path, READ);
+      hitCount.incrementAndGet();
+      return ByteStreams.limit(Channels.newInputStream(channel.position(offset)), length);
+    }
+    catch (NoSuchFileException e) {
+      // evicted since the lookup
+      missCount.incrementAndGet();
+      return null;
+    }
+    catch (IOException e) {
+      log.warn("Unable to read cached content of blob {} from {}", blobId, entry.path, e);
+      invalidate(blobId);
+      missCount.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Returns a stream of the given content which caches it as it is read. Only content read to its end at the given
+   * size is cached, content too large to ever fit is passed through as is.
+   */
+  public InputStream fill(final BlobId blobId, final String sha1, final long contentSize, final InputStream content) {
+    if (contentSize < 0 || contentSize > maxSize) {
+      return content;
+    }
+    Path part = directory.resolve(UUID.randomUUID() + PART_SUFFIX);
+    try {
+      FileChannel channel = FileChannel.open(part, CREATE_NEW, WRITE);
+      return new FillingInputStream(content, blobId, sha1, contentSize, part, channel);
+    }
+    catch (IOException e) {
+      log.warn("Unable to cache content of blob {} at {}", blobId, part, e);
+      return content;
+    }
+  }
+
+  /**
+   * Drops the cached content of the given blob, if any.
+   */
+  public void invalidate(final BlobId blobId) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.remove(blobId);
+      if (entry != null) {
+        size -= entry.size;
+      }
+    }
+    if (entry != null) {
+      deleteQuietly(entry.path);
+    }
+  }
+
+  /**
+   * Drops all cached content, including files of an earlier run and fills still in progress. Files the cache did not
+   * write are left alone.
+   */
+  public void clear() throws IOException {
+    synchronized (this) {
+      entries.clear();
+      size = 0;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, S3ContentCache::isCacheFile)) {
+      for (Path file : files) {
+        deleteQuietly(file);
+      }
+    }
+  }
+
+  /**
+   * Drops all cached content and gives up the directory for use by another cache.
+   */
+  public void close() throws IOException {
+    try {
+      clear();
+    }
+    finally {
+      lockChannel.close();
+    }
+  }
+
+  private static boolean isCacheFile(final Path path) {
+    String filename = path.getFileName().toString();
+    return Files.isRegularFile(path) && (filename.endsWith(CONTENT_SUFFIX) || filename.endsWith(PART_SUFFIX));
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  private void commit(final BlobId blobId, final String sha1, final Path part, final long contentSize) {
+    Path path = directory.resolve(UUID.randomUUID() + CONTENT_SUFFIX);
+    try {
+      Files.move(part, path);
+    }
+    catch (IOException e) {
+      log.debug("Unable to move cached content of blob {} into place", blobId, e);
+      deleteQuietly(part);
+      return;
+    }
+    List<Path> evicted = new ArrayList<>();
+    synchronized (this) {
+      Entry replaced = entries.put(blobId, new Entry(sha1, path, contentSize));
+      if (replaced != null) {
+        size -= replaced.size;
+        evicted.add(replaced.path);
+      }
+      size += contentSize;
+      Iterator<Map.Entry<BlobId, Entry>> eldest = entries.entrySet().iterator();
+      while (size > maxSize && eldest.hasNext()) {
+        Entry entry = eldest.next().getValue();
+        eldest.remove();
+        size -= entry.size;
+        evicted.add(entry.path);
+      }
+    }
+    // readers that already opened an evicted file keep reading it
+    evicted.forEach(this::deleteQuietly);
+  }
+
+  private void deleteQuietly(final Path path) {
+    try {
+      Files.deleteIfExists(path);
+    }
+    catch (IOException e) {
+      log.debug("Unable to delete cached content {}", path, e);
+    }
+  }
+
+  private static class Entry
+  {
+    private final String sha1;
+
+    private final Path path;
+
+    private final long size;
+
+    Entry(final String sha1, final Path path, final long size) {
+      this.sha1 = sha1;
+      this.path = path;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Writes what the caller reads to a part file, which becomes a cache entry once the content has been read in full.
+   * Failing to write only stops the caching, the caller keeps reading.
+   */
+  private class FillingInputStream
+      extends FilterInputStream
+  {
+    private final BlobId blobId;
+
+    private final String sha1;
+
+    private final long contentSize;
+
+    private final Path part;
+
+    private FileChannel channel;
+
+    private long written;
+
+    FillingInputStream(final InputStream in,
+                       final BlobId blobId,
+                       final String sha1,
+                       final long contentSize,
+                       final Path part,
+                       final FileChannel channel)
+    {
+      super(in);
+      this.blobId = blobId;
+      this.sha1 = sha1;
+      this.contentSize = contentSize;
+      this.part = part;
+      this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b < 0) {
+        complete();
+      }
+      else {
+        write(ByteBuffer.wrap(new byte[]{(byte) b}));
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n < 0) {
+        complete();
+      }
+      else if (n > 0) {
+        write(ByteBuffer.wrap(b, off, n));
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      // skipped bytes would leave a gap in the cached content
+      abandon();
+      return in.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        in.close();
+      }
+      finally {
+        abandon();
+      }
+    }
+
+    private void write(final ByteBuffer buffer) {
+      if (channel == null) {
+        return;
+      }
+      try {
+        while (buffer.hasRemaining()) {
+          written += channel.write(buffer);
+        }
+      }
+      catch (IOException e) {
+        log.debug("Unable to cache content of blob {}", blobId, e);
+        abandon();
+      }
+    }
+
+    private void complete() {
+      if (channel == null) {
+        return;
+      }
+      try {
+        channel.close();
+      }
+      catch (IOException e) {
+        log.debug("Unable to cache content of blob {}", blobId, e);
+        abandon();
+        return;
+      }
+      channel = null;
+      if (written == contentSize) {
+        commit(blobId, sha1, part, written);
+      }
+      else {
+        deleteQuietly(part);
+      }
+    }
+
+    private void abandon() {
+      if (channel == null) {
+        return;
+      }
+      try {
+        channel.close();
+      }
+      catch (IOException e) {
+        log.debug("Unable to close cached content of blob {}", blobId, e);
+      }
+      channel = null;
+      deleteQuietly(part);
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sonatype.nexus.blobstore.api.BlobId;
+
+/**
+ * Outcome of deleting many blobs at once.
+ */
+public class S3DeleteResult
+{
+  private final AtomicLong deleted = new AtomicLong();
+
+  private final AtomicLong skipped = new AtomicLong();
+
+  private final Map<BlobId, String> failures = new ConcurrentHashMap<>();
+
+  /**
+   * Number of blobs deleted.
+   */
+  public long getDeleted() {
+    return deleted.get();
+  }
+
+  /**
+   * Number of blobs left alone because they did not exist or were already deleted.
+   */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  /**
+   * Blobs that could not be deleted, with the reason why.
+   */
+  public Map<BlobId, String> getFailures() {
+    return Collections.unmodifiableMap(failures);
+  }
+
+  public boolean isSuccessful() {
+    return failures.isEmpty();
+  }
+
+  void recordDeleted() {
+    deleted.incrementAndGet();
+  }
+
+  void recordSkipped() {
+    skipped.incrementAndGet();
+  }
+
+  void recordFailure(final BlobId blobId, final String reason) {
+    failures.merge(blobId, reason, (first, second) -> first + "; " + second);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" +
+        "deleted=" + deleted +
+        ", skipped=" + skipped +
+        ", failed=" + failures.size() +
+        '}';
+  }
+}
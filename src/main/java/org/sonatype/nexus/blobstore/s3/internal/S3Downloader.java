@@ -0,0 +1,369 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.io.ByteStreams;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Downloads blob content from AWS S3, one instance being shared by all downloads of a blob store.
+ *
+ * Content at or above the parallel download threshold is split into byte ranges which are fetched concurrently,
+ * reading a bounded number of ranges ahead of the caller, and presented as a single ordered {@link InputStream}.
+ * Smaller content is streamed from a single GET.
+ *
+ * Ranges held in memory, whether being fetched, waiting to be read or being read, count against a budget shared by
+ * all downloads of the blob store, so the heap used does not grow with the number of concurrent downloads. Once the
+ * budget is spent downloads read ahead less, and new downloads wait for ranges to be read.
+ */
+public class S3Downloader
+    extends ComponentSupport
+{
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10L;
+
+  /**
+   * Largest range fetched, ranges are held in memory.
+   */
+  static final int MAX_RANGE_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * Bytes of ranges held in memory at most, unless configured otherwise.
+   */
+  static final long DEFAULT_BUFFER_SIZE = 512L * 1024 * 1024;
+
+  private final AmazonS3 s3;
+
+  private final String bucket;
+
+  private final long threshold;
+
+  private final int rangeSize;
+
+  private final int concurrency;
+
+  private final Semaphore budget;
+
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param threshold   content size at which downloads are split into ranges, negative to always use a single GET
+   * @param rangeSize   size of each range fetched, at most {@link #MAX_RANGE_SIZE}
+   * @param concurrency number of ranges each download fetches ahead of its reader
+   * @param threads     number of threads shared by all downloads
+   */
+  public S3Downloader(final AmazonS3 s3,
+                      final String bucket,
+                      final long threshold,
+                      final long rangeSize,
+                      final int concurrency,
+                      final int threads)
+  {
+    this(s3, bucket, threshold, rangeSize, concurrency, threads, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize bytes of ranges all downloads may hold in memory, at least the range size
+   */
+  public S3Downloader(final AmazonS3 s3,
+                      final String bucket,
+                      final long threshold,
+                      final long rangeSize,
+                      final int concurrency,
+                      final int threads,
+                      final long bufferSize)
+  {
+    // fair, so that downloads waiting for their first range are not starved by those reading ahead
+    this(s3, bucket, threshold, rangeSize, concurrency, threads, new Semaphore(budgetOf(bufferSize, rangeSize), true));
+  }
+
+  /**
+   * @param budget kilobytes of ranges downloads may hold in memory
+   */
+  S3Downloader(final AmazonS3 s3,
+               final String bucket,
+               final long threshold,
+               final long rangeSize,
+               final int concurrency,
+               final int threads,
+               final Semaphore budget)
+  {
+    checkArgument(rangeSize > 0, "Range size must be positive");
+    checkArgument(rangeSize <= MAX_RANGE_SIZE, "Range size must not exceed %s bytes", MAX_RANGE_SIZE);
+    checkArgument(concurrency > 0, "Concurrency must be positive");
+    checkArgument(threads > 0, "Threads must be positive");
+    this.s3 = checkNotNull(s3);
+    this.bucket = checkNotNull(bucket);
+    this.threshold = threshold;
+    this.rangeSize = (int) rangeSize;
+    this.concurrency = concurrency;
+    this.budget = checkNotNull(budget);
+    // queue is bounded by the budget, no range is queued without its share of it
+    this.executor = new ThreadPoolExecutor(threads, threads, 60L, SECONDS, new LinkedBlockingQueue<>(),
+        new NexusThreadFactory("s3-blobstore", "download-" + bucket));
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Opens the content stored under the given key, which is known to be of the given size.
+   */
+  public InputStream open(final String key, final long size) {
+    if (threshold < 0 || size < threshold || size <= rangeSize) {
+      S3Object object = s3.getObject(bucket, key);
+      return object.getObjectContent();
+    }
+    log.debug("Downloading {} ({} bytes) in ranges of {} bytes", key, size, rangeSize);
+    return new RangedInputStream(key, 0, size);
+  }
+
+  /**
+   * Opens the given range of the content stored under the given key, using a single ranged GET unless the range is
+   * large enough to be fetched in parallel.
+   */
+  public InputStream open(final String key, final long offset, final long length) {
+    checkArgument(offset >= 0, "Offset must not be negative");
+    checkArgument(length >= 0, "Length must not be negative");
+    if (length == 0) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+    if (threshold < 0 || length < threshold || length <= rangeSize) {
+      S3Object object = s3.getObject(new GetObjectRequest(bucket, key).withRange(offset, offset + length - 1));
+      return object.getObjectContent();
+    }
+    log.debug("Downloading {} bytes at {} of {} in ranges of {} bytes", length, offset, key, rangeSize);
+    return new RangedInputStream(key, offset, offset + length);
+  }
+
+  /**
+   * Stops fetching ranges, abandoning any downloads still in progress.
+   */
+  public void shutdown() throws InterruptedException {
+    executor.shutdownNow();
+    if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, SECONDS)) {
+      log.warn("Downloads from bucket {} did not stop within {} seconds", bucket, SHUTDOWN_TIMEOUT_SECONDS);
+    }
+  }
+
+  private static int budgetOf(final long bufferSize, final long rangeSize) {
+    checkArgument(bufferSize >= rangeSize, "Buffer size must be at least the range size of %s bytes", rangeSize);
+    checkArgument(bufferSize <= 1024L * Integer.MAX_VALUE, "Buffer size must not exceed %s kilobytes",
+        Integer.MAX_VALUE);
+    return kilobytes(bufferSize);
+  }
+
+  /**
+   * Share of the budget taken by a range of the given size.
+   */
+  private static int kilobytes(final long size) {
+    return (int) ((size + 1023) / 1024);
+  }
+
+  private byte[] fetch(final String key, final long start, final long end) throws IOException {
+    GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(start, end - 1);
+    try (S3Object object = s3.getObject(request); InputStream input = object.getObjectContent()) {
+      byte[] range = new byte[(int) (end - start)];
+      ByteStreams.readFully(input, range);
+      return range;
+    }
+  }
+
+  /**
+   * Presents ranges of an object, fetched concurrently ahead of the reader, as a single stream.
+   */
+  private class RangedInputStream
+      extends InputStream
+  {
+    private final String key;
+
+    private final long end;
+
+    private final Deque<Range> pending = new ArrayDeque<>();
+
+    private long next;
+
+    private byte[] current = new byte[0];
+
+    /**
+     * Share of the budget held for the current range, until it has been read.
+     */
+    private int currentKilobytes;
+
+    private int position;
+
+    private boolean closed;
+
+    RangedInputStream(final String key, final long start, final long end) {
+      this.key = key;
+      this.next = start;
+      this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!ensureAvailable()) {
+        return -1;
+      }
+      return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (!ensureAvailable()) {
+        return -1;
+      }
+      int count = min(length, current.length - position);
+      System.arraycopy(current, position, bytes, offset, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return current.length - position;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        pending.forEach(range -> {
+          range.content.cancel(true);
+          budget.release(range.kilobytes);
+        });
+        pending.clear();
+        releaseCurrent();
+      }
+    }
+
+    private void releaseCurrent() {
+      budget.release(currentKilobytes);
+      currentKilobytes = 0;
+      current = new byte[0];
+      position = 0;
+    }
+
+    private boolean ensureAvailable() throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      while (position == current.length) {
+        releaseCurrent();
+        readAhead();
+        Range range = pending.poll();
+        if (range == null) {
+          return false;
+        }
+        currentKilobytes = range.kilobytes;
+        try {
+          current = range.content.get();
+          position = 0;
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          close();
+          throw new InterruptedIOException("Interrupted downloading " + key);
+        }
+        catch (ExecutionException e) {
+          close();
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new IOException(cause);
+        }
+      }
+      readAhead();
+      return true;
+    }
+
+    private void readAhead() throws InterruptedIOException {
+      while (pending.size() < concurrency && next < end) {
+        long start = next;
+        long stop = min(end, start + rangeSize);
+        int kilobytes = kilobytes(stop - start);
+        if (!takeBudget(kilobytes)) {
+          return;
+        }
+        Future<byte[]> content;
+        try {
+          content = executor.submit(() -> fetch(key, start, stop));
+        }
+        catch (RejectedExecutionException e) {
+          // shut down while this stream is still open
+          budget.release(kilobytes);
+          throw e;
+        }
+        pending.add(new Range(content, kilobytes));
+        next = stop;
+      }
+    }
+
+    /**
+     * Only waits for the budget while holding none of it, so that downloads cannot wait on one another.
+     */
+    private boolean takeBudget(final int kilobytes) throws InterruptedIOException {
+      if (!pending.isEmpty() || currentKilobytes > 0) {
+        return budget.tryAcquire(kilobytes);
+      }
+      try {
+        budget.acquire(kilobytes);
+        return true;
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+        throw new InterruptedIOException("Interrupted downloading " + key);
+      }
+    }
+  }
+
+  private static class Range
+  {
+    private final Future<byte[]> content;
+
+    private final int kilobytes;
+
+    Range(final Future<byte[]> content, final int kilobytes) {
+      this.content = content;
+      this.kilobytes = kilobytes;
+    }
+  }
+}
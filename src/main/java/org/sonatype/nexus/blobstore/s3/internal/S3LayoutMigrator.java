@@ -0,0 +1,204 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.BLOB_ATTRIBUTE_SUFFIX;
+
+/**
+ * Migrates the blobs of a bucket from the {@link S3BlobStore#TYPE_V1} layout to {@link S3BlobStore#TYPE_V2} in the
+ * background while the blob store remains in use.
+ *
+ * Walks the .properties objects one listing page at a time, migrating the blobs of each page with bounded
+ * concurrency before listing the next. Migrated blobs lose their .properties, so an interrupted migration simply
+ * resumes with those that are left.
+ */
+public class S3LayoutMigrator
+    extends ComponentSupport
+{
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 30L;
+
+  /**
+   * Migrates a single blob given the key of its .properties object, returning {@code false} if it was left as is.
+   */
+  @FunctionalInterface
+  public interface BlobMigration
+  {
+    boolean migrate(String attributeKey) throws IOException;
+  }
+
+  private final AmazonS3 s3;
+
+  private final String bucket;
+
+  private final String prefix;
+
+  private final BlobMigration migration;
+
+  private final ExecutorService executor;
+
+  private final AtomicLong migrated = new AtomicLong();
+
+  private final AtomicLong skipped = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private volatile boolean stopped;
+
+  private volatile boolean complete;
+
+  public S3LayoutMigrator(final AmazonS3 s3,
+                          final String bucket,
+                          final String prefix,
+                          final int concurrency,
+                          final BlobMigration migration)
+  {
+    checkArgument(concurrency > 0, "Concurrency must be positive");
+    this.s3 = checkNotNull(s3);
+    this.bucket = checkNotNull(bucket);
+    this.prefix = checkNotNull(prefix);
+    this.migration = checkNotNull(migration);
+    this.executor = Executors.newFixedThreadPool(concurrency,
+        new NexusThreadFactory("s3-blobstore", "migrate-" + bucket));
+  }
+
+  /**
+   * Starts migrating on a background thread, running the given callback if every blob was visited without error.
+   */
+  public void start(final Runnable onComplete) {
+    checkNotNull(onComplete);
+    new NexusThreadFactory("s3-blobstore", "migrate-list-" + bucket).newThread(() -> {
+      try {
+        if (run()) {
+          onComplete.run();
+        }
+      }
+      catch (Exception e) {
+        log.warn("Layout migration of bucket {} failed, it will resume on next start", bucket, e);
+      }
+    }).start();
+  }
+
+  /**
+   * Migrates all blobs, returning {@code true} if every blob was visited without error.
+   */
+  boolean run() throws InterruptedException {
+    log.info("Migrating blobs of bucket {} to attributes in object metadata", bucket);
+    long started = System.nanoTime();
+    ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucket).withPrefix(prefix);
+    ObjectListing listing;
+    do {
+      listing = s3.listObjects(request);
+      List<Future<Boolean>> batch = new ArrayList<>();
+      for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+        String key = summary.getKey();
+        if (key.endsWith(BLOB_ATTRIBUTE_SUFFIX) && !stopped) {
+          try {
+            batch.add(executor.submit(() -> migration.migrate(key)));
+          }
+          catch (RejectedExecutionException e) {
+            // stopped while this page was being submitted
+            break;
+          }
+        }
+      }
+      for (Future<Boolean> result : batch) {
+        await(result);
+      }
+      if (stopped) {
+        log.info("Layout migration of bucket {} stopped after {} blobs", bucket, migrated.get());
+        return false;
+      }
+      log.debug("Layout migration of bucket {}: {} migrated, {} skipped, {} failed",
+          bucket, migrated.get(), skipped.get(), failed.get());
+      request.setMarker(listing.getNextMarker());
+    }
+    while (listing.isTruncated());
+
+    long elapsedSeconds = Math.max(1L, NANOSECONDS.toSeconds(System.nanoTime() - started));
+    log.info("Layout migration of bucket {} finished: {} migrated, {} skipped, {} failed in {} s ({} blobs/s)",
+        bucket, migrated.get(), skipped.get(), failed.get(), elapsedSeconds, migrated.get() / elapsedSeconds);
+    executor.shutdown();
+    complete = failed.get() == 0;
+    return complete;
+  }
+
+  private void await(final Future<Boolean> result) throws InterruptedException {
+    try {
+      if (result.get()) {
+        migrated.incrementAndGet();
+      }
+      else {
+        skipped.incrementAndGet();
+      }
+    }
+    catch (CancellationException e) {
+      skipped.incrementAndGet();
+    }
+    catch (ExecutionException e) {
+      failed.incrementAndGet();
+      log.warn("Unable to migrate blob in bucket {}", bucket, e.getCause());
+    }
+  }
+
+  /**
+   * Stops migrating, blobs already being migrated are allowed to finish.
+   */
+  public void stop() throws InterruptedException {
+    stopped = true;
+    executor.shutdown();
+    if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, SECONDS)) {
+      log.warn("Layout migration of bucket {} did not stop within {} seconds", bucket, SHUTDOWN_TIMEOUT_SECONDS);
+      // queued migrations are submitted futures, cancel them so the listing thread is not left waiting on them
+      executor.shutdownNow().forEach(task -> ((Future<?>) task).cancel(false));
+    }
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+
+  public long getMigrated() {
+    return migrated.get();
+  }
+
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+}
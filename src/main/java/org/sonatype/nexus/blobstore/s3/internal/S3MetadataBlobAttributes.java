@@ -0,0 +1,240 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.api.BlobMetrics;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.apache.http.HttpStatus;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Blob attributes of the {@link S3BlobStore#TYPE_V2} layout, kept in the user metadata of the content object itself
+ * so they are read with a single HEAD.
+ *
+ * Attributes too large for S3's 2KB user metadata limit, that is above {@link #MAX_ENCODED_SIZE} characters once
+ * encoded, or of blobs not yet migrated from the {@link S3BlobStore#TYPE_V1} layout, stay in a .properties object
+ * which is read when the metadata entry is missing. So do the attributes of content larger than
+ * {@link #MAX_COPY_SIZE}, which could not be rewritten without a multipart copy.
+ *
+ * Metadata cannot be changed without copying the whole object, so attributes move to a .properties object the first
+ * time they are updated and are updated there from then on. Blobs that are updated pay for one copy and a second
+ * request on every load, those that are never updated keep the single HEAD.
+ */
+public class S3MetadataBlobAttributes
+    extends S3BlobAttributes
+{
+  static final String ATTRIBUTES_METADATA_KEY = "nexus-attributes";
+
+  /**
+   * S3 allows 2KB of user metadata including keys, leave some room for the key and other entries.
+   */
+  static final int MAX_ENCODED_SIZE = 1900;
+
+  /**
+   * Largest object S3 copies in a single request, which moving attributes out of metadata takes.
+   */
+  static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+  private final AmazonS3 s3;
+
+  private final String bucket;
+
+  private final String contentKey;
+
+  /**
+   * Metadata of the content object as last read or written, {@code null} if it has not been seen.
+   */
+  private ObjectMetadata objectMetadata;
+
+  private boolean inMetadata;
+
+  public S3MetadataBlobAttributes(final AmazonS3 s3,
+                                  final String bucket,
+                                  final String contentKey,
+                                  final String attributeKey)
+  {
+    super(s3, bucket, attributeKey);
+    this.s3 = s3;
+    this.bucket = checkNotNull(bucket);
+    this.contentKey = checkNotNull(contentKey);
+  }
+
+  public S3MetadataBlobAttributes(final AmazonS3 s3,
+                                  final String bucket,
+                                  final String contentKey,
+                                  final String attributeKey,
+                                  final Map<String, String> headers,
+                                  final BlobMetrics metrics)
+  {
+    super(s3, bucket, attributeKey, headers, metrics);
+    this.s3 = s3;
+    this.bucket = checkNotNull(bucket);
+    this.contentKey = checkNotNull(contentKey);
+  }
+
+  /**
+   * Whether these attributes live in the content object's metadata rather than a .properties object.
+   */
+  public boolean isInMetadata() {
+    return inMetadata;
+  }
+
+  @Override
+  public boolean load() throws IOException {
+    try {
+      objectMetadata = s3.getObjectMetadata(bucket, contentKey);
+    }
+    catch (AmazonS3Exception e) {
+      if (e.getStatusCode() != HttpStatus.SC_NOT_FOUND) {
+        throw e;
+      }
+      // content may have expired ahead of its attributes
+      objectMetadata = null;
+    }
+    String encoded = objectMetadata != null ? objectMetadata.getUserMetaDataOf(ATTRIBUTES_METADATA_KEY) : null;
+    if (encoded == null) {
+      inMetadata = false;
+      return super.load();
+    }
+    readFrom(decode(encoded));
+    inMetadata = true;
+    return true;
+  }
+
+  /**
+   * Stores the attributes in the .properties object, dropping them from the metadata if they were kept there.
+   */
+  @Override
+  public void store() throws IOException {
+    super.store();
+    if (inMetadata) {
+      // written the .properties first so attributes are never missing, later updates only write that
+      replaceMetadata(null);
+      inMetadata = false;
+    }
+  }
+
+  /**
+   * Returns the user metadata to send with the content of a new blob, or {@code null} if the attributes or content are
+   * too large and the attributes must be stored in a .properties object instead.
+   */
+  @Nullable
+  public Map<String, String> toUserMetadata() {
+    if (getMetrics() != null && getMetrics().getContentSize() > MAX_COPY_SIZE) {
+      return null;
+    }
+    String encoded;
+    try {
+      encoded = encode();
+    }
+    catch (IOException e) {
+      // encoding happens in memory, this does not occur
+      throw new UncheckedIOException(e);
+    }
+    if (encoded == null) {
+      return null;
+    }
+    inMetadata = true;
+    return Collections.singletonMap(ATTRIBUTES_METADATA_KEY, encoded);
+  }
+
+  /**
+   * Moves attributes held in a .properties object into the metadata of content no larger than the given size, by
+   * copying the content object onto itself. Returns {@code false} if the blob or its content does not exist, or its
+   * attributes have to stay where they are.
+   */
+  public boolean migrate(final long maxContentSize) throws IOException {
+    if (!load()) {
+      return false;
+    }
+    if (!inMetadata) {
+      if (objectMetadata == null || objectMetadata.getContentLength() > Math.min(maxContentSize, MAX_COPY_SIZE)) {
+        return false;
+      }
+      String encoded = encode();
+      if (encoded == null) {
+        return false;
+      }
+      replaceMetadata(encoded);
+      inMetadata = true;
+    }
+    // also tidies up after a migration interrupted between the copy and this delete
+    deletePropertiesFile();
+    return true;
+  }
+
+  @Override
+  public Properties getProperties() {
+    return inMetadata ? writeTo(new Properties()) : super.getProperties();
+  }
+
+  private void replaceMetadata(@Nullable final String encoded) {
+    ObjectMetadata metadata = new ObjectMetadata();
+    Map<String, String> userMetadata = new HashMap<>();
+    if (objectMetadata != null) {
+      userMetadata.putAll(objectMetadata.getUserMetadata());
+      if (objectMetadata.getContentType() != null) {
+        metadata.setContentType(objectMetadata.getContentType());
+      }
+    }
+    userMetadata.remove(ATTRIBUTES_METADATA_KEY);
+    if (encoded != null) {
+      userMetadata.put(ATTRIBUTES_METADATA_KEY, encoded);
+    }
+    metadata.setUserMetadata(userMetadata);
+    // copying an object onto itself with new metadata rewrites the metadata, tags are copied along
+    s3.copyObject(new CopyObjectRequest(bucket, contentKey, bucket, contentKey).withNewObjectMetadata(metadata));
+    objectMetadata = metadata;
+  }
+
+  @Nullable
+  private String encode() throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    writeTo(new Properties()).store(buffer, null);
+    String encoded = Base64.getEncoder().encodeToString(buffer.toByteArray());
+    return encoded.length() <= MAX_ENCODED_SIZE ? encoded : null;
+  }
+
+  private static Properties decode(final String encoded) throws IOException {
+    Properties properties = new Properties();
+    properties.load(new ByteArrayInputStream(Base64.getDecoder().decode(encoded.getBytes(ISO_8859_1))));
+    return properties;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" +
+        "bucket=" + bucket +
+        ", contentKey=" + contentKey +
+        ", inMetadata=" + inMetadata +
+        '}';
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Bounded pool of reusable direct {@link ByteBuffer}s used to hold parts of streaming uploads off the Java heap.
+ *
+ * Buffers are allocated lazily up to the pool capacity and recycled on release. Callers asking for more buffers than
+ * are currently free block until enough have been released, which applies backpressure to uploads instead of letting
+ * part data pile up in memory.
+ *
+ * Callers that already hold buffers may overdraw the pool with heap buffers after waiting in vain, so that callers
+ * holding every buffer while waiting on more cannot deadlock. Heap buffers are bounded by the overdraft capacity
+ * shared by all callers, not allocated per caller.
+ */
+public class S3PartBufferPool
+{
+  private final int bufferSize;
+
+  private final int capacity;
+
+  private final Semaphore permits;
+
+  private final int overdraftCapacity;
+
+  private final Semaphore overdraftPermits;
+
+  /**
+   * Heap buffers handed out by {@link #takeOrOverdraw(long, TimeUnit)}, by identity as buffers compare by content.
+   */
+  private final Set<ByteBuffer> overdrawn =
+      Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+  private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger allocated = new AtomicInteger();
+
+  private final AtomicLong waits = new AtomicLong();
+
+  private final AtomicLong overdrafts = new AtomicLong();
+
+  /**
+   * Creates a pool which may be overdrawn by a quarter of its capacity.
+   */
+  public S3PartBufferPool(final int bufferSize, final int capacity) {
+    this(bufferSize, capacity, Math.max(1, capacity / 4));
+  }
+
+  /**
+   * @param overdraftCapacity most heap buffers handed out at once when the pool is exhausted, {@code 0} for none
+   */
+  public S3PartBufferPool(final int bufferSize, final int capacity, final int overdraftCapacity) {
+    checkArgument(bufferSize > 0, "Buffer size must be positive");
+    checkArgument(capacity > 0, "Capacity must be positive");
+    checkArgument(overdraftCapacity >= 0, "Overdraft capacity must not be negative");
+    this.bufferSize = bufferSize;
+    this.capacity = capacity;
+    this.overdraftCapacity = overdraftCapacity;
+    // fair, so that callers waiting on several buffers are not starved by those taking one at a time
+    this.permits = new Semaphore(capacity, true);
+    this.overdraftPermits = new Semaphore(overdraftCapacity);
+  }
+
+  /**
+   * Takes a single buffer, waiting until one is free.
+   */
+  public ByteBuffer take() throws InterruptedException {
+    acquire(1);
+    return poll();
+  }
+
+  /**
+   * Takes a single buffer, waiting up to the given time for one to be free. For callers that already hold buffers and
+   * so must not wait indefinitely, should no buffer be freed in time a heap buffer of the same size is handed out
+   * instead, as long as the overdraft capacity allows.
+   *
+   * @return the buffer, or {@code null} if none was freed in time and the overdraft capacity is used up
+   */
+  @Nullable
+  public ByteBuffer takeOrOverdraw(final long timeout, final TimeUnit unit) throws InterruptedException {
+    if (permits.tryAcquire()) {
+      return poll();
+    }
+    waits.incrementAndGet();
+    if (permits.tryAcquire(timeout, unit)) {
+      return poll();
+    }
+    if (!overdraftPermits.tryAcquire()) {
+      return null;
+    }
+    overdrafts.incrementAndGet();
+    ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+    overdrawn.add(buffer);
+    return buffer;
+  }
+
+  /**
+   * Takes the given number of buffers at once, waiting until they are all free.
+   */
+  public List<ByteBuffer> take(final int count) throws InterruptedException {
+    checkArgument(count > 0 && count <= capacity, "Cannot take %s of %s buffers", count, capacity);
+    acquire(count);
+    List<ByteBuffer> buffers = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      buffers.add(poll());
+    }
+    return buffers;
+  }
+
+  /**
+   * Returns a buffer to the pool, buffers that did not come from this pool are ignored.
+   */
+  public void release(final ByteBuffer buffer) {
+    if (overdrawn.remove(buffer)) {
+      // left to the garbage collector
+      overdraftPermits.release();
+    }
+    else if (buffer.isDirect() && buffer.capacity() == bufferSize) {
+      buffer.clear();
+      free.offer(buffer);
+      permits.release();
+    }
+  }
+
+  public void release(final List<ByteBuffer> buffers) {
+    buffers.forEach(this::release);
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Number of buffers allocated so far, never more than the capacity.
+   */
+  public int getAllocated() {
+    return allocated.get();
+  }
+
+  /**
+   * Number of buffers currently held by uploads.
+   */
+  public int getInUse() {
+    return capacity - permits.availablePermits();
+  }
+
+  /**
+   * Estimated number of threads currently blocked waiting for buffers.
+   */
+  public int getWaiting() {
+    return permits.getQueueLength();
+  }
+
+  /**
+   * Total number of times a caller had to wait for buffers to be released.
+   */
+  public long getWaits() {
+    return waits.get();
+  }
+
+  /**
+   * Total number of heap buffers handed out by {@link #takeOrOverdraw(long, TimeUnit)} because the pool was exhausted.
+   */
+  public long getOverdrafts() {
+    return overdrafts.get();
+  }
+
+  public int getOverdraftCapacity() {
+    return overdraftCapacity;
+  }
+
+  /**
+   * Number of heap buffers currently held by uploads, never more than the overdraft capacity.
+   */
+  public int getOverdrawn() {
+    return overdraftCapacity - overdraftPermits.availablePermits();
+  }
+
+  private void acquire(final int count) throws InterruptedException {
+    if (!permits.tryAcquire(count)) {
+      waits.incrementAndGet();
+      permits.acquire(count);
+    }
+  }
+
+  private ByteBuffer poll() {
+    ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      allocated.incrementAndGet();
+      buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+    return buffer;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "{" +
+        "bufferSize=" + bufferSize +
+        ", capacity=" + capacity +
+        ", allocated=" + getAllocated() +
+        ", inUse=" + getInUse() +
+        ", waiting=" + getWaiting() +
+        ", overdrawn=" + getOverdrawn() +
+        '}';
+  }
+}
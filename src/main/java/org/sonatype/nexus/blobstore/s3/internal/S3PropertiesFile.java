@@ -18,11 +18,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
 
+import javax.annotation.Nullable;
+
+import org.apache.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.S3Object;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -41,6 +47,11 @@ public class S3PropertiesFile
 
   private final String key;
 
+  /**
+   * ETag of the content last loaded or stored, used to skip reloading unchanged files.
+   */
+  private String etag;
+
   public S3PropertiesFile(final AmazonS3 s3, final String bucket, final String key) {
     this.s3 = checkNotNull(s3);
     this.bucket = checkNotNull(bucket);
@@ -54,9 +65,53 @@ public class S3PropertiesFile
       try (InputStream inputStream = object.getObjectContent()) {
         load(inputStream);
       }
+      etag = etagOf(object);
     }
   }
 
+  /**
+   * Loads the file with a single GET, returning {@code false} if it does not exist. Once loaded, later calls only
+   * transfer the file again if its ETag has changed, otherwise the properties already held are kept.
+   */
+  public boolean loadIfExists() throws IOException {
+    log.debug("Loading: {}/{} (etag {})", bucket, key, etag);
+
+    GetObjectRequest request = new GetObjectRequest(bucket, key);
+    if (etag != null) {
+      request.withNonmatchingETagConstraint(etag);
+    }
+    try (S3Object object = s3.getObject(request)) {
+      if (object == null) {
+        // S3 answered 304, or there was nothing to read at all
+        return etag != null;
+      }
+      clear();
+      try (InputStream inputStream = object.getObjectContent()) {
+        load(inputStream);
+      }
+      etag = etagOf(object);
+      return true;
+    }
+    catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+        clear();
+        etag = null;
+        return false;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Takes over the properties and ETag of an earlier load of the same object, so that loading it again only transfers
+   * it if it has changed since.
+   */
+  void copyFrom(final S3PropertiesFile previous) {
+    clear();
+    putAll(previous);
+    etag = previous.etag;
+  }
+
   public void store() throws IOException {
     log.debug("Storing: {}/{}", bucket, key);
 
@@ -66,7 +121,8 @@ public class S3PropertiesFile
 
     ObjectMetadata metadata = new ObjectMetadata();
     metadata.setContentLength(buffer.length);
-    s3.putObject(bucket, key, new ByteArrayInputStream(buffer), metadata);
+    PutObjectResult result = s3.putObject(bucket, key, new ByteArrayInputStream(buffer), metadata);
+    etag = result != null ? result.getETag() : null;
   }
 
   public boolean exists() throws IOException {
@@ -75,6 +131,13 @@ public class S3PropertiesFile
 
   public void remove() throws IOException {
     s3.deleteObject(bucket, key);
+    etag = null;
+  }
+
+  @Nullable
+  private static String etagOf(final S3Object object) {
+    ObjectMetadata metadata = object.getObjectMetadata();
+    return metadata != null ? metadata.getETag() : null;
   }
 
   public String toString() {
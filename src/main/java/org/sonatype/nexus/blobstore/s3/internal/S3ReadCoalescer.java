@@ -0,0 +1,417 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Shares one download between concurrent readers of the same content.
+ *
+ * The first reader of a key starts a download into a spill file on local disk, readers arriving while it is in
+ * progress follow the same file, each at its own pace, waiting for bytes not yet written. The download stops early if
+ * every reader has gone, and the spill file is deleted once the download is over and its last reader closed, or as
+ * soon as the download fails or the coalescer is shut down.
+ *
+ * At most a given number of downloads run at once, each with a spill file, and their spill files together hold no more
+ * than a given number of bytes, reserved up front from the size of the content. Reads beyond either limit are not
+ * coalesced but stream straight from their source, so threads and disk used stay bounded.
+ */
+public class S3ReadCoalescer
+    extends ComponentSupport
+{
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  static final int DEFAULT_MAX_DOWNLOADS = 16;
+
+  static final long DEFAULT_MAX_SPILL_SIZE = 4L * 1024 * 1024 * 1024;
+
+  private final Path directory;
+
+  private final long maxSpillSize;
+
+  private final ThreadPoolExecutor executor;
+
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+  private final AtomicLong downloadCount = new AtomicLong();
+
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  private final AtomicLong bypassedCount = new AtomicLong();
+
+  /**
+   * Bytes reserved by the spill files of downloads in progress or still being read.
+   */
+  private final AtomicLong spillSize = new AtomicLong();
+
+  public S3ReadCoalescer(final Path directory, final String name) throws IOException {
+    this(directory, name, DEFAULT_MAX_DOWNLOADS, DEFAULT_MAX_SPILL_SIZE);
+  }
+
+  /**
+   * @param directory    where spill files are created, created itself if need be
+   * @param maxDownloads most downloads into spill files at once
+   * @param maxSpillSize most bytes held by all spill files at once
+   */
+  public S3ReadCoalescer(final Path directory, final String name, final int maxDownloads, final long maxSpillSize)
+      throws IOException
+  {
+    checkArgument(maxDownloads > 0, "Max downloads must be positive");
+    checkArgument(maxSpillSize > 0, "Max spill size must be positive");
+    this.directory = checkNotNull(directory);
+    this.maxSpillSize = maxSpillSize;
+    Files.createDirectories(directory);
+    // no queue, a download that cannot start right away is not coalesced
+    this.executor = new ThreadPoolExecutor(maxDownloads, maxDownloads, 60L, SECONDS, new SynchronousQueue<>(),
+        new NexusThreadFactory("s3-blobstore", "coalesce-" + name));
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Opens the content of the given key, joining a download of it already in progress or starting one from the given
+   * source.
+   *
+   * @param size bytes of content the source supplies
+   */
+  public InputStream open(final String key, final long size, final Supplier<InputStream> source) throws IOException {
+    while (true) {
+      Flight flight = flights.get(key);
+      if (flight == null) {
+        if (!reserveSpill(size)) {
+          bypassedCount.incrementAndGet();
+          return source.get();
+        }
+        Flight created;
+        try {
+          created = new Flight(key, Files.createTempFile(directory, "s3-blob-", ".spill"), size);
+        }
+        catch (IOException | RuntimeException e) {
+          spillSize.addAndGet(-size);
+          throw e;
+        }
+        flight = flights.putIfAbsent(key, created);
+        if (flight == null) {
+          InputStream reader = created.newReader();
+          try {
+            executor.execute(() -> created.download(source));
+          }
+          catch (RejectedExecutionException e) {
+            flights.remove(key, created);
+            reader.close();
+            created.deleteSpill();
+            bypassedCount.incrementAndGet();
+            return source.get();
+          }
+          downloadCount.incrementAndGet();
+          return reader;
+        }
+        created.deleteSpill();
+      }
+      InputStream reader = flight.newReader();
+      if (reader != null) {
+        coalescedCount.incrementAndGet();
+        return reader;
+      }
+      // the flight ended between being looked up and joined
+      flights.remove(key, flight);
+    }
+  }
+
+  /**
+   * Returns how many downloads were started.
+   */
+  public long getDownloadCount() {
+    return downloadCount.get();
+  }
+
+  /**
+   * Returns how many reads joined a download already in progress.
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * Returns how many reads streamed straight from their source as too many downloads were running or their spill
+   * files would have grown too large.
+   */
+  public long getBypassedCount() {
+    return bypassedCount.get();
+  }
+
+  /**
+   * Returns the bytes reserved by spill files on disk.
+   */
+  public long getSpillSize() {
+    return spillSize.get();
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  private boolean reserveSpill(final long size) {
+    long reserved;
+    do {
+      reserved = spillSize.get();
+      if (reserved + size > maxSpillSize) {
+        log.debug("Not coalescing {} bytes as spill files already hold {} of {} bytes", size, reserved, maxSpillSize);
+        return false;
+      }
+    }
+    while (!spillSize.compareAndSet(reserved, reserved + size));
+    return true;
+  }
+
+  /**
+   * Stops all downloads, failing their readers, and deletes their spill files.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+    for (Flight flight : flights.values()) {
+      flight.abort();
+    }
+    flights.clear();
+  }
+
+  /**
+   * A download into a spill file along with the readers following it.
+   */
+  private class Flight
+  {
+    private final String key;
+
+    private final Path spill;
+
+    private final long size;
+
+    private final AtomicBoolean deleted = new AtomicBoolean();
+
+    // the fields below are guarded by this
+
+    private long written;
+
+    private boolean done;
+
+    private IOException failure;
+
+    private int readers;
+
+    private boolean ended;
+
+    Flight(final String key, final Path spill, final long size) {
+      this.key = key;
+      this.spill = spill;
+      this.size = size;
+    }
+
+    /**
+     * Returns a new reader of the spill file, or {@code null} if this flight no longer takes readers.
+     */
+    synchronized InputStream newReader() throws IOException {
+      if (ended || done) {
+        return null;
+      }
+      FileChannel channel = FileChannel.open(spill, READ);
+      readers++;
+      return new Reader(channel);
+    }
+
+    void download(final Supplier<InputStream> source) {
+      try (InputStream input = source.get(); FileChannel channel = FileChannel.open(spill, WRITE)) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = input.read(buffer)) >= 0) {
+          ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+          while (bytes.hasRemaining()) {
+            channel.write(bytes);
+          }
+          synchronized (this) {
+            if (ended) {
+              log.debug("Stopped download of {} as all its readers have gone", key);
+              return;
+            }
+            written += n;
+            notifyAll();
+          }
+        }
+      }
+      catch (IOException e) {
+        fail(e);
+      }
+      catch (Exception e) {
+        fail(new IOException("Unable to download " + key, e));
+      }
+      finally {
+        synchronized (this) {
+          if (failure != null) {
+            // readers only see the failure from now on
+            deleteSpill();
+          }
+          done = true;
+          notifyAll();
+        }
+        flights.remove(key, this);
+        release(false);
+      }
+    }
+
+    private synchronized void fail(final IOException e) {
+      log.debug("Download of {} failed", key, e);
+      if (failure == null) {
+        failure = e;
+      }
+    }
+
+    /**
+     * Fails the download for its readers and deletes the spill file, whether or not the download has stopped yet.
+     */
+    synchronized void abort() {
+      fail(new IOException("Download of " + key + " stopped"));
+      deleteSpill();
+      done = true;
+      notifyAll();
+    }
+
+    /**
+     * Waits until the spill file holds more than the given number of bytes, returning how many it holds, or
+     * {@code -1} if the download is over at the given position.
+     */
+    synchronized long await(final long position) throws IOException {
+      while (position >= written && !done) {
+        try {
+          wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for download of " + key);
+        }
+      }
+      if (failure != null) {
+        throw new IOException("Download of " + key + " failed", failure);
+      }
+      return position < written ? written : -1;
+    }
+
+    /**
+     * Lets go of the spill file, deleting it once the download and every reader are done.
+     */
+    void release(final boolean reader) {
+      boolean over;
+      boolean delete;
+      synchronized (this) {
+        if (reader) {
+          readers--;
+        }
+        // also stops a download nobody reads anymore
+        ended = readers == 0;
+        over = ended;
+        delete = ended && done;
+      }
+      if (over) {
+        flights.remove(key, this);
+      }
+      if (delete) {
+        deleteSpill();
+      }
+    }
+
+    /**
+     * Deletes the spill file and hands back its reservation, only once however often it is called.
+     */
+    void deleteSpill() {
+      if (!deleted.compareAndSet(false, true)) {
+        return;
+      }
+      spillSize.addAndGet(-size);
+      try {
+        Files.deleteIfExists(spill);
+      }
+      catch (IOException e) {
+        log.debug("Unable to delete spill file {}", spill, e);
+      }
+    }
+
+    private class Reader
+        extends InputStream
+    {
+      private final FileChannel channel;
+
+      private long position;
+
+      private boolean closed;
+
+      Reader(final FileChannel channel) {
+        this.channel = channel;
+      }
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        long available = await(position);
+        if (available < 0) {
+          return -1;
+        }
+        int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available - position)), position);
+        position += n;
+        return n;
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        try {
+          channel.close();
+        }
+        finally {
+          release(true);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,728 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.DEFAULT_MULTIPART_COPY_THRESHOLD_MB;
+import static org.sonatype.nexus.blobstore.s3.internal.S3BlobStore.MULTIPART_COPY_PART_SIZE;
+
+/**
+ * Uploads blob content to AWS S3, one instance being shared by all uploads of a blob store.
+ *
+ * Content smaller than the multipart threshold is sent as a single PUT, anything larger is split into parts which
+ * are uploaded in parallel on a bounded executor. Part sizes grow with the observed upload throughput so that large
+ * uploads keep the link saturated rather than paying per-request latency on small parts.
+ *
+ * Content is staged in direct buffers from a shared {@link S3PartBufferPool} rather than on the heap, so memory use
+ * stays flat however many uploads run at once. Only when the pool stays exhausted do heads of uploads overdraw it
+ * with heap buffers, within an overdraft shared by all uploads.
+ *
+ * Copies within the bucket stay on the server, objects above the copy threshold being copied as ranged parts in
+ * parallel on the same executor.
+ */
+public class S3Uploader
+    extends ComponentSupport
+{
+  /**
+   * Largest part we will ever buffer for a single request, parts are also limited by the buffer pool capacity.
+   */
+  static final long MAX_PART_SIZE = 64L * 1024 * 1024;
+
+  /**
+   * The part size floor doubles after this many parts, keeping uploads of unknown length under the S3 limit of
+   * 10000 parts.
+   */
+  private static final int PARTS_PER_SIZE_STEP = 1000;
+
+  private static final int MAX_PARTS = 10000;
+
+  /**
+   * Parts are sized so that each one takes roughly this long to send at the observed throughput.
+   */
+  private static final long TARGET_PART_MILLIS = 2000L;
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 60L;
+
+  /**
+   * How long reading the head of an upload waits for a further buffer before overdrawing the pool, and then before
+   * sending what it holds as the first part.
+   */
+  static final long HEAD_BUFFER_TIMEOUT_SECONDS = 10L;
+
+  private final AmazonS3 s3;
+
+  private final String bucket;
+
+  private final long multipartThreshold;
+
+  private final long partSize;
+
+  private final int parallelism;
+
+  private final long copyThreshold;
+
+  private final long copyPartSize;
+
+  private final long headBufferTimeoutMillis;
+
+  private final S3PartBufferPool bufferPool;
+
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Moving average of the bytes per second achieved by a single part upload, zero until a part has completed.
+   */
+  private final AtomicLong throughput = new AtomicLong();
+
+  public S3Uploader(final AmazonS3 s3,
+                    final String bucket,
+                    final S3PartBufferPool bufferPool,
+                    final long multipartThreshold,
+                    final long partSize,
+                    final int parallelism)
+  {
+    this(s3, bucket, bufferPool, multipartThreshold, partSize, parallelism,
+        DEFAULT_MULTIPART_COPY_THRESHOLD_MB * 1024L * 1024, MULTIPART_COPY_PART_SIZE);
+  }
+
+  public S3Uploader(final AmazonS3 s3,
+                    final String bucket,
+                    final S3PartBufferPool bufferPool,
+                    final long multipartThreshold,
+                    final long partSize,
+                    final int parallelism,
+                    final long copyThreshold,
+                    final long copyPartSize)
+  {
+    this(s3, bucket, bufferPool, multipartThreshold, partSize, parallelism, copyThreshold, copyPartSize,
+        SECONDS.toMillis(HEAD_BUFFER_TIMEOUT_SECONDS));
+  }
+
+  S3Uploader(final AmazonS3 s3,
+             final String bucket,
+             final S3PartBufferPool bufferPool,
+             final long multipartThreshold,
+             final long partSize,
+             final int parallelism,
+             final long copyThreshold,
+             final long copyPartSize,
+             final long headBufferTimeoutMillis)
+  {
+    checkArgument(multipartThreshold > 0, "Multipart threshold must be positive");
+    checkArgument(partSize > 0, "Part size must be positive");
+    checkArgument(parallelism > 0, "Parallelism must be positive");
+    checkArgument(copyThreshold > 0, "Copy threshold must be positive");
+    checkArgument(copyPartSize > 0, "Copy part size must be positive");
+    checkArgument(headBufferTimeoutMillis > 0, "Head buffer timeout must be positive");
+    this.s3 = checkNotNull(s3);
+    this.bucket = checkNotNull(bucket);
+    this.bufferPool = checkNotNull(bufferPool);
+    this.multipartThreshold = multipartThreshold;
+    this.partSize = partSize;
+    this.parallelism = parallelism;
+    this.copyThreshold = copyThreshold;
+    this.copyPartSize = copyPartSize;
+    this.headBufferTimeoutMillis = headBufferTimeoutMillis;
+    this.executor = new ThreadPoolExecutor(parallelism, parallelism, 60L, SECONDS,
+        new LinkedBlockingQueue<>(parallelism), new NexusThreadFactory("s3-blobstore", "upload-" + bucket),
+        (task, pool) -> {
+          // run on the caller when saturated, but never silently drop parts once shut down
+          if (pool.isShutdown()) {
+            throw new RejectedExecutionException("Uploads to bucket " + bucket + " have been shut down");
+          }
+          task.run();
+        });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Uploads the given stream of unknown length to the given key, the caller remains responsible for closing it.
+   */
+  public void upload(final String key, final InputStream input) throws IOException {
+    upload(key, input, null);
+  }
+
+  /**
+   * Uploads the given stream of unknown length to the given key, the caller remains responsible for closing it.
+   *
+   * @param userMetadata consulted once the whole stream has been read, only when it is sent as a single PUT; may
+   *                     return {@code null} to send no user metadata
+   */
+  public void upload(final String key,
+                     final InputStream input,
+                     @Nullable final Supplier<Map<String, String>> userMetadata) throws IOException
+  {
+    ReadableByteChannel channel = Channels.newChannel(input);
+    Part head;
+    try {
+      head = readHead(channel);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted uploading " + key);
+    }
+
+    if (head.eof) {
+      try {
+        putObject(key, head, userMetadata);
+      }
+      finally {
+        head.release();
+      }
+      return;
+    }
+
+    String uploadId;
+    try {
+      uploadId = initiateMultipartUpload(key);
+    }
+    catch (RuntimeException e) {
+      head.release();
+      throw e;
+    }
+    multipartUpload(key, uploadId, (parts, inFlight, aborted) -> {
+      Part part = head;
+      try {
+        int partNumber = 1;
+        while (part.length > 0) {
+          inFlight.acquire();
+          Part submitted = part;
+          part = null;
+          parts.add(submit(uploadPart(key, uploadId, partNumber, submitted, inFlight, aborted), submitted, inFlight));
+          partNumber++;
+          part = readPart(channel, nextPartSize(partNumber));
+        }
+      }
+      finally {
+        if (part != null) {
+          part.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Uploads a file of known size to the given key. Large files are sent as parallel ranged parts, each read by
+   * position from a shared {@link FileChannel} straight into pooled buffers.
+   */
+  public void upload(final String key, final Path file, final long size) throws IOException {
+    upload(key, file, size, null);
+  }
+
+  /**
+   * Uploads a file of known size to the given key, attaching user metadata when it is sent as a single PUT.
+   *
+   * @see #upload(String, InputStream, Supplier)
+   */
+  public void upload(final String key,
+                     final Path file,
+                     final long size,
+                     @Nullable final Supplier<Map<String, String>> userMetadata) throws IOException
+  {
+    if (size < multipartThreshold) {
+      ObjectMetadata metadata = newMetadata(userMetadata);
+      metadata.setContentLength(size);
+      s3.putObject(new PutObjectRequest(bucket, key, file.toFile()).withMetadata(metadata));
+      return;
+    }
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long filePartSize = max(nextPartSize(1), (size + MAX_PARTS - 1) / MAX_PARTS);
+      String uploadId = initiateMultipartUpload(key);
+      multipartUpload(key, uploadId, (parts, inFlight, aborted) -> {
+        int partNumber = 1;
+        for (long offset = 0; offset < size; offset += filePartSize) {
+          inFlight.acquire();
+          long length = min(filePartSize, size - offset);
+          parts.add(submit(uploadFilePart(key, uploadId, partNumber, file, channel, offset, length, inFlight, aborted),
+              null, inFlight));
+          partNumber++;
+        }
+      });
+    }
+  }
+
+  /**
+   * Copies an object of the given size to another key of the bucket without transferring its content. Objects below
+   * the copy threshold are copied in one request, larger ones as parallel ranged part copies.
+   *
+   * @param userMetadata replaces the metadata of the source object, may return {@code null} to send no user metadata
+   */
+  public void copy(final String sourceKey,
+                   final String key,
+                   final long size,
+                   @Nullable final Supplier<Map<String, String>> userMetadata) throws IOException
+  {
+    if (size < copyThreshold) {
+      s3.copyObject(new CopyObjectRequest(bucket, sourceKey, bucket, key)
+          .withNewObjectMetadata(newMetadata(userMetadata)));
+      return;
+    }
+
+    long rangeSize = max(copyPartSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+    String uploadId = initiateMultipartUpload(key, newMetadata(userMetadata));
+    multipartUpload(key, uploadId, (parts, inFlight, aborted) -> {
+      int partNumber = 1;
+      for (long offset = 0; offset < size; offset += rangeSize) {
+        inFlight.acquire();
+        long lastByte = min(offset + rangeSize, size) - 1;
+        parts.add(submit(copyPart(sourceKey, key, uploadId, partNumber, offset, lastByte, inFlight, aborted),
+            null, inFlight));
+        partNumber++;
+      }
+    });
+  }
+
+  /**
+   * Stops accepting uploads and waits for those in progress to drain.
+   */
+  public void shutdown() throws InterruptedException {
+    executor.shutdown();
+    if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, SECONDS)) {
+      log.warn("Uploads to bucket {} did not complete within {} seconds", bucket, SHUTDOWN_TIMEOUT_SECONDS);
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Returns the moving average of single part upload throughput in bytes per second.
+   */
+  public long getThroughput() {
+    return throughput.get();
+  }
+
+  /**
+   * Returns the pool holding part buffers, for monitoring its occupancy.
+   */
+  public S3PartBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  private void putObject(final String key,
+                         final Part content,
+                         @Nullable final Supplier<Map<String, String>> userMetadata)
+  {
+    ObjectMetadata metadata = newMetadata(userMetadata);
+    metadata.setContentLength(content.length);
+    s3.putObject(bucket, key, content.newInputStream(), metadata);
+  }
+
+  private static ObjectMetadata newMetadata(@Nullable final Supplier<Map<String, String>> userMetadata) {
+    ObjectMetadata metadata = new ObjectMetadata();
+    Map<String, String> entries = userMetadata != null ? userMetadata.get() : null;
+    if (entries != null) {
+      metadata.setUserMetadata(entries);
+    }
+    return metadata;
+  }
+
+  private String initiateMultipartUpload(final String key) {
+    return initiateMultipartUpload(key, new ObjectMetadata());
+  }
+
+  private String initiateMultipartUpload(final String key, final ObjectMetadata metadata) {
+    String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata))
+        .getUploadId();
+    log.debug("Started multipart upload {} for {}", uploadId, key);
+    return uploadId;
+  }
+
+  /**
+   * Completes the multipart upload once the scheduler has submitted all of its parts, aborting it on any failure.
+   */
+  private void multipartUpload(final String key, final String uploadId, final PartScheduler scheduler)
+      throws IOException
+  {
+    // bounds the parts of this upload in flight at any one time, the pool bounds them across all uploads
+    Semaphore inFlight = new Semaphore(parallelism);
+    AtomicBoolean aborted = new AtomicBoolean();
+    List<Future<PartETag>> parts = new ArrayList<>();
+    try {
+      scheduler.schedule(parts, inFlight, aborted);
+
+      List<PartETag> partETags = new ArrayList<>(parts.size());
+      for (Future<PartETag> future : parts) {
+        partETags.add(future.get());
+      }
+      s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+      log.debug("Completed multipart upload {} for {} in {} parts", uploadId, key, partETags.size());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      abort(key, uploadId, parts, aborted);
+      throw new InterruptedIOException("Interrupted uploading " + key);
+    }
+    catch (ExecutionException e) {
+      abort(key, uploadId, parts, aborted);
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+    catch (IOException | RuntimeException e) {
+      abort(key, uploadId, parts, aborted);
+      throw e;
+    }
+  }
+
+  private Future<PartETag> submit(final Callable<PartETag> task,
+                                  @Nullable final Part part,
+                                  final Semaphore inFlight)
+  {
+    try {
+      return executor.submit(task);
+    }
+    catch (RejectedExecutionException e) {
+      if (part != null) {
+        part.release();
+      }
+      inFlight.release();
+      throw e;
+    }
+  }
+
+  private Callable<PartETag> uploadPart(final String key,
+                                        final String uploadId,
+                                        final int partNumber,
+                                        final Part part,
+                                        final Semaphore inFlight,
+                                        final AtomicBoolean aborted)
+  {
+    return () -> {
+      try {
+        if (aborted.get()) {
+          return null;
+        }
+        long start = System.nanoTime();
+        PartETag partETag = s3.uploadPart(new UploadPartRequest()
+            .withBucketName(bucket)
+            .withKey(key)
+            .withUploadId(uploadId)
+            .withPartNumber(partNumber)
+            .withPartSize(part.length)
+            .withInputStream(part.newInputStream()))
+            .getPartETag();
+        recordThroughput(part.length, System.nanoTime() - start);
+        return partETag;
+      }
+      finally {
+        part.release();
+        inFlight.release();
+      }
+    };
+  }
+
+  private Callable<PartETag> uploadFilePart(final String key,
+                                            final String uploadId,
+                                            final int partNumber,
+                                            final Path file,
+                                            final FileChannel channel,
+                                            final long offset,
+                                            final long length,
+                                            final Semaphore inFlight,
+                                            final AtomicBoolean aborted)
+  {
+    return () -> {
+      List<ByteBuffer> buffers = null;
+      try {
+        if (aborted.get()) {
+          return null;
+        }
+        UploadPartRequest request = new UploadPartRequest()
+            .withBucketName(bucket)
+            .withKey(key)
+            .withUploadId(uploadId)
+            .withPartNumber(partNumber)
+            .withPartSize(length);
+
+        int bufferSize = bufferPool.getBufferSize();
+        long count = (length + bufferSize - 1) / bufferSize;
+        if (count <= bufferPool.getCapacity()) {
+          buffers = bufferPool.take((int) count);
+          readFully(file, channel, buffers, offset, length);
+          request.withInputStream(new ByteBuffersInputStream(buffers));
+        }
+        else {
+          // part cannot fit in the pool, let the SDK stream it from the file instead
+          request.withFile(file.toFile()).withFileOffset(offset);
+        }
+
+        long start = System.nanoTime();
+        PartETag partETag = s3.uploadPart(request).getPartETag();
+        recordThroughput(length, System.nanoTime() - start);
+        return partETag;
+      }
+      finally {
+        if (buffers != null) {
+          bufferPool.release(buffers);
+        }
+        inFlight.release();
+      }
+    };
+  }
+
+  private Callable<PartETag> copyPart(final String sourceKey,
+                                      final String key,
+                                      final String uploadId,
+                                      final int partNumber,
+                                      final long firstByte,
+                                      final long lastByte,
+                                      final Semaphore inFlight,
+                                      final AtomicBoolean aborted)
+  {
+    return () -> {
+      try {
+        if (aborted.get()) {
+          return null;
+        }
+        return s3.copyPart(new CopyPartRequest()
+            .withSourceBucketName(bucket)
+            .withSourceKey(sourceKey)
+            .withDestinationBucketName(bucket)
+            .withDestinationKey(key)
+            .withUploadId(uploadId)
+            .withPartNumber(partNumber)
+            .withFirstByte(firstByte)
+            .withLastByte(lastByte))
+            .getPartETag();
+      }
+      finally {
+        inFlight.release();
+      }
+    };
+  }
+
+  private static void readFully(final Path file,
+                                final FileChannel channel,
+                                final List<ByteBuffer> buffers,
+                                final long offset,
+                                final long length) throws IOException
+  {
+    long position = offset;
+    long end = offset + length;
+    for (ByteBuffer buffer : buffers) {
+      buffer.limit((int) min(buffer.capacity(), end - position));
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException("Unexpected end of " + file + " at " + (position + buffer.position()));
+        }
+      }
+      position += buffer.limit();
+      buffer.flip();
+    }
+  }
+
+  /**
+   * Aborts the multipart upload once submitted parts have finished, so they release their buffers and no part can
+   * arrive after the abort.
+   */
+  private void abort(final String key,
+                     final String uploadId,
+                     final List<Future<PartETag>> parts,
+                     final AtomicBoolean aborted)
+  {
+    aborted.set(true);
+    for (Future<PartETag> part : parts) {
+      try {
+        part.get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      catch (Exception e) {
+        // already reported through the failing part
+      }
+    }
+    try {
+      s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+    }
+    catch (Exception e) {
+      log.warn("Unable to abort multipart upload {} for {}", uploadId, key, e);
+    }
+  }
+
+  /**
+   * Reads up to the multipart threshold. Only the first buffer waits on the pool for as long as it takes; having taken
+   * it we must not wait indefinitely for more, as every buffer could end up held by heads waiting on one another. The
+   * rest of the head overdraws the pool if it stays exhausted. Once the overdraft is used up too, a head holding at
+   * least a part is returned before its end is known, to be sent as the first part of a multipart upload which frees
+   * its buffers. A smaller head could not be sent as a part so it keeps waiting, holding fewer buffers than a part.
+   */
+  private Part readHead(final ReadableByteChannel channel) throws IOException, InterruptedException {
+    Part part = new Part();
+    try {
+      ByteBuffer buffer = bufferPool.take();
+      while (true) {
+        part.buffers.add(buffer);
+        part.fill(channel, buffer, multipartThreshold - part.length);
+        if (part.eof || part.length >= multipartThreshold) {
+          return part;
+        }
+        buffer = bufferPool.takeOrOverdraw(headBufferTimeoutMillis, MILLISECONDS);
+        while (buffer == null) {
+          if (part.length >= partSize) {
+            log.debug("No upload buffers of bucket {} were freed, sending the first {} bytes as a part: {}",
+                bucket, part.length, bufferPool);
+            return part;
+          }
+          buffer = bufferPool.takeOrOverdraw(headBufferTimeoutMillis, MILLISECONDS);
+        }
+      }
+    }
+    catch (IOException | RuntimeException | InterruptedException e) {
+      part.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the next part, waiting until the pool can supply all of its buffers at once.
+   */
+  private Part readPart(final ReadableByteChannel channel, final long size) throws IOException, InterruptedException {
+    int bufferSize = bufferPool.getBufferSize();
+    int count = (int) min(bufferPool.getCapacity(), max(1L, (size + bufferSize - 1) / bufferSize));
+    Part part = new Part();
+    part.buffers.addAll(bufferPool.take(count));
+    try {
+      for (ByteBuffer buffer : part.buffers) {
+        if (part.eof) {
+          buffer.limit(0);
+        }
+        else {
+          part.fill(channel, buffer, Long.MAX_VALUE);
+        }
+      }
+      return part;
+    }
+    catch (IOException | RuntimeException e) {
+      part.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Chooses the size of the given part from the configured part size, the observed throughput and the S3 part limit.
+   */
+  long nextPartSize(final int partNumber) {
+    long size = partSize;
+    long bytesPerSecond = throughput.get();
+    if (bytesPerSecond > 0) {
+      size = max(size, bytesPerSecond * TARGET_PART_MILLIS / 1000L);
+    }
+    size = max(size, partSize << ((partNumber - 1) / PARTS_PER_SIZE_STEP));
+    return min(size, max(partSize, MAX_PART_SIZE));
+  }
+
+  /**
+   * Submits the parts of a multipart upload, releasing any part it could not submit before returning.
+   */
+  @FunctionalInterface
+  private interface PartScheduler
+  {
+    void schedule(List<Future<PartETag>> parts, Semaphore inFlight, AtomicBoolean aborted)
+        throws IOException, InterruptedException;
+  }
+
+  /**
+   * Part content held in buffers from the pool, each flipped ready for reading once filled.
+   */
+  private class Part
+  {
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+
+    private long length;
+
+    private boolean eof;
+
+    private void fill(final ReadableByteChannel channel, final ByteBuffer buffer, final long limit)
+        throws IOException
+    {
+      buffer.limit((int) min(buffer.capacity(), limit));
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          eof = true;
+          break;
+        }
+      }
+      buffer.flip();
+      length += buffer.remaining();
+    }
+
+    private InputStream newInputStream() {
+      return new ByteBuffersInputStream(buffers);
+    }
+
+    private void release() {
+      bufferPool.release(buffers);
+      buffers.clear();
+    }
+  }
+
+  private void recordThroughput(final long bytes, final long elapsedNanos) {
+    if (elapsedNanos <= 0) {
+      return;
+    }
+    long sample = bytes * 1_000_000_000L / elapsedNanos;
+    throughput.updateAndGet(average -> average == 0 ? sample : (average * 7 + sample) / 8);
+  }
+}
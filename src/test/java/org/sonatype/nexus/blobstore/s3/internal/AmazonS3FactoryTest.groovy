@@ -0,0 +1,74 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal
+
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration
+
+import spock.lang.Specification
+
+/**
+ * {@link AmazonS3Factory} tests.
+ */
+class AmazonS3FactoryTest
+    extends Specification
+{
+  AmazonS3Factory amazonS3Factory = new AmazonS3Factory()
+
+  def 'blob stores with the same client settings share a client'() {
+    when: 'clients are created for two buckets with the same credentials and region'
+      def first = amazonS3Factory.create(config(bucket: 'first'))
+      def second = amazonS3Factory.create(config(bucket: 'second'))
+
+    then: 'they are the same client, with one pool'
+      first.is(second)
+      amazonS3Factory.getMetrics(first).maxConnections == S3BlobStore.DEFAULT_MAX_CONNECTIONS
+  }
+
+  def 'blob stores with different client settings do not share a client'() {
+    when: 'clients are created with different credentials or connection settings'
+      def first = amazonS3Factory.create(config(bucket: 'first'))
+      def otherCredentials = amazonS3Factory.create(config(bucket: 'second', accessKeyId: 'other'))
+      def otherPool = amazonS3Factory.create(config(bucket: 'third', maxConnections: 10))
+
+    then: 'each gets its own client'
+      !first.is(otherCredentials)
+      !first.is(otherPool)
+      amazonS3Factory.getMetrics(otherPool).maxConnections == 10
+  }
+
+  def 'a shared client is shut down once released by every blob store'() {
+    given: 'a client shared by two blob stores'
+      def first = amazonS3Factory.create(config(bucket: 'first'))
+      amazonS3Factory.create(config(bucket: 'second'))
+
+    when: 'one blob store releases it'
+      amazonS3Factory.release(first)
+
+    then: 'it is still in use'
+      amazonS3Factory.getMetrics(first) != null
+
+    when: 'the other blob store releases it'
+      amazonS3Factory.release(first)
+
+    then: 'it is gone and a new client is created when asked for again'
+      amazonS3Factory.getMetrics(first) == null
+      !amazonS3Factory.create(config(bucket: 'first')).is(first)
+  }
+
+  private static BlobStoreConfiguration config(final Map<String, Object> attributes) {
+    def config = new BlobStoreConfiguration()
+    config.name = attributes.bucket
+    config.attributes = [s3: [accessKeyId: 'key', secretAccessKey: 'secret', region: 'us-east-1'] + attributes]
+    return config
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal
+
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.MultiObjectDeleteException
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError
+import spock.lang.Specification
+
+/**
+ * {@link S3BatchDeleter} tests.
+ */
+class S3BatchDeleterTest
+    extends Specification
+{
+
+  AmazonS3 s3 = Mock()
+
+  S3BatchDeleter deleter = new S3BatchDeleter(s3, 'mybucket')
+
+  def 'keys are deleted in batches of at most 1000'() {
+    given: 'more keys than fit in one request'
+      def keys = (1..2500).collect { "key-$it".toString() }
+
+    when: 'they are deleted'
+      def errors = deleter.delete(keys)
+
+    then: 'three requests are made'
+      1 * s3.deleteObjects({ it.keys.size() == 1000 && it.keys[0].key == 'key-1' })
+      1 * s3.deleteObjects({ it.keys.size() == 1000 && it.keys[0].key == 'key-1001' })
+      1 * s3.deleteObjects({ it.keys.size() == 500 && it.quiet })
+      errors.isEmpty()
+  }
+
+  def 'keys that fail are reported'() {
+    given: 'a request where one key cannot be deleted'
+      def error = new DeleteError(key: 'b', code: 'AccessDenied', message: 'Access Denied')
+      s3.deleteObjects(_) >> { throw new MultiObjectDeleteException([error], []) }
+
+    when: 'keys are deleted'
+      def errors = deleter.delete(['a', 'b'])
+
+    then: 'only the failed key is reported'
+      errors == [b: 'AccessDenied: Access Denied']
+  }
+}
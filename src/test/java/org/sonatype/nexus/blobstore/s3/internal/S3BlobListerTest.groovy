@@ -0,0 +1,102 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal
+
+import java.util.stream.Collectors
+
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.ListObjectsRequest
+import com.amazonaws.services.s3.model.ObjectListing
+import com.amazonaws.services.s3.model.S3ObjectSummary
+import com.google.common.util.concurrent.MoreExecutors
+import spock.lang.Specification
+
+/**
+ * {@link S3BlobLister} tests.
+ */
+class S3BlobListerTest
+    extends Specification
+{
+
+  AmazonS3 s3 = Mock()
+
+  S3BlobLister lister = new S3BlobLister(s3, 'mybucket', MoreExecutors.directExecutor())
+
+  List<String> keys = ['content/loose.bytes'] + (1..3).collectMany { vol ->
+    (1..4).collectMany { chap ->
+      (1..5).collect { "content/vol-0$vol/chap-0$chap/blob-$it-${vol}${chap}.bytes".toString() }
+    }
+  }
+
+  def setup() {
+    // pages of two keys at most to exercise pagination
+    s3.listObjects(_ as ListObjectsRequest) >> { ListObjectsRequest request -> list(request, 2) }
+  }
+
+  def 'every key is listed once'() {
+    when: 'the content prefix is listed'
+      def listed = lister.list('content/', 2).map { it.key }.collect(Collectors.toList())
+
+    then: 'all keys are found'
+      listed.sort() == keys.sort()
+  }
+
+  def 'parallel listing finds every key'() {
+    when: 'the content prefix is listed in parallel'
+      def listed = lister.list('content/', 2).parallel().map { it.key }.collect(Collectors.toList())
+
+    then: 'all keys are found in order'
+      listed == ['content/loose.bytes'] + keys.findAll { it != 'content/loose.bytes' }.sort()
+  }
+
+  def 'listing splits by discovered prefixes'() {
+    given: 'a spliterator over volumes and chapters'
+      def spliterator = lister.spliterator('content/', 2)
+
+    when: 'it is split'
+      def lower = spliterator.trySplit()
+
+    then: 'each half lists a share of the chapters'
+      lower != null
+      def lowerKeys = []
+      lower.forEachRemaining { lowerKeys << it.key }
+      def upperKeys = []
+      spliterator.forEachRemaining { upperKeys << it.key }
+      lowerKeys.size() == 31
+      upperKeys.size() == 30
+      lowerKeys.every { it < upperKeys[0] || it == 'content/loose.bytes' }
+  }
+
+  private ObjectListing list(final ListObjectsRequest request, final int pageSize) {
+    def matching = keys.findAll { it.startsWith(request.prefix) }.sort()
+    def listing = new ObjectListing()
+    def entries = new TreeSet<String>()
+    matching.each { key ->
+      def slash = request.delimiter ? key.indexOf('/', request.prefix.length()) : -1
+      entries << (slash >= 0 ? key.substring(0, slash + 1) : key)
+    }
+    def remaining = entries.findAll { request.marker == null || it > request.marker }.toList()
+    def page = remaining.take(pageSize)
+    page.each { entry ->
+      if (entry.endsWith('/')) {
+        listing.commonPrefixes << entry
+      }
+      else {
+        listing.objectSummaries << new S3ObjectSummary(key: entry)
+      }
+    }
+    listing.truncated = remaining.size() > pageSize
+    listing.nextMarker = page ? page.last() : null
+    listing
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.sonatype.nexus.blobstore.BlobIdLocationResolver
+import org.sonatype.nexus.blobstore.api.BlobId
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration
+
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.GetObjectRequest
+import com.amazonaws.services.s3.model.S3Object
+import com.amazonaws.services.s3.model.S3ObjectInputStream
+import spock.lang.Specification
+
+/**
+ * {@link S3BlobStore#get(BlobId)} under contention, with S3 answering attribute loads only once told to.
+ */
+class S3BlobStoreContentionTest
+    extends Specification
+{
+  static final int THREADS = 16
+
+  BlobIdLocationResolver locationResolver = Mock()
+
+  AmazonS3Factory amazonS3Factory = Mock()
+
+  AmazonS3 s3 = Mock()
+
+  AtomicInteger attributeLoads = new AtomicInteger()
+
+  CountDownLatch loadStarted = new CountDownLatch(1)
+
+  CountDownLatch loadReleased = new CountDownLatch(1)
+
+  S3BlobStore blobStore = new S3BlobStore(amazonS3Factory, locationResolver, Mock(S3BlobStoreMetricsStore))
+
+  def setup() {
+    locationResolver.getLocation(_) >> { args -> args[0].toString() }
+    amazonS3Factory.create(_) >> s3
+    s3.getObject(_ as GetObjectRequest) >> { GetObjectRequest request ->
+      if (!request.key.endsWith('.properties')) {
+        return null
+      }
+      attributeLoads.incrementAndGet()
+      loadStarted.countDown()
+      loadReleased.await()
+      S3Object object = new S3Object()
+      object.objectContent = new S3ObjectInputStream(new ByteArrayInputStream('''\
+          |@BlobStore.created-by=admin
+          |size=11
+          |@BlobStore.blob-name=test
+          |creationTime=1496358655289
+          |sha1=eb4c2a5a1c04ca2d504c5e57e1f88cef08c75707
+          |'''.stripMargin().bytes), null)
+      object
+    }
+    def config = new BlobStoreConfiguration()
+    // without an attribute cache every stale read has to go to S3
+    config.attributes = [s3: [bucket: 'mybucket', attributeCacheSize: 0]]
+    blobStore.init(config)
+    blobStore.doStart()
+  }
+
+  def cleanup() {
+    loadReleased.countDown()
+    blobStore.doStop()
+  }
+
+  def 'concurrent readers of a stale blob share one load'() {
+    when: 'many threads read the same stale blob while its attributes are being loaded'
+      def blobs = contend(THREADS, { blobStore.get(new BlobId('test')) }) {
+        loadStarted.await()
+        loadReleased.countDown()
+      }
+
+    then: 'attributes are loaded once and every reader gets the blob'
+      attributeLoads.get() == 1
+      blobs.every { it.is(blobs[0]) }
+  }
+
+  def 'readers of a fresh blob do not wait on one another'() {
+    given: 'a blob that has been read once'
+      loadReleased.countDown()
+      def blob = blobStore.get(new BlobId('test'))
+
+    when: 'many threads read it over and over'
+      contend(THREADS, {
+        for (int i = 0; i < 10_000; i++) {
+          assert blobStore.get(new BlobId('test')).is(blob)
+        }
+      })
+
+    then: 'nothing is loaded again'
+      attributeLoads.get() == 1
+  }
+
+  /**
+   * Runs the given work on the given number of threads released at once, then the given closure while they run,
+   * returning what the work returned on each thread.
+   */
+  private static List contend(final int threads, final Closure work, final Closure whileRunning = {}) {
+    def executor = Executors.newFixedThreadPool(threads)
+    def ready = new CountDownLatch(threads)
+    def go = new CountDownLatch(1)
+    def futures = (1..threads).collect {
+      executor.submit {
+        ready.countDown()
+        go.await()
+        work()
+      }
+    }
+    ready.await()
+    go.countDown()
+    whileRunning()
+    def results = futures*.get()
+    executor.shutdown()
+    return results
+  }
+}
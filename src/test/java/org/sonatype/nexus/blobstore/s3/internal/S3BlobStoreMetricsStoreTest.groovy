@@ -0,0 +1,193 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal
+
+import org.sonatype.nexus.blobstore.AccumulatingBlobStoreMetrics
+import org.sonatype.nexus.blobstore.PeriodicJobService
+import org.sonatype.nexus.blobstore.PeriodicJobService.PeriodicJob
+import org.sonatype.nexus.common.node.NodeAccess
+
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.ObjectListing
+import com.amazonaws.services.s3.model.PutObjectResult
+import com.amazonaws.services.s3.model.S3Object
+import com.amazonaws.services.s3.model.S3ObjectInputStream
+import com.amazonaws.services.s3.model.S3ObjectSummary
+import spock.lang.Specification
+
+/**
+ * {@link S3BlobStoreMetricsStore} tests.
+ */
+class S3BlobStoreMetricsStoreTest
+    extends Specification
+{
+
+  PeriodicJobService jobService = Mock()
+
+  NodeAccess nodeAccess = Mock()
+
+  AmazonS3 s3 = Mock()
+
+  S3BlobStoreMetricsStore metricsStore = new S3BlobStoreMetricsStore(jobService, nodeAccess)
+
+  ObjectListing bucketListing = new ObjectListing()
+
+  def setup() {
+    nodeAccess.getId() >> 'node1'
+    jobService.schedule(_, _) >> Mock(PeriodicJob)
+    metricsStore.setBucket('mybucket')
+    metricsStore.setS3(s3)
+    s3.listObjects(_) >> bucketListing
+  }
+
+  def 'metrics of all nodes are served from memory'() {
+    given: 'metrics files of this node and another'
+      def listing = new ObjectListing()
+      ['metadata.properties', 'node1-metrics.properties', 'node2-metrics.properties'].each {
+        listing.objectSummaries << new S3ObjectSummary(key: it)
+      }
+      s3.getObject({ it.key == 'node1-metrics.properties' }) >> mockS3Object('blobCount=5\ntotalSize=50\n')
+      s3.getObject({ it.key == 'node2-metrics.properties' }) >> mockS3Object('blobCount=3\ntotalSize=30\n')
+
+    when: 'the store starts, records a blob and is read repeatedly'
+      metricsStore.start()
+      metricsStore.recordAddition(10)
+      def first = metricsStore.metrics
+      def second = metricsStore.metrics
+
+    then: 'other nodes are listed once on start, with pagination, and combined with live counters'
+      1 * s3.listObjects({ it.delimiter == '/' }) >> listing
+      first.blobCount == 9
+      first.totalSize == 90
+      second.blobCount == 9
+  }
+
+  def 'changes are coalesced while writes continue and flushed once they pause'() {
+    given: 'an existing metrics file'
+      s3.getObject({ it.key == 'node1-metrics.properties' }) >> { mockS3Object('blobCount=5\ntotalSize=50\n') }
+      metricsStore.start()
+
+    when: 'a blob is added just before the flush job runs'
+      metricsStore.recordAddition(10)
+      metricsStore.flushIfDue()
+
+    then: 'the flush waits for writes to pause'
+      0 * s3.putObject(*_)
+      metricsStore.flushLagMillis >= 0
+      metricsStore.flushCount == 0
+
+    when: 'the flush job runs again without further writes'
+      metricsStore.flushIfDue()
+
+    then: 'the changes are written'
+      1 * s3.putObject('mybucket', 'node1-metrics.properties', _, _) >> new PutObjectResult()
+      metricsStore.flushCount == 1
+      metricsStore.flushLagMillis == 0
+  }
+
+  def 'flushing adds local changes to counters written by another writer'() {
+    given: 'a metrics file that another writer changes after it was loaded'
+      s3.getObject({ it.key == 'node1-metrics.properties' }) >>> [
+          mockS3Object('blobCount=5\ntotalSize=50\nsequence=3\nwriter=other\n'),
+          mockS3Object('blobCount=7\ntotalSize=70\nsequence=4\nwriter=other\n')
+      ]
+      def stored = new Properties()
+      metricsStore.start()
+
+    when: 'a blob is added and flushed'
+      metricsStore.recordAddition(10)
+      metricsStore.flush()
+
+    then: 'the other writer\'s changes are kept and the sequence moves past theirs'
+      1 * s3.putObject('mybucket', 'node1-metrics.properties', _, _) >> { args ->
+        stored.load(args[2] as InputStream)
+        new PutObjectResult()
+      }
+      stored.blobCount == '8'
+      stored.totalSize == '80'
+      stored.sequence == '5'
+      stored.writer != 'other'
+      metricsStore.metrics.blobCount == 8
+  }
+
+  def 'stopping flushes pending changes'() {
+    given: 'an existing metrics file'
+      s3.getObject({ it.key == 'node1-metrics.properties' }) >> { mockS3Object('blobCount=5\ntotalSize=50\n') }
+      def stored = new Properties()
+      metricsStore.start()
+
+    when: 'a blob is deleted and the store stops before the flush job runs'
+      metricsStore.recordDeletion(10)
+      metricsStore.stop()
+
+    then: 'the change is written on stop'
+      1 * s3.putObject('mybucket', 'node1-metrics.properties', _, _) >> { args ->
+        stored.load(args[2] as InputStream)
+        new PutObjectResult()
+      }
+      stored.blobCount == '4'
+      stored.totalSize == '40'
+  }
+
+  def 'reconciling brings the counters of all nodes in line with listed totals'() {
+    given: 'metrics files of this node and another'
+      ['node1-metrics.properties', 'node2-metrics.properties'].each {
+        bucketListing.objectSummaries << new S3ObjectSummary(key: it)
+      }
+      s3.getObject({ it.key == 'node1-metrics.properties' }) >> { mockS3Object('blobCount=5\ntotalSize=50\n') }
+      s3.getObject({ it.key == 'node2-metrics.properties' }) >> {
+        mockS3Object('blobCount=3\ntotalSize=30\nsequence=7\nwriter=node2\n')
+      }
+      def stored = [:]
+      s3.putObject('mybucket', _, _, _) >> { args ->
+        def properties = new Properties()
+        properties.load(args[2] as InputStream)
+        stored[args[1]] = properties
+        new PutObjectResult()
+      }
+      def listed = new AccumulatingBlobStoreMetrics(0, 0, -1, true)
+      listed.addBlobCount(20)
+      listed.addTotalSize(200)
+      metricsStore.start()
+
+    when: 'the metrics are reconciled with a listing'
+      metricsStore.reconcile({ listed })
+      def metrics = metricsStore.metrics
+
+    then: 'this node takes on the difference and the other node\'s file is left alone'
+      stored['node1-metrics.properties'].blobCount == '17'
+      stored['node1-metrics.properties'].totalSize == '170'
+      !stored.containsKey('node2-metrics.properties')
+      metrics.blobCount == 20
+      metrics.totalSize == 200
+  }
+
+  def 'reconciling is not scheduled on the shared job service'() {
+    given: 'periodic reconciliation'
+      s3.getObject({ it.key == 'node1-metrics.properties' }) >> { mockS3Object('blobCount=5\ntotalSize=50\n') }
+      metricsStore.setReconciliation({ new AccumulatingBlobStoreMetrics(0, 0, -1, true) }, 3600)
+
+    when: 'the store starts and stops'
+      metricsStore.start()
+      metricsStore.stop()
+
+    then: 'only the flush and refresh jobs use the shared job service'
+      2 * jobService.schedule(_, _) >> Mock(PeriodicJob)
+  }
+
+  private mockS3Object(String contents) {
+    S3Object s3Object = Mock()
+    s3Object.getObjectContent() >> new S3ObjectInputStream(new ByteArrayInputStream(contents.bytes), null)
+    s3Object
+  }
+}
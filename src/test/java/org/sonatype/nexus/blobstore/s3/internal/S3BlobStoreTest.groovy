@@ -14,17 +14,28 @@ package org.sonatype.nexus.blobstore.s3.internal
 
 import org.sonatype.nexus.blobstore.BlobIdLocationResolver
 import org.sonatype.nexus.blobstore.api.BlobId
+import org.sonatype.nexus.blobstore.api.BlobStore
 import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration
+import org.sonatype.nexus.blobstore.api.BlobStoreMetrics
+import org.sonatype.nexus.blobstore.api.BlobStoreUsageChecker
+import org.sonatype.nexus.blobstore.s3.RangedBlob
+import org.sonatype.nexus.blobstore.s3.RedirectableBlob
 
 import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.AmazonS3Exception
 import com.amazonaws.services.s3.model.BucketLifecycleConfiguration
 import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.Transition
+import com.amazonaws.services.s3.model.GetObjectRequest
+import com.amazonaws.services.s3.model.ObjectListing
+import com.amazonaws.services.s3.model.ObjectMetadata
 import com.amazonaws.services.s3.model.S3Object
 import com.amazonaws.services.s3.model.S3ObjectInputStream
+import com.amazonaws.services.s3.model.S3ObjectSummary
 import com.amazonaws.services.s3.model.StorageClass
 import com.amazonaws.services.s3.model.lifecycle.LifecycleFilter
 import com.amazonaws.services.s3.model.lifecycle.LifecycleTagPredicate
 import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
 
 /**
  * {@link S3BlobStore} tests.
@@ -69,10 +80,10 @@ class S3BlobStoreTest
       1 * s3.doesBucketExist('mybucket') >> true
       1 * s3.getBucketLifecycleConfiguration('mybucket') >>
           blobStore.makeLifecycleConfiguration(null, S3BlobStore.DEFAULT_EXPIRATION_IN_DAYS)
-      1 * s3.doesObjectExist('mybucket', 'metadata.properties') >> false
-      1 * s3.doesObjectExist('mybucket', 'content/test.properties') >> true
-      1 * s3.getObject('mybucket', 'content/test.properties') >> attributesS3Object
+      1 * s3.getObject({ it.key == 'metadata.properties' }) >> { throw notFound() }
+      1 * s3.getObject({ it.key == 'content/test.properties' }) >> attributesS3Object
       1 * s3.getObject('mybucket', 'content/test.bytes') >> contentS3Object
+      0 * s3.doesObjectExist(_, _)
 
     when: 'An existing blob is read'
       blobStore.init(config)
@@ -83,6 +94,251 @@ class S3BlobStoreTest
       blob.inputStream.text == 'hello world'
   }
 
+  def 'stale get is served from the attribute cache'() {
+    given: 'a blob that has been read once'
+      blobStore.init(config)
+      blobStore.doStart()
+      1 * s3.getObject({ it.key == 'content/test.properties' }) >> mockS3Object(attributesContents)
+      def blob = blobStore.get(new BlobId('test'))
+
+    when: 'the blob goes stale and is read again'
+      blob.markStale()
+      def reread = blobStore.get(new BlobId('test'))
+
+    then: 'attributes are not loaded from s3 again'
+      reread.metrics.contentSize == 11
+      blobStore.attributesCacheStats.hitCount() == 1
+      blobStore.attributesCacheStats.missCount() == 1
+  }
+
+  def 'expired attributes are kept when s3 answers they have not changed'() {
+    given: 'a blob read once whose cached attributes expire right away'
+      config.attributes = [s3: [bucket: 'mybucket', attributeCacheTtl: 0]]
+      blobStore.init(config)
+      blobStore.doStart()
+      def metadata = new ObjectMetadata()
+      metadata.setHeader('ETag', 'v1')
+      def attributes = mockS3Object(attributesContents)
+      attributes.getObjectMetadata() >> metadata
+      1 * s3.getObject({ it.key == 'content/test.properties' && !it.nonmatchingETagConstraints }) >> attributes
+      def blob = blobStore.get(new BlobId('test'))
+
+    when: 'the blob goes stale and is read again'
+      blob.markStale()
+      def reread = blobStore.get(new BlobId('test'))
+
+    then: 'they are revalidated with a conditional get which answers 304'
+      1 * s3.getObject({ it.key == 'content/test.properties' && it.nonmatchingETagConstraints == ['v1'] }) >> null
+      reread.metrics.contentSize == 11
+      blobStore.attributesCacheStats.hitCount() == 1
+  }
+
+  def 'a range of a blob is read with a ranged get'() {
+    given: 'a blob of 11 bytes'
+      blobStore.init(config)
+      blobStore.doStart()
+      s3.getObject({ it.key == 'content/test.properties' }) >> mockS3Object(attributesContents)
+      def blob = blobStore.get(new BlobId('test'))
+
+    when: 'a range running past its end is read'
+      def text = (blob as RangedBlob).getInputStream(6, 100).text
+
+    then: 'only the bytes up to the end are requested'
+      1 * s3.getObject({ it instanceof GetObjectRequest && it.key == 'content/test.bytes' &&
+          it.range == [6L, 10L] as long[] }) >> mockS3Object('world')
+      text == 'world'
+  }
+
+  def 'setting attributes marks the blob stale'() {
+    given: 'a blob that has been read once'
+      blobStore.init(config)
+      blobStore.doStart()
+      s3.getObject({ it.key == 'content/test.properties' }) >> { mockS3Object(attributesContents) }
+      def blob = blobStore.get(new BlobId('test'))
+      def attributes = blobStore.getBlobAttributes(new BlobId('test'))
+
+    when: 'its attributes are set'
+      blobStore.setBlobAttributes(new BlobId('test'), attributes)
+
+    then: 'they are stored and the blob is reloaded on next access'
+      1 * s3.putObject('mybucket', 'content/test.properties', _, _)
+      blob.stale
+  }
+
+  def 'attributes travel with content in the s3/2 layout'() {
+    given: 'a blob store keeping attributes in object metadata'
+      config.attributes = [s3: [bucket: 'mybucket', attributesInMetadata: true]]
+      locationResolver.fromHeaders(_) >> new BlobId('test')
+      blobStore.init(config)
+      blobStore.doStart()
+
+    when: 'a blob is created'
+      blobStore.create(new ByteArrayInputStream('hello'.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'test', (BlobStore.CREATED_BY_HEADER): 'admin'])
+
+    then: 'its attributes are sent as metadata of the content and no .properties is written'
+      1 * s3.putObject('mybucket', 'content/test.bytes', _, {
+        it.getUserMetaDataOf(S3MetadataBlobAttributes.ATTRIBUTES_METADATA_KEY) != null
+      })
+      0 * s3.putObject('mybucket', 'content/test.properties', _, _)
+  }
+
+  def 'clients are not redirected to objects carrying attributes as metadata'() {
+    given: 'a blob store redirecting clients and keeping attributes in object metadata'
+      config.attributes = [s3: [bucket: 'mybucket', attributesInMetadata: true, presignedUrlThreshold: 0]]
+      locationResolver.fromHeaders(_) >> new BlobId('test')
+      blobStore.init(config)
+      blobStore.doStart()
+
+    when: 'a blob is created'
+      def blob = blobStore.create(new ByteArrayInputStream('hello'.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'test', (BlobStore.CREATED_BY_HEADER): 'admin'])
+
+    then: 'it is served through Nexus'
+      (blob as RedirectableBlob).redirectUrl == null
+      0 * s3.generatePresignedUrl(_)
+  }
+
+  def 'blobs found missing are not looked up again'() {
+    given: 'a started blob store remembering missing blobs'
+      config.attributes = [s3: [bucket: 'mybucket', missingBlobCacheTtl: 5]]
+      blobStore.init(config)
+      blobStore.doStart()
+
+    when: 'a missing blob is read twice'
+      def first = blobStore.get(new BlobId('missing'))
+      def second = blobStore.get(new BlobId('missing'))
+
+    then: 'only the first read asks s3'
+      first == null
+      second == null
+      1 * s3.getObject({ it.key == 'content/missing.properties' }) >> null
+      blobStore.missingBlobCacheStats.hitCount() == 1
+  }
+
+  def 'blobs absent from the filter are only confirmed missing'() {
+    given: 'a blob store filtering missing blobs with one blob in its bucket'
+      config.attributes = [s3: [bucket: 'mybucket', missingBlobFilter: true]]
+      storeMetrics.getMetrics() >> Mock(BlobStoreMetrics)
+      def listing = new ObjectListing()
+      listing.objectSummaries << new S3ObjectSummary(key: 'content/a.properties')
+      s3.listObjects({ it.prefix == 'content/' }) >> listing
+      blobStore.init(config)
+      blobStore.doStart()
+      new PollingConditions(timeout: 5).eventually {
+        assert blobStore.blobIdFilter.ready
+      }
+
+    when: 'the listed blob and an unknown one are read'
+      def missing = blobStore.get(new BlobId('b'))
+      def existing = blobStore.get(new BlobId('a'))
+
+    then: 'only the listed blob is read, the other is asked after with a HEAD request'
+      missing == null
+      1 * s3.doesObjectExist('mybucket', 'content/b.properties') >> false
+      0 * s3.getObject({ it.key == 'content/b.properties' })
+      1 * s3.getObject({ it.key == 'content/a.properties' }) >> mockS3Object(attributesContents)
+      existing.metrics.contentSize == 11
+  }
+
+  def 'blobs written by another node since the filter was populated are found'() {
+    given: 'a blob store filtering missing blobs with an empty bucket, not yet aware of another node'
+      config.attributes = [s3: [bucket: 'mybucket', missingBlobFilter: true, missingBlobCacheTtl: 5]]
+      storeMetrics.getMetrics() >> Mock(BlobStoreMetrics)
+      s3.listObjects({ it.prefix == 'content/' }) >> new ObjectListing()
+      blobStore.init(config)
+      blobStore.doStart()
+      new PollingConditions(timeout: 5).eventually {
+        assert blobStore.blobIdFilter.ready
+      }
+
+    when: 'a blob the other node wrote meanwhile is read twice'
+      def first = blobStore.get(new BlobId('a'))
+      first.markStale()
+      def second = blobStore.get(new BlobId('a'))
+
+    then: 'its existence is confirmed once and it is read rather than remembered as missing'
+      1 * s3.doesObjectExist('mybucket', 'content/a.properties') >> true
+      _ * s3.getObject({ it.key == 'content/a.properties' }) >> { mockS3Object(attributesContents) }
+      first.metrics.contentSize == 11
+      second.metrics.contentSize == 11
+      blobStore.missingBlobCacheStats.hitCount() == 0
+  }
+
+  def 'missing blobs are remembered while attributes are not cached'() {
+    given: 'a started blob store remembering missing blobs but caching no attributes'
+      config.attributes = [s3: [bucket: 'mybucket', missingBlobCacheTtl: 5, attributeCacheSize: 0]]
+      blobStore.init(config)
+      blobStore.doStart()
+
+    when: 'a missing blob is read twice'
+      blobStore.get(new BlobId('missing'))
+      blobStore.get(new BlobId('missing'))
+
+    then: 'only the first read asks s3'
+      1 * s3.getObject({ it.key == 'content/missing.properties' }) >> null
+      blobStore.missingBlobCacheStats.hitCount() == 1
+  }
+
+  def 'missing blobs are looked up every time by default'() {
+    given: 'a started blob store'
+      blobStore.init(config)
+      blobStore.doStart()
+
+    when: 'a missing blob is read twice'
+      blobStore.get(new BlobId('missing'))
+      blobStore.get(new BlobId('missing'))
+
+    then: 'both reads ask s3'
+      2 * s3.getObject({ it.key == 'content/missing.properties' }) >> null
+  }
+
+  def 'the filter is not consulted for blobs it does not know about'() {
+    given: 'a blob store filtering missing blobs with an empty bucket'
+      config.attributes = [s3: [bucket: 'mybucket', missingBlobFilter: true]]
+      storeMetrics.getMetrics() >> Mock(BlobStoreMetrics)
+      storeMetrics.hasOtherNodes() >> otherNodes
+      s3.listObjects({ it.prefix == 'content/' }) >> new ObjectListing()
+      blobStore.init(config)
+      blobStore.doStart()
+      new PollingConditions(timeout: 5).eventually {
+        assert blobStore.blobIdFilter.ready
+      }
+
+    when: 'a blob is read'
+      blobStore.get(new BlobId(id))
+
+    then: 'S3 is read unless the filter vouches for its absence, which is confirmed with a HEAD request'
+      heads * s3.doesObjectExist('mybucket', "${location}.properties") >> false
+      lookups * s3.getObject({ it.key == "${location}.properties" }) >> null
+
+    where:
+      id        | otherNodes || heads | lookups | location
+      'a'       | false      || 1     | 0       | 'content/a'
+      'a'       | true       || 0     | 1       | 'content/a'
+      'tmp$b'   | false      || 0     | 1       | 'tmp/tmp$b'
+  }
+
+  def 'direct path blobs are listed under their own IDs'() {
+    given: 'a bucket with a direct path blob and a regular one'
+      locationResolver.fromHeaders({ it[BlobStore.DIRECT_PATH_BLOB_HEADER] == 'true' }) >> { args ->
+        new BlobId('path$' + args[0][BlobStore.BLOB_NAME_HEADER])
+      }
+      def listing = new ObjectListing()
+      ['content/vol-01/chap-01/a.properties', 'content/directpath/health-check/repo/file.txt.properties'].each {
+        listing.objectSummaries << new S3ObjectSummary(key: it)
+      }
+      s3.listObjects({ it.prefix == 'content/' }) >> listing
+      blobStore.init(config)
+      blobStore.doStart()
+
+    when: 'the blob IDs are listed'
+      def blobIds = blobStore.blobIdStream.collect { it.asUniqueString() } as Set
+
+    then: 'the direct path blob is named by its path'
+      blobIds == ['a', 'path$health-check/repo/file.txt'] as Set
+  }
+
   def 'set lifecycle on pre-existing bucket if not present'() {
     given: 'bucket already exists, but has null lifecycle configuration'
       s3.doesBucketExist('mybucket') >> true
@@ -99,15 +355,15 @@ class S3BlobStoreTest
       blobStore.init(config)
       blobStore.doStart()
       def attributesS3Object = mockS3Object(attributesContents)
-      1 * s3.doesObjectExist('mybucket', 'content/soft-delete-success.properties') >> true
-      1 * s3.getObject('mybucket', 'content/soft-delete-success.properties') >> attributesS3Object
+      1 * s3.getObject({ it.key == 'content/soft-delete-success.properties' }) >> attributesS3Object
 
     when: 'blob is deleted'
       def deleted = blobStore.delete(new BlobId('soft-delete-success'), 'successful test')
 
-    then: 'deleted tag is added'
+    then: 'deleted tag is added to content and attributes'
       deleted == true
-      1 * s3.setObjectTagging(!null)
+      1 * s3.setObjectTagging({ it.key == 'content/soft-delete-success.bytes' })
+      1 * s3.setObjectTagging({ it.key == 'content/soft-delete-success.properties' })
   }
 
   def 'soft delete returns false when blob does not exist'() {
@@ -123,6 +379,190 @@ class S3BlobStoreTest
       0 * s3.setObjectTagging(!null)
   }
 
+  def 'batch hard delete uses multi-object deletes'() {
+    given: 'blobs with attributes'
+      blobStore.init(config)
+      blobStore.doStart()
+      s3.getObject({ it.key.endsWith('.properties') }) >> { mockS3Object(attributesContents) }
+
+    when: 'they are hard deleted together'
+      def result = blobStore.deleteHard([new BlobId('a'), new BlobId('b')])
+
+    then: 'content and attributes go in one request and each deletion is recorded'
+      1 * s3.deleteObjects({
+        it.keys*.key == ['content/a.bytes', 'content/a.properties', 'content/b.bytes', 'content/b.properties']
+      })
+      0 * s3.deleteObject(_, _)
+      2 * storeMetrics.recordDeletion(11)
+      result.deleted == 2
+      result.successful
+  }
+
+  def 'copy of deduplicated content only writes attributes and a reference'() {
+    given: 'a deduplicating blob store with a blob referring to shared content'
+      config.attributes = [s3: [bucket: 'mybucket', deduplication: true]]
+      locationResolver.fromHeaders(_) >> new BlobId('copy')
+      blobStore.init(config)
+      blobStore.doStart()
+      s3.getObject({ it.key == 'content/test.properties' }) >> {
+        mockS3Object(attributesContents + 'contentRef=eb4c2a5a1c04ca2d504c5e57e1f88cef08c75707\n')
+      }
+      s3.doesObjectExist('mybucket', 'dedup/eb4c2a5a1c04ca2d504c5e57e1f88cef08c75707.bytes') >> true
+
+    when: 'the blob is copied'
+      def copy = blobStore.copy(new BlobId('test'),
+          [(BlobStore.BLOB_NAME_HEADER): 'copy', (BlobStore.CREATED_BY_HEADER): 'admin'])
+
+    then: 'a reference and attributes are written but no content'
+      1 * s3.putObject('mybucket', 'dedup/eb4c2a5a1c04ca2d504c5e57e1f88cef08c75707.refs/copy', _, _)
+      1 * s3.putObject('mybucket', 'content/copy.properties', _, _)
+      0 * s3.copyObject(_)
+      0 * s3.putObject('mybucket', { it.endsWith('.bytes') }, _, _)
+      copy.contentPath == 'dedup/eb4c2a5a1c04ca2d504c5e57e1f88cef08c75707.bytes'
+      1 * storeMetrics.recordAddition(11)
+  }
+
+  def 'hard deleting the last reference lets deduplicated content expire'() {
+    given: 'a deduplicating blob store with a blob referring to shared content'
+      config.attributes = [s3: [bucket: 'mybucket', deduplication: true]]
+      blobStore.init(config)
+      blobStore.doStart()
+      s3.getObject({ it.key == 'content/a.properties' }) >> {
+        mockS3Object(attributesContents + 'contentRef=eb4c2a5a1c04ca2d504c5e57e1f88cef08c75707\n')
+      }
+      s3.listObjects({ it.prefix == 'dedup/eb4c2a5a1c04ca2d504c5e57e1f88cef08c75707.refs/' }) >> new ObjectListing()
+
+    when: 'the blob is hard deleted'
+      def deleted = blobStore.deleteHard(new BlobId('a'))
+
+    then: 'its reference is deleted rather than the content, which is tagged for expiry'
+      deleted
+      1 * s3.deleteObject('mybucket', 'dedup/eb4c2a5a1c04ca2d504c5e57e1f88cef08c75707.refs/a')
+      1 * s3.deleteObject('mybucket', 'content/a.properties')
+      0 * s3.deleteObject('mybucket', { it.endsWith('.bytes') })
+      1 * s3.setObjectTagging({ it.key == 'dedup/eb4c2a5a1c04ca2d504c5e57e1f88cef08c75707.bytes' })
+      0 * s3.deleteObjectTagging(_)
+  }
+
+  def 'batch soft delete rewrites attributes and tags content'() {
+    given: 'two existing blobs and one missing'
+      blobStore.init(config)
+      blobStore.doStart()
+      s3.getObject({ it.key in ['content/a.properties', 'content/b.properties'] }) >> {
+        mockS3Object(attributesContents)
+      }
+
+    when: 'they are soft deleted together'
+      def result = blobStore.delete([new BlobId('a'), new BlobId('b'), new BlobId('missing')], 'cleanup')
+
+    then: 'existing blobs are marked deleted and tagged'
+      1 * s3.putObject('mybucket', 'content/a.properties', _, _)
+      1 * s3.putObject('mybucket', 'content/b.properties', _, _)
+      1 * s3.setObjectTagging({ it.key == 'content/a.bytes' })
+      1 * s3.setObjectTagging({ it.key == 'content/a.properties' })
+      1 * s3.setObjectTagging({ it.key == 'content/b.bytes' })
+      1 * s3.setObjectTagging({ it.key == 'content/b.properties' })
+      result.deleted == 2
+      result.skipped == 1
+      result.successful
+  }
+
+  def 'metrics are reconciled from listed content sizes'() {
+    given: 'content of two blobs, an attributes file and a temporary blob'
+      blobStore.init(config)
+      blobStore.doStart()
+      def listing = new ObjectListing()
+      [
+          'content/a.bytes': 5, 'content/a.properties': 100, 'content/b.bytes': 7, 'content/tmp$c.bytes': 3
+      ].each { key, size -> listing.objectSummaries << new S3ObjectSummary(key: key, size: size) }
+      s3.listObjects({ it.prefix == 'content/' }) >> listing
+
+    when: 'the metrics are reconciled'
+      def metrics = blobStore.reconcileMetrics()
+
+    then: 'only permanent content is counted, without reading any object'
+      1 * storeMetrics.reconcile(_) >> { args -> args[0].get() }
+      0 * s3.getObject(*_)
+      metrics.blobCount == 2
+      metrics.totalSize == 12
+  }
+
+  def 'compact hard deletes soft deleted blobs and restores those in use'() {
+    given: 'a soft deleted blob, a soft deleted blob still in use and a live blob'
+      blobStore.init(config)
+      blobStore.doStart()
+      def listing = new ObjectListing()
+      ['content/a.properties', 'content/b.properties', 'content/c.properties'].each {
+        listing.objectSummaries << new S3ObjectSummary(key: it)
+      }
+      s3.listObjects({ it.prefix == 'content/' }) >> listing
+      def deletedContents = attributesContents + 'deleted=true\n'
+      s3.getObject({ it.key in ['content/a.properties', 'content/b.properties'] }) >> { mockS3Object(deletedContents) }
+      s3.getObject({ it.key == 'content/c.properties' }) >> { mockS3Object(attributesContents) }
+      BlobStoreUsageChecker inUseChecker = Mock()
+      inUseChecker.test(blobStore, new BlobId('b'), 'test') >> true
+
+    when: 'the blob store is compacted'
+      blobStore.compact(inUseChecker)
+
+    then: 'the unused blob is hard deleted in a batch and the other is restored'
+      1 * s3.deleteObjects({ it.keys*.key == ['content/a.bytes', 'content/a.properties'] })
+      1 * storeMetrics.recordDeletion(11)
+      1 * s3.putObject('mybucket', 'content/b.properties', _, _)
+      1 * s3.deleteObjectTagging({ it.key == 'content/b.bytes' })
+      1 * s3.deleteObjectTagging({ it.key == 'content/b.properties' })
+      0 * s3.putObject('mybucket', 'content/c.properties', _, _)
+  }
+
+  def 'compact hard deletes soft deleted direct path blobs'() {
+    given: 'a soft deleted direct path blob'
+      locationResolver.fromHeaders({ it[BlobStore.DIRECT_PATH_BLOB_HEADER] == 'true' }) >> { args ->
+        new BlobId('path$' + args[0][BlobStore.BLOB_NAME_HEADER])
+      }
+      blobStore.init(config)
+      blobStore.doStart()
+      def listing = new ObjectListing()
+      listing.objectSummaries << new S3ObjectSummary(key: 'content/directpath/health-check/file.txt.properties')
+      s3.listObjects({ it.prefix == 'content/' }) >> listing
+      s3.getObject({ it.key == 'content/directpath/health-check/file.txt.properties' }) >> {
+        mockS3Object(attributesContents + 'deleted=true\n')
+      }
+
+    when: 'the blob store is compacted'
+      blobStore.compact()
+
+    then: 'the blob is found under its own ID and hard deleted'
+      _ * locationResolver.getLocation(new BlobId('path$health-check/file.txt')) >> 'directpath/health-check/file.txt'
+      1 * s3.deleteObjects({
+        it.keys*.key == ['content/directpath/health-check/file.txt.bytes',
+                         'content/directpath/health-check/file.txt.properties']
+      })
+      1 * storeMetrics.recordDeletion(11)
+  }
+
+  def 'orphaned attributes are purged in a batch'() {
+    given: 'attributes with and without content'
+      blobStore.init(config)
+      blobStore.doStart()
+      def listing = new ObjectListing()
+      ['content/a.bytes', 'content/a.properties', 'content/b.properties', 'content/c.properties'].each {
+        listing.objectSummaries << new S3ObjectSummary(key: it)
+      }
+      s3.listObjects({ it.prefix == 'content/' }) >> listing
+
+    when: 'orphaned attributes are purged'
+      def result = blobStore.purgeOrphanedAttributes()
+
+    then: 'attributes confirmed to lack content go in one multi-object delete'
+      1 * s3.doesObjectExist('mybucket', 'content/b.bytes') >> false
+      1 * s3.doesObjectExist('mybucket', 'content/c.bytes') >> true
+      0 * s3.doesObjectExist('mybucket', 'content/a.bytes')
+      1 * s3.deleteObjects({ it.keys*.key == ['content/b.properties'] })
+      result.deleted == 1
+      result.skipped == 1
+      result.successful
+  }
+
   def 'isExpirationLifecycleConfigurationPresent returns false on empty config'() {
     given: 'empty lifecycleConfiguration'
       def bucketConfig = new BucketLifecycleConfiguration()
@@ -156,12 +596,81 @@ class S3BlobStoreTest
 
     then: 'glacier rule still present'
       1 * s3.setBucketLifecycleConfiguration(_, _) >> { bucketName, capturedConfig ->
-        assert capturedConfig.getRules().size() == 2
+        assert capturedConfig.getRules().size() == 3
         assert capturedConfig.getRules().stream().anyMatch { it.id == 'some other rule' }
         assert capturedConfig.getRules().stream().anyMatch { it.id == S3BlobStore.LIFECYCLE_EXPIRATION_RULE_ID }
+        assert capturedConfig.getRules().stream().anyMatch { it.id == S3BlobStore.LIFECYCLE_TEMPORARY_RULE_ID }
       }
   }
 
+  def 'temporary rule is added to a bucket that only expires soft-deleted blobs'() {
+    given: 'a bucket with the soft-delete expiry rule only'
+      def bucketConfig = new BucketLifecycleConfiguration().withRules(new BucketLifecycleConfiguration.Rule()
+          .withId(S3BlobStore.LIFECYCLE_EXPIRATION_RULE_ID)
+          .withFilter(new LifecycleFilter(new LifecycleTagPredicate(S3BlobStore.DELETED_TAG)))
+          .withExpirationInDays(S3BlobStore.DEFAULT_EXPIRATION_IN_DAYS)
+          .withStatus(BucketLifecycleConfiguration.ENABLED.toString()))
+      s3.doesBucketExist('mybucket') >> true
+      s3.getBucketLifecycleConfiguration('mybucket') >> bucketConfig
+
+    when: 'init called'
+      blobStore.init(config)
+
+    then: 'the temporary prefix is expired without duplicating the existing rule'
+      1 * s3.setBucketLifecycleConfiguration(_, _) >> { bucketName, capturedConfig ->
+        assert capturedConfig.getRules()*.id ==
+            [S3BlobStore.LIFECYCLE_EXPIRATION_RULE_ID, S3BlobStore.LIFECYCLE_TEMPORARY_RULE_ID]
+        def temporaryRule = capturedConfig.getRules()[1]
+        assert temporaryRule.filter.predicate.prefix == 'tmp/'
+        assert temporaryRule.expirationInDays == S3BlobStore.TEMPORARY_EXPIRATION_IN_DAYS
+      }
+  }
+
+  def 'temporary rule is added when soft-deleted blobs do not expire'() {
+    given: 'a blob store keeping soft-deleted blobs and a bucket without rules'
+      config.attributes = [s3: [bucket: 'mybucket', expiration: -1]]
+      s3.doesBucketExist('mybucket') >> true
+      s3.getBucketLifecycleConfiguration('mybucket') >> null
+
+    when: 'init called'
+      blobStore.init(config)
+
+    then: 'only temporary blobs expire'
+      1 * s3.setBucketLifecycleConfiguration(_, _) >> { bucketName, capturedConfig ->
+        assert capturedConfig.getRules()*.id == [S3BlobStore.LIFECYCLE_TEMPORARY_RULE_ID]
+      }
+  }
+
+  def 'temporary blobs written before they moved to their own prefix are still read and deleted'() {
+    given: 'a temporary blob at its legacy location among permanent content'
+      def blobId = new BlobId('tmp$a')
+      blobStore.init(config)
+      blobStore.doStart()
+      s3.getObject({ it.key == 'tmp/tmp$a.properties' }) >> { throw notFound() }
+      s3.getObject({ it.key == 'content/tmp$a.properties' }) >> { mockS3Object(attributesContents) }
+      s3.doesObjectExist('mybucket', 'content/tmp$a.bytes') >> true
+
+    when: 'it is read'
+      def blob = blobStore.get(blobId)
+
+    then: 'it is found there'
+      blob.metrics.contentSize == 11
+
+    when: 'it is deleted'
+      blobStore.deleteHard(blobId)
+
+    then: 'its objects are deleted from there'
+      1 * s3.deleteObject('mybucket', 'content/tmp$a.bytes')
+      1 * s3.deleteObject('mybucket', 'content/tmp$a.properties')
+      0 * s3.deleteObject('mybucket', { it.startsWith('tmp/') })
+  }
+
+  private static notFound() {
+    def exception = new AmazonS3Exception('Not Found')
+    exception.statusCode = 404
+    exception
+  }
+
   private mockS3Object(String contents) {
     S3Object s3Object = Mock()
     s3Object.getObjectContent() >> new S3ObjectInputStream(new ByteArrayInputStream(contents.bytes), null)
@@ -0,0 +1,135 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import org.sonatype.nexus.blobstore.api.BlobId
+
+import spock.lang.Specification
+
+/**
+ * {@link S3ContentCache} tests.
+ */
+class S3ContentCacheTest
+    extends Specification
+{
+  Path directory = Files.createTempDirectory('s3-content-cache')
+
+  def cleanup() {
+    directory.toFile().deleteDir()
+  }
+
+  def 'content read in full is served from disk afterwards'() {
+    given: 'an empty cache'
+      def cache = new S3ContentCache(directory, 'test', 100)
+      def blobId = new BlobId('a')
+
+    when: 'content is read through it'
+      def read = cache.fill(blobId, 'sha1', 5, new ByteArrayInputStream('hello'.bytes)).text
+
+    then: 'the caller gets the content and later reads hit the cache'
+      read == 'hello'
+      cache.open(blobId, 'sha1', 0, 5).text == 'hello'
+      cache.open(blobId, 'sha1', 1, 3).text == 'ell'
+      cache.open(blobId, 'other', 0, 5) == null
+      cache.size == 5
+      cache.hitCount == 2
+      cache.missCount == 1
+  }
+
+  def 'content closed before its end is not cached'() {
+    given: 'an empty cache'
+      def cache = new S3ContentCache(directory, 'test', 100)
+
+    when: 'content is only partly read'
+      def input = cache.fill(new BlobId('a'), 'sha1', 5, new ByteArrayInputStream('hello'.bytes))
+      input.read(new byte[2])
+      input.close()
+
+    then: 'nothing is cached or left on disk'
+      cache.open(new BlobId('a'), 'sha1', 0, 5) == null
+      cache.size == 0
+      cachedFiles(cache) == 0
+  }
+
+  def 'least recently used content is evicted'() {
+    given: 'a cache with room for two entries'
+      def cache = new S3ContentCache(directory, 'test', 10)
+      cache.fill(new BlobId('a'), 'a', 5, new ByteArrayInputStream('aaaaa'.bytes)).text
+      cache.fill(new BlobId('b'), 'b', 5, new ByteArrayInputStream('bbbbb'.bytes)).text
+
+    when: 'the first is read again and a third is added'
+      cache.open(new BlobId('a'), 'a', 0, 5).close()
+      cache.fill(new BlobId('c'), 'c', 5, new ByteArrayInputStream('ccccc'.bytes)).text
+
+    then: 'the entry read longest ago is gone'
+      cache.open(new BlobId('b'), 'b', 0, 5) == null
+      cache.open(new BlobId('a'), 'a', 0, 5).text == 'aaaaa'
+      cache.open(new BlobId('c'), 'c', 0, 5).text == 'ccccc'
+      cache.size == 10
+      cachedFiles(cache) == 2
+  }
+
+  def 'invalidated content is deleted'() {
+    given: 'cached content'
+      def cache = new S3ContentCache(directory, 'test', 100)
+      cache.fill(new BlobId('a'), 'sha1', 5, new ByteArrayInputStream('hello'.bytes)).text
+
+    when: 'it is invalidated'
+      cache.invalidate(new BlobId('a'))
+
+    then: 'it is no longer served'
+      cache.open(new BlobId('a'), 'sha1', 0, 5) == null
+      cache.size == 0
+      cachedFiles(cache) == 0
+  }
+
+  def 'only files the cache wrote are deleted'() {
+    given: 'files of someone else next to and inside the cache directory'
+      def neighbour = Files.write(directory.resolve('unrelated.txt'), 'keep'.bytes)
+      Files.createDirectories(directory.resolve('test'))
+      def inside = Files.write(directory.resolve('test').resolve('unrelated.bytes.txt'), 'keep'.bytes)
+      def stale = Files.write(directory.resolve('test').resolve('stale.bytes'), 'gone'.bytes)
+
+    when: 'a cache starts and is closed again'
+      new S3ContentCache(directory, 'test', 100).close()
+
+    then: 'only the cached content of the earlier run is gone'
+      Files.exists(neighbour)
+      Files.exists(inside)
+      !Files.exists(stale)
+  }
+
+  def 'a directory already used by another cache is rejected'() {
+    given: 'a cache in use'
+      def cache = new S3ContentCache(directory, 'test', 100)
+
+    when: 'another cache is started on the same directory'
+      new S3ContentCache(directory, 'test', 100)
+
+    then: 'it is refused'
+      thrown(IllegalStateException)
+
+    when: 'the first cache is closed'
+      cache.close()
+
+    then: 'the directory can be used again'
+      new S3ContentCache(directory, 'test', 100).close()
+  }
+
+  private static int cachedFiles(final S3ContentCache cache) {
+    return cache.directory.toFile().list().findAll { it.endsWith('.bytes') || it.endsWith('.part') }.size()
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal
+
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.Semaphore
+
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.GetObjectRequest
+import com.amazonaws.services.s3.model.S3Object
+import com.amazonaws.services.s3.model.S3ObjectInputStream
+import spock.lang.Specification
+
+/**
+ * {@link S3Downloader} tests.
+ */
+class S3DownloaderTest
+    extends Specification
+{
+
+  AmazonS3 s3 = Mock()
+
+  String content = ('a'..'z').join('')
+
+  S3Downloader downloader = new S3Downloader(s3, 'mybucket', 10, 4, 2, 2)
+
+  def cleanup() {
+    downloader.shutdown()
+  }
+
+  def 'small content is read with a single get'() {
+    when: 'content below the threshold is opened'
+      def text = downloader.open('mykey', 5).text
+
+    then: 'it is streamed from one request'
+      1 * s3.getObject('mybucket', 'mykey') >> mockS3Object('hello')
+      text == 'hello'
+  }
+
+  def 'large content is read in ordered ranges'() {
+    given: 'ranged gets'
+      s3.getObject(_ as GetObjectRequest) >> { GetObjectRequest request ->
+        def (start, end) = request.range
+        mockS3Object(content.substring((int) start, (int) end + 1))
+      }
+
+    when: 'content above the threshold is opened'
+      def text = downloader.open('mykey', content.length()).text
+
+    then: 'ranges are reassembled in order'
+      text == content
+      0 * s3.getObject('mybucket', 'mykey')
+  }
+
+  def 'small range is read with a single ranged get'() {
+    when: 'a range below the threshold is opened'
+      def text = downloader.open('mykey', 3, 4).text
+
+    then: 'exactly that range is requested'
+      1 * s3.getObject({ it.key == 'mykey' && it.range == [3L, 6L] as long[] }) >> mockS3Object('defg')
+      text == 'defg'
+  }
+
+  def 'large range is read in ordered ranges'() {
+    given: 'ranged gets'
+      s3.getObject(_ as GetObjectRequest) >> { GetObjectRequest request ->
+        def (start, end) = request.range
+        mockS3Object(content.substring((int) start, (int) end + 1))
+      }
+
+    when: 'a range above the threshold is opened'
+      def text = downloader.open('mykey', 5, 15).text
+
+    then: 'only the requested range is reassembled'
+      text == content.substring(5, 20)
+  }
+
+  def 'budget is handed back when a stream reads on after shutdown'() {
+    given: 'a stream opened before its downloader is shut down'
+      def budget = new Semaphore(2)
+      def limited = new S3Downloader(s3, 'mybucket', 10, 4, 2, 2, budget)
+      def stream = limited.open('mykey', content.length())
+      limited.shutdown()
+
+    when: 'the stream is read'
+      stream.read()
+
+    then: 'no range can be fetched and none of the budget is kept'
+      thrown(RejectedExecutionException)
+      budget.availablePermits() == 2
+      0 * s3.getObject(_)
+  }
+
+  def 'buffer size must hold a range'() {
+    when: 'a downloader buffers less than one range'
+      new S3Downloader(s3, 'mybucket', 10, 4096, 2, 2, 1024L)
+
+    then: 'it is refused'
+      thrown(IllegalArgumentException)
+  }
+
+  def 'ranges held in memory are bounded by the budget'() {
+    given: 'a budget for a single range'
+      def budget = new Semaphore(1)
+      def limited = new S3Downloader(s3, 'mybucket', 10, 4, 2, 2, budget)
+      def heldWhileFetching = [].asSynchronized()
+      s3.getObject(_ as GetObjectRequest) >> { GetObjectRequest request ->
+        heldWhileFetching << budget.availablePermits()
+        def (start, end) = request.range
+        mockS3Object(content.substring((int) start, (int) end + 1))
+      }
+
+    when: 'content above the threshold is read'
+      def stream = limited.open('mykey', content.length())
+      def text = stream.text
+
+    then: 'it is complete, fetched one range at a time'
+      text == content
+      heldWhileFetching.every { it == 0 }
+
+    and: 'the budget is handed back'
+      budget.availablePermits() == 1
+
+    cleanup:
+      limited.shutdown()
+  }
+
+  def 'range size is limited'() {
+    when:
+      new S3Downloader(s3, 'mybucket', 10, S3Downloader.MAX_RANGE_SIZE + 1L, 2, 2)
+
+    then:
+      thrown(IllegalArgumentException)
+  }
+
+  private mockS3Object(String contents) {
+    S3Object s3Object = Mock()
+    s3Object.getObjectContent() >> new S3ObjectInputStream(new ByteArrayInputStream(contents.bytes), null)
+    s3Object
+  }
+}
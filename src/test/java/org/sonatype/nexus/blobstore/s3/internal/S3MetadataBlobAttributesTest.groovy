@@ -0,0 +1,156 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal
+
+import org.sonatype.nexus.blobstore.api.BlobMetrics
+
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.S3Object
+import com.amazonaws.services.s3.model.S3ObjectInputStream
+import org.joda.time.DateTime
+import spock.lang.Specification
+
+import static org.sonatype.nexus.blobstore.s3.internal.S3MetadataBlobAttributes.ATTRIBUTES_METADATA_KEY
+
+/**
+ * {@link S3MetadataBlobAttributes} tests.
+ */
+class S3MetadataBlobAttributesTest
+    extends Specification
+{
+
+  AmazonS3 s3 = Mock()
+
+  def headers = ['BlobStore.blob-name': 'test', 'BlobStore.created-by': 'admin']
+
+  def metrics = new BlobMetrics(new DateTime(1496358655289L), 'eb4c2a5a1c04ca2d504c5e57e1f88cef08c75707', 11)
+
+  def 'attributes round trip through user metadata'() {
+    given: 'a new blob whose attributes were sent with its content'
+      def userMetadata = new S3MetadataBlobAttributes(s3, 'mybucket', 'test.bytes', 'test.properties', headers, metrics)
+          .toUserMetadata()
+      def objectMetadata = new ObjectMetadata()
+      objectMetadata.userMetadata = userMetadata
+
+    when: 'the attributes are loaded'
+      def attributes = new S3MetadataBlobAttributes(s3, 'mybucket', 'test.bytes', 'test.properties')
+      def loaded = attributes.load()
+
+    then: 'a single HEAD is made'
+      1 * s3.getObjectMetadata('mybucket', 'test.bytes') >> objectMetadata
+      0 * s3.getObject(_)
+      loaded
+      attributes.inMetadata
+      attributes.headers == headers
+      attributes.metrics.sha1Hash == metrics.sha1Hash
+      attributes.metrics.contentSize == 11
+  }
+
+  def 'attributes are read from properties when missing from metadata'() {
+    given: 'an unmigrated blob'
+      def properties = new Properties()
+      properties.putAll(['@BlobStore.blob-name': 'test', size: '11', sha1: metrics.sha1Hash, creationTime: '1'])
+      def bytes = new ByteArrayOutputStream()
+      properties.store(bytes, null)
+      S3Object s3Object = Mock()
+      s3Object.getObjectContent() >> new S3ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()), null)
+
+    when: 'the attributes are loaded'
+      def attributes = new S3MetadataBlobAttributes(s3, 'mybucket', 'test.bytes', 'test.properties')
+      def loaded = attributes.load()
+
+    then: 'they come from the .properties object'
+      1 * s3.getObjectMetadata('mybucket', 'test.bytes') >> new ObjectMetadata()
+      1 * s3.getObject({ it.key == 'test.properties' }) >> s3Object
+      loaded
+      !attributes.inMetadata
+      attributes.headers['BlobStore.blob-name'] == 'test'
+  }
+
+  def 'updated attributes move to properties'() {
+    given: 'attributes loaded from metadata'
+      def objectMetadata = new ObjectMetadata()
+      objectMetadata.userMetadata =
+          new S3MetadataBlobAttributes(s3, 'mybucket', 'test.bytes', 'test.properties', headers, metrics)
+              .toUserMetadata()
+      s3.getObjectMetadata('mybucket', 'test.bytes') >> objectMetadata
+      def attributes = new S3MetadataBlobAttributes(s3, 'mybucket', 'test.bytes', 'test.properties')
+      attributes.load()
+
+    when: 'the blob is marked deleted'
+      attributes.deleted = true
+      attributes.store()
+
+    then: 'the properties are written before the entry is dropped from the content object\'s metadata'
+      1 * s3.putObject('mybucket', 'test.properties', _, _)
+
+    then:
+      1 * s3.copyObject({
+        it.sourceKey == 'test.bytes' && it.destinationKey == 'test.bytes' &&
+            it.newObjectMetadata.getUserMetaDataOf(ATTRIBUTES_METADATA_KEY) == null
+      })
+      !attributes.inMetadata
+
+    when: 'the attributes are updated again'
+      attributes.deletedReason = 'test'
+      attributes.store()
+
+    then: 'only the properties are written'
+      1 * s3.putObject('mybucket', 'test.properties', _, _)
+      0 * s3.copyObject(_)
+  }
+
+  def 'attributes of content too large to copy in one request are not kept in metadata'() {
+    given: 'content above the single copy limit'
+      def large = new BlobMetrics(new DateTime(), metrics.sha1Hash, S3MetadataBlobAttributes.MAX_COPY_SIZE + 1)
+
+    expect:
+      new S3MetadataBlobAttributes(s3, 'mybucket', 'test.bytes', 'test.properties', headers, large)
+          .toUserMetadata() == null
+  }
+
+  def 'large attributes do not fit in metadata'() {
+    given: 'headers too large for user metadata'
+      def attributes = new S3MetadataBlobAttributes(s3, 'mybucket', 'test.bytes', 'test.properties',
+          headers + ['BlobStore.blob-name': 'x' * 4096], metrics)
+
+    expect:
+      attributes.toUserMetadata() == null
+      !attributes.inMetadata
+  }
+
+  def 'migrate moves attributes out of properties'() {
+    given: 'an unmigrated blob'
+      def properties = new Properties()
+      properties.putAll(['@BlobStore.blob-name': 'test', size: '11', sha1: metrics.sha1Hash, creationTime: '1'])
+      def bytes = new ByteArrayOutputStream()
+      properties.store(bytes, null)
+      S3Object s3Object = Mock()
+      s3Object.getObjectContent() >> new S3ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()), null)
+      def objectMetadata = new ObjectMetadata()
+      objectMetadata.contentLength = 11
+      s3.getObjectMetadata('mybucket', 'test.bytes') >> objectMetadata
+      s3.getObject({ it.key == 'test.properties' }) >> s3Object
+
+    when: 'it is migrated'
+      def migrated = new S3MetadataBlobAttributes(s3, 'mybucket', 'test.bytes', 'test.properties').migrate(1024)
+
+    then: 'attributes are copied into metadata before the properties are removed'
+      migrated
+      1 * s3.copyObject({ it.newObjectMetadata.getUserMetaDataOf(ATTRIBUTES_METADATA_KEY) != null })
+
+    then:
+      1 * s3.deleteObject('mybucket', 'test.properties')
+  }
+}
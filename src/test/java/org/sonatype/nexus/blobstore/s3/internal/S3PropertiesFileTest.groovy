@@ -15,6 +15,8 @@ package org.sonatype.nexus.blobstore.s3.internal
 import java.io.ByteArrayInputStream
 
 import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.AmazonS3Exception
+import com.amazonaws.services.s3.model.ObjectMetadata
 import com.amazonaws.services.s3.model.S3Object
 import com.amazonaws.services.s3.model.S3ObjectInputStream
 import spock.lang.Specification
@@ -45,6 +47,39 @@ public class S3PropertiesFileTest
       1 * s3Object.getObjectContent() >> new S3ObjectInputStream(new ByteArrayInputStream(testProperties.bytes), null)
   }
 
+  def "Load if exists reports missing object as absent"() {
+    given:
+      S3PropertiesFile propertiesFile = new S3PropertiesFile(s3, 'mybucket', 'mykey')
+      def notFound = new AmazonS3Exception('Not Found')
+      notFound.statusCode = 404
+
+    when:
+      def loaded = propertiesFile.loadIfExists()
+
+    then:
+      !loaded
+      1 * s3.getObject({ it.key == 'mykey' }) >> { throw notFound }
+      0 * s3.doesObjectExist(_, _)
+  }
+
+  def "Load if exists revalidates unchanged object by etag"() {
+    given:
+      S3PropertiesFile propertiesFile = new S3PropertiesFile(s3, 'mybucket', 'mykey')
+      S3Object s3Object = Mock()
+      s3Object.getObjectContent() >> new S3ObjectInputStream(new ByteArrayInputStream(testProperties.bytes), null)
+      s3Object.getObjectMetadata() >> new ObjectMetadata(ETag: 'abc')
+
+    when:
+      def first = propertiesFile.loadIfExists()
+      def second = propertiesFile.loadIfExists()
+
+    then:
+      first && second
+      propertiesFile.getProperty('propertyName') == 'value'
+      1 * s3.getObject({ it.key == 'mykey' && it.nonmatchingETagConstraints.empty }) >> s3Object
+      1 * s3.getObject({ it.key == 'mykey' && it.nonmatchingETagConstraints == ['abc'] }) >> null
+  }
+
   def "Store writes properties to s3 object"() {
     given:
       S3PropertiesFile propertiesFile = new S3PropertiesFile(s3, 'mybucket', 'mykey')
@@ -0,0 +1,167 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CountDownLatch
+import java.util.function.Supplier
+
+import spock.lang.Specification
+
+/**
+ * {@link S3ReadCoalescer} tests.
+ */
+class S3ReadCoalescerTest
+    extends Specification
+{
+  Path directory = Files.createTempDirectory('s3-read-coalescer')
+
+  S3ReadCoalescer coalescer = new S3ReadCoalescer(directory, 'test')
+
+  def cleanup() {
+    coalescer.shutdown()
+    directory.toFile().deleteDir()
+  }
+
+  def 'concurrent reads share one download'() {
+    given: 'a download that has not produced anything yet'
+      def gate = new CountDownLatch(1)
+      def downloads = 0
+      Supplier<InputStream> source = {
+        downloads++
+        gate.await()
+        new ByteArrayInputStream('hello world'.bytes)
+      }
+
+    when: 'two readers open the same content and the download proceeds'
+      def first = coalescer.open('key', 11, source)
+      def second = coalescer.open('key', 11, source)
+      gate.countDown()
+
+    then: 'both read all of it from the one download'
+      first.text == 'hello world'
+      second.text == 'hello world'
+      downloads == 1
+      coalescer.downloadCount == 1
+      coalescer.coalescedCount == 1
+
+    when: 'the readers are closed'
+      first.close()
+      second.close()
+
+    then: 'the spill file is gone along with its reservation'
+      directory.toFile().list().length == 0
+      coalescer.spillSize == 0
+  }
+
+  def 'reads after a download finished start a new one'() {
+    given: 'content read once'
+      Supplier<InputStream> source = { new ByteArrayInputStream('hello'.bytes) }
+      def first = coalescer.open('key', 5, source)
+      first.text
+      first.close()
+
+    when: 'it is read again'
+      def second = coalescer.open('key', 5, source)
+
+    then: 'it is downloaded again'
+      second.text == 'hello'
+      coalescer.downloadCount == 2
+      coalescer.coalescedCount == 0
+  }
+
+  def 'reads beyond the download limit stream straight from their source'() {
+    given: 'a coalescer running its only download'
+      def limited = new S3ReadCoalescer(directory, 'limited', 1, S3ReadCoalescer.DEFAULT_MAX_SPILL_SIZE)
+      def gate = new CountDownLatch(1)
+      def first = limited.open('first', 5, { gate.await(); new ByteArrayInputStream('first'.bytes) } as Supplier)
+
+    when: 'other content is read'
+      def second = limited.open('second', 6, { new ByteArrayInputStream('second'.bytes) } as Supplier)
+
+    then: 'it is read without a spill file'
+      second.text == 'second'
+      limited.bypassedCount == 1
+      limited.downloadCount == 1
+      directory.toFile().list().length == 1
+
+    cleanup:
+      gate.countDown()
+      first?.close()
+      limited.shutdown()
+  }
+
+  def 'reads beyond the spill size stream straight from their source'() {
+    given: 'a coalescer whose spill files hold 8 bytes, downloading 5 of them'
+      def limited = new S3ReadCoalescer(directory, 'limited', 2, 8)
+      def gate = new CountDownLatch(1)
+      def first = limited.open('first', 5, { gate.await(); new ByteArrayInputStream('first'.bytes) } as Supplier)
+
+    when: 'content which would not fit beside it is read'
+      def second = limited.open('second', 6, { new ByteArrayInputStream('second'.bytes) } as Supplier)
+
+    then: 'it is read without a spill file'
+      second.text == 'second'
+      limited.bypassedCount == 1
+      limited.downloadCount == 1
+      limited.spillSize == 5
+
+    when: 'the first download is read and closed'
+      gate.countDown()
+      def text = first.text
+      first.close()
+
+    then: 'its reservation is handed back'
+      text == 'first'
+      limited.spillSize == 0
+
+    cleanup:
+      gate.countDown()
+      first?.close()
+      limited.shutdown()
+  }
+
+  def 'shutting down deletes the spill files of downloads in progress'() {
+    given: 'a download that has not produced anything yet'
+      def gate = new CountDownLatch(1)
+      def reader = coalescer.open('key', 5, { gate.await(); new ByteArrayInputStream('hello'.bytes) } as Supplier)
+
+    when: 'the coalescer is shut down'
+      coalescer.shutdown()
+
+    then: 'the spill file is gone'
+      directory.toFile().list().length == 0
+
+    when: 'the reader goes on'
+      reader.text
+
+    then: 'it sees the download stopped'
+      thrown(IOException)
+
+    cleanup:
+      gate.countDown()
+  }
+
+  def 'download failures reach every reader'() {
+    given: 'a download that fails'
+      Supplier<InputStream> source = { throw new IllegalStateException('boom') }
+
+    when: 'the content is read'
+      coalescer.open('key', 5, source).text
+
+    then: 'the reader sees the failure and the spill file is gone'
+      thrown(IOException)
+      directory.toFile().list().length == 0
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.s3.internal
+
+import java.util.concurrent.CountDownLatch
+
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.CopyPartResult
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult
+import com.amazonaws.services.s3.model.UploadPartResult
+import spock.lang.Specification
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS
+import static java.util.concurrent.TimeUnit.SECONDS
+
+/**
+ * {@link S3Uploader} tests.
+ */
+class S3UploaderTest
+    extends Specification
+{
+
+  AmazonS3 s3 = Mock()
+
+  S3PartBufferPool bufferPool = new S3PartBufferPool(4, 8)
+
+  S3Uploader uploader = new S3Uploader(s3, 'mybucket', bufferPool, 10, 4, 2)
+
+  def cleanup() {
+    uploader.shutdown()
+  }
+
+  def 'content below the threshold is sent as a single put'() {
+    when: 'a small stream is uploaded'
+      uploader.upload('mykey', new ByteArrayInputStream('hello'.bytes))
+
+    then: 'it is put in one request'
+      1 * s3.putObject('mybucket', 'mykey', _, _) >> { bucket, key, input, metadata ->
+        assert input.text == 'hello'
+        assert metadata.contentLength == 5
+      }
+      0 * s3.initiateMultipartUpload(_)
+  }
+
+  def 'content above the threshold is uploaded in parts'() {
+    given: 'a multipart upload'
+      def uploaded = new ByteArrayOutputStream()
+      s3.initiateMultipartUpload(_) >> new InitiateMultipartUploadResult(uploadId: 'upload')
+      s3.uploadPart(_) >> { args ->
+        synchronized (uploaded) {
+          uploaded.write(args[0].inputStream.bytes)
+        }
+        new UploadPartResult(partNumber: args[0].partNumber, ETag: 'etag')
+      }
+
+    when: 'a large stream is uploaded'
+      uploader.upload('mykey', new ByteArrayInputStream(('x' * 25).bytes))
+
+    then: 'all bytes are sent and the upload completed'
+      0 * s3.putObject(*_)
+      1 * s3.completeMultipartUpload({ it.uploadId == 'upload' && !it.partETags.empty })
+      uploaded.size() == 25
+
+    and: 'all buffers are returned to the pool'
+      bufferPool.inUse == 0
+  }
+
+  def 'failed part aborts the upload'() {
+    given: 'a part that fails'
+      s3.initiateMultipartUpload(_) >> new InitiateMultipartUploadResult(uploadId: 'upload')
+      s3.uploadPart(_) >> { throw new IllegalStateException('boom') }
+
+    when: 'a large stream is uploaded'
+      uploader.upload('mykey', new ByteArrayInputStream(('x' * 25).bytes))
+
+    then: 'the multipart upload is aborted'
+      thrown(IllegalStateException)
+      1 * s3.abortMultipartUpload({ it.uploadId == 'upload' })
+      0 * s3.completeMultipartUpload(_)
+      bufferPool.inUse == 0
+  }
+
+  def 'small file is sent as a single put'() {
+    given: 'a small file'
+      def file = File.createTempFile('upload', '.bytes')
+      file.text = 'hello'
+
+    when: 'the file is uploaded'
+      uploader.upload('mykey', file.toPath(), 5)
+
+    then: 'it is put in one request straight from the file'
+      1 * s3.putObject({ it.file == file && it.metadata.contentLength == 5 })
+      0 * s3.initiateMultipartUpload(_)
+
+    cleanup:
+      file.delete()
+  }
+
+  def 'large file is uploaded in ranged parts'() {
+    given: 'a large file'
+      def file = File.createTempFile('upload', '.bytes')
+      file.text = ('a'..'y').join('')
+      def uploaded = [:].asSynchronized()
+      s3.initiateMultipartUpload(_) >> new InitiateMultipartUploadResult(uploadId: 'upload')
+      s3.uploadPart(_) >> { args ->
+        uploaded[args[0].partNumber] = new String(args[0].inputStream.bytes)
+        new UploadPartResult(partNumber: args[0].partNumber, ETag: 'etag')
+      }
+
+    when: 'the file is uploaded'
+      uploader.upload('mykey', file.toPath(), 25)
+
+    then: 'every range is uploaded in order and the upload completed'
+      1 * s3.completeMultipartUpload({ it.uploadId == 'upload' })
+      uploaded.sort()*.value.join('') == file.text
+      bufferPool.inUse == 0
+
+    cleanup:
+      file.delete()
+  }
+
+  def 'small objects are copied in one request'() {
+    when: 'an object below the copy threshold is copied'
+      uploader.copy('source', 'target', 25, { [attributes: 'yes'] })
+
+    then: 'it is copied with replaced metadata'
+      1 * s3.copyObject({
+        it.sourceKey == 'source' && it.destinationKey == 'target' &&
+            it.newObjectMetadata.getUserMetaDataOf('attributes') == 'yes'
+      })
+      0 * s3.initiateMultipartUpload(_)
+  }
+
+  def 'large objects are copied in ranged parts'() {
+    given: 'an uploader copying in parts above 10 bytes'
+      def copier = new S3Uploader(s3, 'mybucket', bufferPool, 10, 4, 2, 10, 4)
+      def ranges = [:].asSynchronized()
+      s3.copyPart(_) >> { args ->
+        ranges[args[0].partNumber] = [args[0].firstByte, args[0].lastByte]
+        new CopyPartResult(partNumber: args[0].partNumber, ETag: 'etag')
+      }
+
+    when: 'an object above the threshold is copied'
+      copier.copy('source', 'target', 25, null)
+
+    then: 'every range is copied and the upload completed'
+      1 * s3.initiateMultipartUpload({ it.key == 'target' }) >> new InitiateMultipartUploadResult(uploadId: 'upload')
+      1 * s3.completeMultipartUpload({ it.uploadId == 'upload' && it.partETags.size() == 7 })
+      0 * s3.copyObject(_)
+      ranges.sort()*.value == [[0, 3], [4, 7], [8, 11], [12, 15], [16, 19], [20, 23], [24, 24]]
+
+    cleanup:
+      copier.shutdown()
+  }
+
+  def 'an exhausted pool is overdrawn by no more than its overdraft capacity'() {
+    given: 'a pool of one buffer which may be overdrawn by one more'
+      def pool = new S3PartBufferPool(4, 1, 1)
+      def pooled = pool.take()
+
+    when: 'buffers are asked for while the pool stays exhausted'
+      def overdrawn = pool.takeOrOverdraw(1, MILLISECONDS)
+      def refused = pool.takeOrOverdraw(1, MILLISECONDS)
+
+    then: 'one heap buffer is handed out and then none'
+      !overdrawn.direct
+      refused == null
+      pool.overdrawn == 1
+
+    when: 'the buffers are released'
+      pool.release(overdrawn)
+      pool.release(pooled)
+
+    then: 'the overdraft is available again and only the pooled buffer is recycled'
+      pool.overdrawn == 0
+      pool.inUse == 0
+      pool.takeOrOverdraw(1, MILLISECONDS).direct
+  }
+
+  def 'heads outnumbering the pool and its overdraft send what they hold as a first part'() {
+    given: 'an uploader waiting briefly for head buffers from a pool of 8 buffers overdrawn by no more than 2'
+      def waiting = new S3Uploader(s3, 'mybucket', bufferPool, 10, 4, 2, 10, 4, 50)
+      def uploaded = [:].withDefault { new ByteArrayOutputStream() }.asSynchronized()
+      s3.initiateMultipartUpload(_) >> { args -> new InitiateMultipartUploadResult(uploadId: args[0].key) }
+      s3.uploadPart(_) >> { args ->
+        def bytes = args[0].inputStream.bytes
+        synchronized (uploaded) {
+          uploaded[args[0].key].write(bytes)
+        }
+        new UploadPartResult(partNumber: args[0].partNumber, ETag: 'etag')
+      }
+
+    and: 'twelve slow streams which each hold their first buffer until the pool is exhausted'
+      def exhausted = new CountDownLatch(8)
+      def failures = [].asSynchronized()
+
+    when: 'they are all uploaded at once'
+      def threads = (1..12).collect { i ->
+        Thread.start {
+          try {
+            waiting.upload("key$i", gated(('x' * 25).bytes, 4, exhausted))
+          }
+          catch (Throwable e) {
+            failures << e
+          }
+        }
+      }
+      threads*.join(10000)
+
+    then: 'every upload completes with all of its content'
+      failures.empty
+      12 * s3.completeMultipartUpload(_)
+      uploaded.size() == 12
+      uploaded.values()*.size().every { it == 25 }
+
+    and: 'all buffers are returned to the pool'
+      bufferPool.inUse == 0
+      bufferPool.overdrawn == 0
+
+    cleanup:
+      waiting.shutdown()
+  }
+
+  def 'part size never drops below configuration'() {
+    expect:
+      uploader.nextPartSize(2) >= 4
+      uploader.nextPartSize(1001) >= 8
+  }
+
+  private static InputStream gated(final byte[] content, final int gateAt, final CountDownLatch gate) {
+    new FilterInputStream(new ByteArrayInputStream(content)) {
+      int position
+
+      @Override
+      int read(final byte[] bytes, final int offset, final int length) {
+        if (position == gateAt) {
+          gate.countDown()
+          gate.await(5, SECONDS)
+        }
+        int count = super.read(bytes, offset, position < gateAt ? Math.min(length, gateAt - position) : length)
+        if (count > 0) {
+          position += count
+        }
+        return count
+      }
+    }
+  }
+}